@@ -11,23 +11,28 @@ import java.security.Security;
  * Created by YaoYuan on 2020/11/13.
  */
 public class BCProvider {
-    private static volatile Provider bcProvider;
 
     /**
      * Code copy from {@link org.bouncycastle.jcajce.util.BCJcaJceHelper}.
+     * <p>
+     * The provider is resolved once on first call, later calls are lock-free.
      *
      * @return Provider for BouncyCastle
      */
-    public static synchronized Provider getProvider()
+    public static Provider getProvider()
     {
-        final Provider system = Security.getProvider("BC");
-        if (system instanceof BouncyCastleProvider)
-            return system;
-        else if (bcProvider != null)
-            return bcProvider;
-        else {
-            bcProvider = new BouncyCastleProvider();
-            return bcProvider;
+        return Holder.PROVIDER;
+    }
+
+    private static final class Holder {
+        static final Provider PROVIDER = resolve();
+
+        private static Provider resolve() {
+            final Provider system = Security.getProvider("BC");
+            if (system instanceof BouncyCastleProvider)
+                return system;
+            else
+                return new BouncyCastleProvider();
         }
     }
 }
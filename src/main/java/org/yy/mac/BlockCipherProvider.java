@@ -0,0 +1,38 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.BlockCipher;
+
+/**
+ * 分组密码实现的提供者，由 {@link EngineRegistry} 通过 {@link java.util.ServiceLoader} 发现。
+ * <p>
+ * 在 META-INF/services/org.yy.mac.BlockCipherProvider 中登记实现类。
+ * 创建的 BlockCipher 的 getAlgorithmName 必须与同一算法的BC引擎相同（AES、SM4、DES、DESede），
+ * 注册表在使用前会用标准测试向量检验每个实现。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public interface BlockCipherProvider {
+    /**
+     * 实现的名称，在注册表中唯一，用于选择和覆盖。
+     *
+     * @return 名称
+     */
+    String getName();
+
+    /**
+     * 是否支持该算法。
+     *
+     * @param algSymm 对称算法
+     * @return 是否支持
+     */
+    boolean supports(AlgSymm algSymm);
+
+    /**
+     * 创建一个新的未初始化的分组密码。
+     *
+     * @param algSymm 对称算法
+     * @return BlockCipher 对象
+     */
+    BlockCipher create(AlgSymm algSymm);
+}
@@ -0,0 +1,104 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.BlockCipher;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 使用JCA的 CBC/NoPadding 批量迭代连续的多个分组，供 {@link YCMac#update(byte[], int, int)} 使用。
+ * <p>
+ * JDK自带的提供者在支持AES指令的CPU上由JVM的内置指令实现AES的CBC模式，连续的分组比逐个调用BC的引擎快一个数量级；
+ * 但每次调用要以当前链接值为IV重新初始化，所以只用于不少于 {@link #THRESHOLD} 字节的数据。
+ * 密文写入暂存区后丢弃，只保留最后一个分组作为新的链接值。
+ * <p>
+ * 只在YCMac的分组密码本身就是JCA的AES时使用，不替换调用者选择的其他实现；SM4等其他算法仍由YCMac的分组密码逐个分组计算。
+ * {@link EngineRegistry} 对长消息（{@link EngineRegistry.SizeClass#LARGE}）默认选择 JCA-AES，
+ * 所以以消息长度获取分组密码（{@link CMacTool#getBlockCipher(AlgSymm, int)}）的长消息会使用批量迭代；
+ * 短消息和不指定长度的调用仍使用BC的引擎。系统属性 org.yy.mac.bulk=false 可以关闭，此时长消息也使用BC的引擎。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+final class BulkCbc {
+    static final int THRESHOLD = 128;
+    private static final int CHUNK = 4096;
+    static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("org.yy.mac.bulk"));
+
+    private final Cipher cipher;
+    private final byte[] scratch = new byte[CHUNK];
+    private SecretKeySpec key;
+
+    private BulkCbc(Cipher cipher) {
+        this.cipher = cipher;
+    }
+
+    /**
+     * @param plan   执行计划
+     * @param cipher YCMac的分组密码
+     * @return 是否可以批量迭代
+     */
+    static boolean supports(MacPlan plan, BlockCipher cipher) {
+        return ENABLED && cipher instanceof JcaBlockCipher && "AES".equals(plan.cipherName);
+    }
+
+    /**
+     * @param plan     执行计划，使用其迭代密钥
+     * @param macCipher YCMac的分组密码
+     * @return 不支持时返回null
+     */
+    static BulkCbc create(MacPlan plan, BlockCipher macCipher) {
+        if (!supports(plan, macCipher))
+            return null;
+
+        Cipher cipher;
+        try {
+            cipher = Cipher.getInstance("AES/CBC/NoPadding", "SunJCE");
+        } catch (GeneralSecurityException e) {
+            try {
+                cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            } catch (GeneralSecurityException e1) {
+                return null;
+            }
+        }
+        BulkCbc bulk = new BulkCbc(cipher);
+        bulk.setKey(plan);
+        return bulk;
+    }
+
+    /**
+     * 更换为另一个执行计划的迭代密钥，复用已创建的Cipher。
+     *
+     * @param plan 执行计划，必须是 {@link #supports} 支持的
+     */
+    void setKey(MacPlan plan) {
+        key = new SecretKeySpec(plan.chainKey.getKey(), "AES");
+    }
+
+    /**
+     * 迭代 [inOff, inOff + len) 中的分组。
+     *
+     * @param chain [in|out] 链接值
+     * @param in    数据
+     * @param inOff 起始位置
+     * @param len   长度，分组长度的整数倍
+     */
+    void chain(byte[] chain, byte[] in, int inOff, int len) {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(chain));
+            int n = 0;
+            while (len > 0) {
+                n = Math.min(len, CHUNK);
+                cipher.update(in, inOff, n, scratch, 0);
+                inOff += n;
+                len -= n;
+            }
+            System.arraycopy(scratch, n - chain.length, chain, 0, chain.length);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+}
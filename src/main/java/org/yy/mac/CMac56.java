@@ -5,6 +5,8 @@ import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.DataLengthException;
 import org.bouncycastle.crypto.Mac;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * 《GBT 15852.1-2008 信息技术 安全技术 消息鉴别码 第1部分：采用分组密码的机制》算法5~6。
@@ -19,11 +21,13 @@ public class CMac56 implements Mac {
     public CMac56(BlockCipher cipher1, BlockCipher cipher2) {
         mac1 = new YCMac(cipher1);
         mac2 = new YCMac(cipher2);
+        mac2.metered = false; //一个MAC只由 mac1 计一次
     }
 
     public CMac56(BlockCipher cipher1, BlockCipher cipher2, int macSizeInBits) {
         mac1 = new YCMac(cipher1, macSizeInBits);
         mac2 = new YCMac(cipher2, macSizeInBits);
+        mac2.metered = false;
     }
 
     @Override
@@ -43,6 +47,16 @@ public class CMac56 implements Mac {
         }
     }
 
+    /**
+     * 复制当前的计算状态，参见 {@link YCMac#copyState(YCMac)}。
+     *
+     * @param dst 目标对象
+     */
+    void copyState(CMac56 dst) {
+        mac1.copyState(dst.mac1);
+        mac2.copyState(dst.mac2);
+    }
+
     void validate(CipherParameters params) {
         if (!(params instanceof ParametersWithPadding))
             throw new IllegalArgumentException("CMac mode only permits parameters type of ParametersWithPadding.");
@@ -70,6 +84,38 @@ public class CMac56 implements Mac {
         mac2.update(in, inOff, len);
     }
 
+    /**
+     * 输入ByteBuffer中 position 到 limit 之间的数据，参见 {@link YCMac#update(ByteBuffer)}。
+     *
+     * @param in 输入数据
+     */
+    public void update(ByteBuffer in) {
+        mac1.update(in.duplicate());
+        mac2.update(in);
+    }
+
+    /**
+     * 按顺序输入多个ByteBuffer，等价于输入它们拼接后的数据。
+     *
+     * @param ins 输入数据
+     */
+    public void update(ByteBuffer[] ins) {
+        for (ByteBuffer in : ins)
+            update(in);
+    }
+
+    /**
+     * 按顺序输入多个数组片段，等价于输入它们拼接后的数据。
+     *
+     * @param ins  输入数组
+     * @param offs 各数组的偏移
+     * @param lens 各数组的长度
+     */
+    public void update(byte[][] ins, int[] offs, int[] lens) {
+        mac1.update(ins, offs, lens);
+        mac2.update(ins, offs, lens);
+    }
+
     @Override
     public int doFinal(byte[] out, int outOff) throws DataLengthException, IllegalStateException {
         byte[] output1 = new byte[getMacSize()];
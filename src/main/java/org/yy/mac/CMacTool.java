@@ -2,16 +2,12 @@ package org.yy.mac;
 
 import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.CipherParameters;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.engines.DESEngine;
-import org.bouncycastle.crypto.engines.DESedeEngine;
-import org.bouncycastle.crypto.engines.SM4Engine;
 import org.bouncycastle.crypto.macs.CMac;
 import org.bouncycastle.crypto.macs.CMacWithIV;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
-import org.bouncycastle.util.Pack;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -27,10 +23,15 @@ import javax.crypto.spec.SecretKeySpec;
  * @since 2022/11/2
  */
 public class CMacTool {
+    private static final MacCache<CMac> CMACS = new MacCache<>(16);
+    private static final MacCache<Mac> JCA_MACS = new MacCache<>(16);
+
     /**
      * OMAC算法。
      * <p>
-     * BC库的OMAC。
+     * BC库的轻量级 CMac，不经过JCA，也不会加载 BouncyCastleProvider。
+     * 每个线程缓存已初始化的CMac对象，相同算法和密钥的重复调用只需要 update/doFinal。
+     * 结果与 {@link #omacJca(AlgSymm, byte[], byte[])} 相同。
      *
      * @param algSymm 算法
      * @param key     密钥
@@ -39,17 +40,101 @@ public class CMacTool {
      * @throws YCryptoException throw all crypto exception to here
      */
     public static byte[] omac(AlgSymm algSymm, byte[] key, byte[] data) throws YCryptoException {
-        try {
-            String algCMac = algSymm.toString() + "CMAC";
-            if (algSymm == AlgSymm.SM4)
-                algCMac = algSymm.toString() + "-CMAC";
-            Mac mac = Mac.getInstance(algCMac, BCProvider.getProvider());
-            SecretKey secretKey = new SecretKeySpec(key, algCMac);
-
-            mac.init(secretKey, null);
-            return mac.doFinal(data);
-        } catch (InvalidKeyException | NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
-            throw new YCryptoException(e);
+        String algCMac = jcaCMacName(algSymm);
+        CMac mac = CMACS.get(algCMac, key);
+        if (mac == null) {
+            mac = new CMac(getBlockCipher(algSymm));
+            try {
+                mac.init(new KeyParameter(key));
+            } catch (IllegalArgumentException e) {
+                throw new YCryptoException(e);
+            }
+            CMACS.put(algCMac, key, mac);
+        }
+
+        //doFinal 之后CMac恢复为初始化后的状态，可以直接复用
+        byte[] output = new byte[mac.getMacSize()];
+        mac.update(data, 0, data.length);
+        mac.doFinal(output, 0);
+        return output;
+    }
+
+    /**
+     * OMAC算法。
+     * <p>
+     * 通过JCA使用BC库的OMAC，第一次调用时会加载 BouncyCastleProvider。每个线程缓存已初始化的Mac对象。
+     *
+     * @param algSymm 算法
+     * @param key     密钥
+     * @param data    数据
+     * @return CMAC值
+     * @throws YCryptoException throw all crypto exception to here
+     */
+    public static byte[] omacJca(AlgSymm algSymm, byte[] key, byte[] data) throws YCryptoException {
+        String algCMac = jcaCMacName(algSymm);
+        Mac mac = JCA_MACS.get(algCMac, key);
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance(algCMac, BCProvider.getProvider());
+                SecretKey secretKey = new SecretKeySpec(key, algCMac);
+                mac.init(secretKey, null);
+            } catch (InvalidKeyException | NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+                throw new YCryptoException(e);
+            }
+            JCA_MACS.put(algCMac, key, mac);
+        }
+
+        //doFinal 之后Mac恢复为初始化后的状态，可以直接复用
+        return mac.doFinal(data);
+    }
+
+    /**
+     * 清空当前线程缓存的Mac对象。
+     * <p>
+     * 缓存中保存了密钥，在密钥轮换或线程归还前可以调用。
+     */
+    public static void clearCache() {
+        CMACS.clear();
+        JCA_MACS.clear();
+    }
+
+    /**
+     * 删除所有线程缓存的以该密钥初始化的Mac对象，用于密钥轮换。
+     * <p>
+     * 与 {@link #clearCache()} 不同，对所有线程生效：各线程在下一次调用 omac 时删除，其他密钥的对象仍然保留。
+     *
+     * @param key 密钥
+     */
+    public static void evictCachedKey(byte[] key) {
+        CMACS.evict(key);
+        JCA_MACS.evict(key);
+    }
+
+    /**
+     * @return {@link #omac(AlgSymm, byte[], byte[])} 使用的缓存
+     */
+    static MacCacheMXBean getCMacCache() {
+        return CMACS;
+    }
+
+    /**
+     * @return {@link #omacJca(AlgSymm, byte[], byte[])} 使用的缓存
+     */
+    static MacCacheMXBean getJcaMacCache() {
+        return JCA_MACS;
+    }
+
+    private static String jcaCMacName(AlgSymm algSymm) {
+        switch (algSymm) {
+            case SM4:
+                return "SM4-CMAC";
+            case DES:
+                return "DESCMAC";
+            case DESede:
+            case DESede3:
+                return "DESedeCMAC";
+            default:
+                return "AESCMAC";
         }
     }
 
@@ -92,7 +177,7 @@ public class CMacTool {
      * @return CMAC值
      */
     public static byte[] yomac(AlgSymm algSymm, byte[] key, byte[] iv, byte[] data) {
-        YCMac mac = new YCMac(getBlockCipher(algSymm));
+        YCMac mac = new YCMac(getBlockCipher(algSymm, data.length));
         ParametersWithPadding parameters = new ParametersWithPadding(key, null, iv, 5, 4, 0);
         mac.init(parameters);
         mac.update(data, 0, data.length);
@@ -103,22 +188,25 @@ public class CMacTool {
 
     /**
      * 根据算法获取 BlockCipher 对象。
+     * <p>
+     * 由 {@link EngineRegistry} 选择短消息的实现，默认与BC的引擎相同。
      *
      * @param algSymm 对称算法
      * @return BlockCipher 对象
      */
     public static BlockCipher getBlockCipher(AlgSymm algSymm) {
-        String temp = algSymm.toString();
-        if (temp.contains("AES"))
-            return new AESEngine();
-        else if (temp.contains("DESede"))
-            return new DESedeEngine();
-        else if (temp.contains("DES"))
-            return new DESEngine();
-        else if (temp.contains("SM4"))
-            return new SM4Engine();
-        else
-            throw new RuntimeException("Not support symmetric algorithm " + temp + " for CMAC");
+        return EngineRegistry.getInstance().getBlockCipher(algSymm);
+    }
+
+    /**
+     * 根据算法和消息长度获取 BlockCipher 对象，适用于长消息的实现可能不同，见 {@link EngineRegistry}。
+     *
+     * @param algSymm    对称算法
+     * @param dataLength 消息长度
+     * @return BlockCipher 对象
+     */
+    public static BlockCipher getBlockCipher(AlgSymm algSymm, int dataLength) {
+        return EngineRegistry.getInstance().getBlockCipher(algSymm, dataLength);
     }
 
     /**
@@ -127,6 +215,7 @@ public class CMacTool {
      * 支持update模式，内部为《GBT 15852.1》的算法1和填充1。
      * <p>
      * 在update过程中，最后一个数据块可以不完整，但是前面的所有数据块必须是分组长度的整数倍。
+     * 分段较多时使用 {@link MacSession}，不需要每段重新初始化。
      *
      * @param algSymm 对称算法
      * @param key     密钥
@@ -135,7 +224,7 @@ public class CMacTool {
      * @return CMAC值
      */
     public static byte[] cmac(AlgSymm algSymm, byte[] key, byte[] iv, byte[] data) {
-        YCMac mac = new YCMac(getBlockCipher(algSymm));
+        YCMac mac = new YCMac(getBlockCipher(algSymm, data.length));
 
         ParametersWithPadding parameters = new ParametersWithPadding(key, null, iv, 1, 1, 0);
         mac.init(parameters);
@@ -150,23 +239,68 @@ public class CMacTool {
         return output;
     }
 
+    /**
+     * CMAC。
+     * <p>
+     * 与 {@link #cmac(AlgSymm, byte[], byte[], byte[])} 相同，输入数据为多个ByteBuffer拼接后的数据。
+     * 适用于数据分散在多个缓冲区中的情况（如ISO 8583报文的多个域），不需要先拼接。
+     *
+     * @param algSymm 对称算法
+     * @param key     密钥
+     * @param iv      [in|out] 向量
+     * @param data    数据，处理后各ByteBuffer的 position 等于 limit
+     * @return CMAC值
+     */
+    public static byte[] cmac(AlgSymm algSymm, byte[] key, byte[] iv, ByteBuffer... data) {
+        YCMac mac = new YCMac(getBlockCipher(algSymm));
+
+        ParametersWithPadding parameters = new ParametersWithPadding(key, null, iv, 1, 1, 0);
+        mac.init(parameters);
+        mac.update(data);
+        byte[] output = new byte[mac.getMacSize()];
+        mac.doFinal(output, 0);
+
+        int blockSize = SymmUtils.getSymmBlockLength(algSymm);
+        if(iv!=null)
+            System.arraycopy(output, output.length - blockSize, iv, 0, blockSize);
+
+        return output;
+    }
+
+    /**
+     * 多个密钥的CMAC。
+     * <p>
+     * 返回的MAC与使用同一个 iv 对每个密钥分别调用 {@link #cmac(AlgSymm, byte[], byte[], byte[])} 的结果相同，
+     * 但数据只读取一次，见 {@link MultiKeyMac}。与单密钥的方法不同，这里不把结果写回 iv，iv 的内容不变。
+     *
+     * @param algSymm 对称算法
+     * @param keys    密钥
+     * @param iv      向量，所有密钥相同；只读，不更新
+     * @param data    数据
+     * @return 按密钥顺序排列的CMAC值
+     */
+    public static byte[][] cmac(AlgSymm algSymm, byte[][] keys, byte[] iv, byte[] data) {
+        ParametersWithPadding[] parameters = new ParametersWithPadding[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            parameters[i] = new ParametersWithPadding(keys[i], null, iv, 1, 1, 0);
+
+        MultiKeyMac mac = new MultiKeyMac(algSymm, parameters);
+        mac.update(data, 0, data.length);
+        return mac.doFinal();
+    }
+
     /**
      * 《GBT 15852.1》填充1。
      *
      * 仅在外部作数据显示时使用，在内部的算法实现时使用其他方法进行填充。
+     * 只需要输出填充部分时可以使用 {@link PaddingWriter}，不复制消息。
      *
      * @param data 数据
      * @param blockSize 分组长度
      * @return 填充后的数据
      */
     public static byte[] padding1(byte[] data, int blockSize) {
-        if (data.length % blockSize == 0)
-            return data;
-
-        int length = (data.length + blockSize - 1) / blockSize * blockSize;
-        byte[] result = new byte[length];
-        System.arraycopy(data, 0, result, 0, data.length);
-        return result;
+        return pad(1, data, blockSize);
     }
 
     /**
@@ -179,11 +313,7 @@ public class CMacTool {
      * @return 填充后的数据
      */
     public static byte[] padding2(byte[] data, int blockSize) {
-        int length = (data.length + blockSize) / blockSize * blockSize;
-        byte[] result = new byte[length];
-        System.arraycopy(data, 0, result, 0, data.length);
-        result[data.length] = (byte) 0x80;
-        return result;
+        return pad(2, data, blockSize);
     }
 
     /**
@@ -196,14 +326,7 @@ public class CMacTool {
      * @return 填充后的数据
      */
     public static byte[] padding3(byte[] data, int blockSize) {
-        byte[] temp = padding1(data, blockSize);
-        byte[] result = new byte[temp.length + blockSize];
-        System.arraycopy(temp, 0, result, blockSize, temp.length);
-
-        byte[] bLen = Pack.intToBigEndian(data.length * 8);
-        System.arraycopy(bLen, 0, result, blockSize - bLen.length, bLen.length);
-
-        return result;
+        return pad(3, data, blockSize);
     }
 
     /**
@@ -216,9 +339,22 @@ public class CMacTool {
      * @return 填充后的数据
      */
     public static byte[] padding4(byte[] data, int blockSize) {
-        if (data.length % blockSize == 0)
+        return pad(4, data, blockSize);
+    }
+
+    /**
+     * 只分配一次结果数组；不需要填充时直接返回原数据。
+     */
+    private static byte[] pad(int typePad, byte[] data, int blockSize) {
+        int headerLen = PaddingWriter.headerLength(typePad, blockSize);
+        int tailLen = PaddingWriter.tailLength(typePad, data.length, blockSize);
+        if (headerLen == 0 && tailLen == 0)
             return data;
-        else
-            return padding2(data, blockSize);
+
+        byte[] result = new byte[headerLen + data.length + tailLen];
+        PaddingWriter.writeHeader(typePad, data.length, blockSize, result, 0);
+        System.arraycopy(data, 0, result, headerLen, data.length);
+        PaddingWriter.writeTail(typePad, data.length, blockSize, result, headerLen + data.length);
+        return result;
     }
 }
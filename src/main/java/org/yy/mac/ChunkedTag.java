@@ -0,0 +1,412 @@
+package org.yy.mac;
+
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.Pack;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 分块的MAC标签。
+ * <p>
+ * 数据按固定大小 chunkSize 分块，每块用 YCMac 的算法5（CMAC，填充4）计算标签，
+ * 各块的标签再连同数据总长度计算一个顶层标签。各块可以并行计算；验证任意字节范围时只需要计算与之重叠的块和顶层标签，
+ * 不需要重新读取整个文件。
+ * <p>
+ * 块标签 T(i) = MAC(K, 0x01 || 000000 || chunkSize(4) || i(8) || M(i))，块序号写在消息前缀中，所以块不能交换位置；<br>
+ * 顶层标签 T = MAC(K, 0x02 || 000000 || chunkSize(4) || dataLength(8) || T(0) || ... || T(n-1))，所以块不能增删。
+ * <p>
+ * 标签表以紧凑的 sidecar 格式保存，见 {@link #getEncoded()}。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class ChunkedTag {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private static final byte[] MAGIC = {'Y', 'C', 'T', 1};
+    private static final byte CHUNK_DOMAIN = 0x01;
+    private static final byte TOP_DOMAIN = 0x02;
+    private static final int HEADER_LENGTH = 16;
+    private static final int PARALLEL_THRESHOLD = 4; //并行计算时每个任务的最大块数
+    private static final int MAX_WINDOW = 1 << 30; //映射文件时每个窗口的最大长度
+
+    private final AlgSymm algSymm;
+    private final int chunkSize;
+    private final long dataLength;
+    private final int tagSize;
+    private final byte[] tags; //各块标签依次排列，第i块的标签位于 i*tagSize
+    private final byte[] topTag;
+
+    private ChunkedTag(AlgSymm algSymm, int chunkSize, long dataLength, byte[] tags, byte[] topTag) {
+        this.algSymm = algSymm;
+        this.chunkSize = chunkSize;
+        this.dataLength = dataLength;
+        this.tagSize = topTag.length;
+        this.tags = tags;
+        this.topTag = topTag;
+    }
+
+    /**
+     * 并行计算缓冲区的分块标签。
+     *
+     * @param algSymm   分组密码算法
+     * @param key       密钥
+     * @param data      数据，position 到 limit 之间，不修改其 position
+     * @param chunkSize 块大小，必须是分组长度的整数倍
+     * @param pool      线程池
+     * @return 分块标签
+     */
+    public static ChunkedTag compute(AlgSymm algSymm, byte[] key, ByteBuffer data, int chunkSize, ForkJoinPool pool) {
+        return compute(algSymm, key, new BufferSource(data), chunkSize, pool);
+    }
+
+    /**
+     * 并行计算文件的分块标签。
+     * <p>
+     * 文件按约1GB的窗口（块大小的整数倍，块不跨窗口）映射，窗口在第一次被使用时映射，所有任务共享；
+     * 每个块是所在窗口的一个切片，映射的次数与窗口数相同，与块数无关。
+     *
+     * @param algSymm   分组密码算法
+     * @param key       密钥
+     * @param channel   文件
+     * @param chunkSize 块大小，必须是分组长度的整数倍
+     * @param pool      线程池
+     * @return 分块标签
+     * @throws IOException 读取文件错误
+     */
+    public static ChunkedTag compute(AlgSymm algSymm, byte[] key, FileChannel channel, int chunkSize, ForkJoinPool pool)
+            throws IOException {
+        try {
+            return compute(algSymm, key, new ChannelSource(channel, chunkSize), chunkSize, pool);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static ChunkedTag compute(AlgSymm algSymm, byte[] key, Source source, int chunkSize, ForkJoinPool pool) {
+        MacPlan plan = compilePlan(algSymm, key);
+        if (chunkSize <= 0 || chunkSize % plan.blockSize != 0)
+            throw new IllegalArgumentException("Chunk size must be a positive multiple of " + plan.blockSize);
+
+        long dataLength = source.size();
+        long count = chunkCount(dataLength, chunkSize);
+        if (count > Integer.MAX_VALUE / plan.blockSize)
+            throw new IllegalArgumentException("Too many chunks: " + count);
+
+        int tagSize = plan.blockSize;
+        byte[] tags = new byte[(int) count * tagSize];
+        if (count > 0)
+            pool.invoke(new ChunkTask(algSymm, plan, source, chunkSize, dataLength, tags, 0, (int) count));
+
+        return new ChunkedTag(algSymm, chunkSize, dataLength, tags,
+                topTag(algSymm, plan, chunkSize, dataLength, tags));
+    }
+
+    /**
+     * 验证缓冲区中的一段数据。只计算与 [pos, pos+len) 重叠的块，以及由标签表计算的顶层标签。
+     *
+     * @param key  密钥
+     * @param data 完整的数据，position 到 limit 之间
+     * @param pos  起始位置，相对于 data.position()
+     * @param len  长度
+     * @return 验证是否通过；数据长度与标签记录的不一致时返回false
+     */
+    public boolean verifyRange(byte[] key, ByteBuffer data, long pos, long len) {
+        return verifyRange(key, new BufferSource(data), pos, len);
+    }
+
+    /**
+     * 验证文件中的一段数据。只映射包含 [pos, pos+len) 的窗口，只计算与它重叠的块，以及由标签表计算的顶层标签。
+     *
+     * @param key     密钥
+     * @param channel 文件
+     * @param pos     起始位置
+     * @param len     长度
+     * @return 验证是否通过；文件长度与标签记录的不一致时返回false
+     * @throws IOException 读取文件错误
+     */
+    public boolean verifyRange(byte[] key, FileChannel channel, long pos, long len) throws IOException {
+        try {
+            return verifyRange(key, new ChannelSource(channel, chunkSize), pos, len);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private boolean verifyRange(byte[] key, Source source, long pos, long len) {
+        if (pos < 0 || len < 0 || pos + len > dataLength)
+            throw new IllegalArgumentException("Range [" + pos + ", " + (pos + len) + ") is out of [0, " + dataLength + ")");
+
+        MacPlan plan = compilePlan(algSymm, key);
+        if (plan.blockSize != tagSize || source.size() != dataLength)
+            return false;
+        if (!Arrays.constantTimeAreEqual(topTag, topTag(algSymm, plan, chunkSize, dataLength, tags)))
+            return false;
+        if (len == 0)
+            return true;
+
+        int first = (int) (pos / chunkSize);
+        int last = (int) ((pos + len - 1) / chunkSize);
+        YCMac mac = new YCMac(CMacTool.getBlockCipher(algSymm));
+        mac.init(plan);
+        byte[] tag = new byte[tagSize];
+        boolean ok = true;
+        for (int i = first; i <= last; i++) {
+            chunkTag(mac, source, chunkSize, dataLength, i, tag, 0);
+            ok &= Arrays.constantTimeAreEqual(tagSize, tag, 0, tags, i * tagSize);
+        }
+        return ok;
+    }
+
+    public AlgSymm getAlgSymm() {
+        return algSymm;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    public int getChunkCount() {
+        return tags.length / tagSize;
+    }
+
+    public byte[] getTopTag() {
+        return topTag.clone();
+    }
+
+    /**
+     * 第 index 块的标签。
+     *
+     * @param index 块序号，从0开始
+     * @return 标签
+     */
+    public byte[] getChunkTag(int index) {
+        return Arrays.copyOfRange(tags, index * tagSize, (index + 1) * tagSize);
+    }
+
+    /**
+     * sidecar 格式：
+     * <pre>
+     * magic "YCT\1"(4) | 算法名长度(1) | 算法名 | chunkSize(4) | dataLength(8) | tagSize(1) | T(0)...T(n-1) | T
+     * </pre>
+     * 整数都是大端序，块数由 dataLength 和 chunkSize 确定。
+     *
+     * @return 编码
+     */
+    public byte[] getEncoded() {
+        byte[] name = algSymm.name().getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer out = ByteBuffer.allocate(4 + 1 + name.length + 4 + 8 + 1 + tags.length + tagSize);
+        out.put(MAGIC).put((byte) name.length).put(name)
+                .putInt(chunkSize).putLong(dataLength).put((byte) tagSize)
+                .put(tags).put(topTag);
+        return out.array();
+    }
+
+    /**
+     * 解析 sidecar。
+     *
+     * @param encoded {@link #getEncoded()} 的结果
+     * @return 分块标签
+     */
+    public static ChunkedTag getInstance(byte[] encoded) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(encoded);
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if (!Arrays.areEqual(MAGIC, magic))
+                throw new IllegalArgumentException("Not a chunked tag sidecar");
+
+            byte[] name = new byte[in.get() & 0xff];
+            in.get(name);
+            AlgSymm algSymm = AlgSymm.valueOf(new String(name, StandardCharsets.US_ASCII));
+            int chunkSize = in.getInt();
+            long dataLength = in.getLong();
+            int tagSize = in.get() & 0xff;
+            if (chunkSize <= 0 || dataLength < 0 || tagSize != SymmUtils.getSymmBlockLength(algSymm))
+                throw new IllegalArgumentException("Invalid chunked tag sidecar header");
+
+            long tagsLength = chunkCount(dataLength, chunkSize) * tagSize;
+            if (tagsLength + tagSize != in.remaining())
+                throw new IllegalArgumentException("Invalid chunked tag sidecar length");
+            byte[] tags = new byte[(int) tagsLength];
+            byte[] topTag = new byte[tagSize];
+            in.get(tags).get(topTag);
+            return new ChunkedTag(algSymm, chunkSize, dataLength, tags, topTag);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated chunked tag sidecar", e);
+        }
+    }
+
+    public void write(Path path) throws IOException {
+        Files.write(path, getEncoded());
+    }
+
+    public static ChunkedTag read(Path path) throws IOException {
+        return getInstance(Files.readAllBytes(path));
+    }
+
+    private static MacPlan compilePlan(AlgSymm algSymm, byte[] key) {
+        return MacPlan.compile(new ParametersWithPadding(key, null, 5, 4), CMacTool.getBlockCipher(algSymm));
+    }
+
+    private static long chunkCount(long dataLength, int chunkSize) {
+        return (dataLength + chunkSize - 1) / chunkSize;
+    }
+
+    private static byte[] header(byte domain, int chunkSize, long value) {
+        byte[] header = new byte[HEADER_LENGTH];
+        header[0] = domain;
+        Pack.intToBigEndian(chunkSize, header, 4);
+        Pack.longToBigEndian(value, header, 8);
+        return header;
+    }
+
+    private static void chunkTag(YCMac mac, Source source, int chunkSize, long dataLength, int index,
+                                 byte[] out, int outOff) {
+        long pos = (long) index * chunkSize;
+        mac.update(header(CHUNK_DOMAIN, chunkSize, index), 0, HEADER_LENGTH);
+        mac.update(source.slice(pos, (int) Math.min(chunkSize, dataLength - pos)));
+        mac.doFinal(out, outOff);
+    }
+
+    private static byte[] topTag(AlgSymm algSymm, MacPlan plan, int chunkSize, long dataLength, byte[] tags) {
+        YCMac mac = new YCMac(CMacTool.getBlockCipher(algSymm));
+        mac.init(plan);
+        mac.update(header(TOP_DOMAIN, chunkSize, dataLength), 0, HEADER_LENGTH);
+        mac.update(tags, 0, tags.length);
+        byte[] out = new byte[mac.getMacSize()];
+        mac.doFinal(out, 0);
+        return out;
+    }
+
+    /**
+     * 计算 [from, to) 范围内各块的标签，直接写入标签表中对应的位置。
+     */
+    private static final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final AlgSymm algSymm;
+        private final MacPlan plan; //执行计划在各线程的YCMac之间共享
+        private final Source source;
+        private final int chunkSize;
+        private final long dataLength;
+        private final byte[] tags;
+        private final int from;
+        private final int to;
+
+        ChunkTask(AlgSymm algSymm, MacPlan plan, Source source, int chunkSize, long dataLength,
+                  byte[] tags, int from, int to) {
+            this.algSymm = algSymm;
+            this.plan = plan;
+            this.source = source;
+            this.chunkSize = chunkSize;
+            this.dataLength = dataLength;
+            this.tags = tags;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ChunkTask(algSymm, plan, source, chunkSize, dataLength, tags, from, mid),
+                        new ChunkTask(algSymm, plan, source, chunkSize, dataLength, tags, mid, to));
+                return;
+            }
+
+            YCMac mac = new YCMac(CMacTool.getBlockCipher(algSymm, chunkSize));
+            mac.init(plan);
+            for (int i = from; i < to; i++)
+                chunkTag(mac, source, chunkSize, dataLength, i, tags, i * plan.blockSize);
+        }
+    }
+
+    /**
+     * 数据来源：缓冲区或文件。
+     */
+    private interface Source {
+        long size();
+
+        ByteBuffer slice(long pos, int len);
+    }
+
+    private static final class BufferSource implements Source {
+        private final ByteBuffer data;
+
+        BufferSource(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public long size() {
+            return data.remaining();
+        }
+
+        @Override
+        public ByteBuffer slice(long pos, int len) {
+            ByteBuffer slice = data.duplicate();
+            slice.position(data.position() + (int) pos);
+            slice.limit(slice.position() + len);
+            return slice;
+        }
+    }
+
+    /**
+     * 按窗口映射文件，各块从窗口中切出。映射只在GC时释放，每块映射一次时小的块会耗尽进程的映射数。
+     * 窗口长度是块大小的整数倍，所以每块都在一个窗口中；窗口在第一次使用时映射。
+     */
+    private static final class ChannelSource implements Source {
+        private final FileChannel channel;
+        private final long size;
+        private final int window;
+        private final MappedByteBuffer[] windows;
+
+        ChannelSource(FileChannel channel, int chunkSize) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.window = chunkSize <= 0 ? MAX_WINDOW : Math.max(chunkSize, MAX_WINDOW - MAX_WINDOW % chunkSize);
+            this.windows = new MappedByteBuffer[(int) ((size + window - 1) / window)];
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public ByteBuffer slice(long pos, int len) {
+            int i = (int) (pos / window);
+            ByteBuffer slice = window(i).duplicate();
+            slice.position((int) (pos - (long) i * window));
+            slice.limit(slice.position() + len);
+            return slice;
+        }
+
+        private synchronized MappedByteBuffer window(int i) {
+            if (windows[i] == null) {
+                long start = (long) i * window;
+                try {
+                    windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(window, size - start));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return windows[i];
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package org.yy.mac;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * MAC一致性测试。
+ * <p>
+ * 流式读取向量文件（格式参见 {@link MacVectorReader}），按批次在多个线程中并行计算，
+ * 对每个向量使用所有支持它的实现计算MAC，统计每个实现的吞吐量、与期望值不一致的数量，
+ * 以及与第一个实现（参考实现）结果不一致的数量。
+ * <p>
+ * 读取线程在队列满时自己执行批次，所以内存中最多只有 线程数*5 个批次的向量。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class ConformanceRunner {
+    private static final int BATCH_SIZE = 256;
+    private static final int MAX_FAILURE_DETAILS = 100;
+
+    /**
+     * MAC实现。compute 可能被多个线程同时调用。
+     */
+    public interface Engine {
+        String getName();
+
+        boolean supports(MacVector vector);
+
+        byte[] compute(MacVector vector) throws Exception;
+    }
+
+    private final List<Engine> engines;
+    private final int threads;
+
+    public ConformanceRunner(List<Engine> engines, int threads) {
+        if (engines.isEmpty())
+            throw new IllegalArgumentException("At least one engine is required");
+        if (threads <= 0)
+            throw new IllegalArgumentException("Thread count must be positive");
+        this.engines = new ArrayList<>(engines);
+        this.threads = threads;
+    }
+
+    public ConformanceRunner() {
+        this(defaultEngines(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 执行多个向量文件。
+     *
+     * @param files 向量文件
+     * @return 测试报告
+     * @throws IOException 读取错误或格式错误
+     */
+    public Report run(Path... files) throws IOException {
+        Report report = new Report(engines);
+        for (Path file : files) {
+            try (MacVectorReader reader = new MacVectorReader(
+                    new InputStreamReader(Files.newInputStream(file), StandardCharsets.US_ASCII), file.toString())) {
+                run(reader, report);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * 执行一个向量流。
+     *
+     * @param reader 向量流
+     * @return 测试报告
+     * @throws IOException 读取错误或格式错误
+     */
+    public Report run(MacVectorReader reader) throws IOException {
+        Report report = new Report(engines);
+        run(reader, report);
+        return report;
+    }
+
+    private void run(MacVectorReader reader, Report report) throws IOException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        long start = System.nanoTime();
+        try {
+            List<MacVector> batch = new ArrayList<>(BATCH_SIZE);
+            MacVector vector;
+            while ((vector = reader.next()) != null) {
+                batch.add(vector);
+                if (batch.size() == BATCH_SIZE) {
+                    submit(executor, batch, report);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty())
+                submit(executor, batch, report);
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            report.elapsedNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void submit(ThreadPoolExecutor executor, List<MacVector> batch, Report report) {
+        executor.execute(() -> {
+            for (MacVector vector : batch)
+                check(vector, report);
+        });
+    }
+
+    private void check(MacVector vector, Report report) {
+        report.vectors.increment();
+        report.bytes.add(vector.msg.length);
+
+        byte[] reference = null;
+        boolean ok = true;
+        for (int i = 0; i < engines.size(); i++) {
+            Engine engine = engines.get(i);
+            if (!engine.supports(vector))
+                continue;
+
+            EngineStats stats = report.stats.get(i);
+            long begin = System.nanoTime();
+            byte[] result;
+            try {
+                result = engine.compute(vector);
+            } catch (Exception e) {
+                stats.nanos.add(System.nanoTime() - begin);
+                stats.executed.increment();
+                stats.errors.increment();
+                report.addDetail(engine.getName() + " error at " + vector + ": " + e);
+                ok = false;
+                continue;
+            }
+            stats.nanos.add(System.nanoTime() - begin);
+            stats.executed.increment();
+            stats.bytes.add(vector.msg.length);
+
+            if (!Arrays.equals(vector.mac, result)) {
+                stats.failures.increment();
+                report.addDetail(engine.getName() + " failed at " + vector);
+                ok = false;
+            }
+            if (reference == null)
+                reference = result;
+            else if (!Arrays.equals(reference, result))
+                stats.disagreements.increment();
+        }
+
+        if (reference == null) {
+            report.unsupported.increment();
+            report.addDetail("No engine supports " + vector);
+        } else if (!ok)
+            report.failedVectors.increment();
+    }
+
+    /**
+     * 默认的实现：YCMac、CMac56、CMacTool 以及 YMacProvider。
+     *
+     * @return 实现列表，第一个为参考实现
+     */
+    public static List<Engine> defaultEngines() {
+        List<Engine> engines = new ArrayList<>();
+        engines.add(engine("YCMac", v -> !v.isCMac56(), v -> {
+            YCMac mac = new YCMac(CMacTool.getBlockCipher(v.algSymm), v.mac.length * 8);
+            mac.init(v.newParameters());
+            mac.update(v.msg, 0, v.msg.length);
+            byte[] out = new byte[mac.getMacSize()];
+            mac.doFinal(out, 0);
+            return out;
+        }));
+        engines.add(engine("CMac56", MacVector::isCMac56, v -> {
+            CMac56 mac = new CMac56(CMacTool.getBlockCipher(v.algSymm), CMacTool.getBlockCipher(v.algSymm), v.mac.length * 8);
+            mac.init(v.newParameters());
+            mac.update(v.msg, 0, v.msg.length);
+            byte[] out = new byte[mac.getMacSize()];
+            mac.doFinal(out, 0);
+            return out;
+        }));
+        engines.add(engine("CMacTool.cmac", v -> !v.isCMac56() && v.typeAlg == 1 && v.typePad == 1 && isFullBlock(v),
+                v -> CMacTool.cmac(v.algSymm, v.key1, v.iv == null ? null : v.iv.clone(), v.msg)));
+        engines.add(engine("CMacTool.yomac", v -> !v.isCMac56() && v.typeAlg == 5 && v.typePad == 4 && isFullBlock(v),
+                v -> CMacTool.yomac(v.algSymm, v.key1, v.iv == null ? null : v.iv.clone(), v.msg)));
+        engines.add(engine("CMacTool.omac", v -> !v.isCMac56() && v.typeAlg == 5 && v.typePad == 4 && v.iv == null && isFullBlock(v),
+                v -> CMacTool.omac(v.algSymm, v.key1, v.msg)));
+        engines.add(engine("CMacTool.omacJca", v -> !v.isCMac56() && v.typeAlg == 5 && v.typePad == 4 && v.iv == null && isFullBlock(v),
+                v -> CMacTool.omacJca(v.algSymm, v.key1, v.msg)));
+        engines.add(engine("YMacProvider", v -> YMacProvider.getInstance().getService("Mac", jcaName(v)) != null, v -> {
+            Mac mac = YMacProvider.getMac(jcaName(v));
+            GBT15852ParameterSpec spec = new GBT15852ParameterSpec(v.key2, v.iv, v.msg.length, v.mac.length * 8);
+            spec.setKeyInduce(v.keyInduce);
+            mac.init(new SecretKeySpec(v.key1, v.algSymm.getName()), spec);
+            return mac.doFinal(v.msg);
+        }));
+        return engines;
+    }
+
+    private static boolean isFullBlock(MacVector vector) {
+        return vector.mac.length == SymmUtils.getSymmBlockLength(vector.algSymm);
+    }
+
+    private static String jcaName(MacVector vector) {
+        return "GBT15852-" + (vector.isCMac56() ? "2008-" : "") + "ALG" + vector.typeAlg
+                + "-PAD" + vector.typePad + "-" + vector.algSymm.getName();
+    }
+
+    private interface MacFunction {
+        byte[] apply(MacVector vector) throws Exception;
+    }
+
+    private static Engine engine(String name, Predicate<MacVector> supports, MacFunction function) {
+        return new Engine() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public boolean supports(MacVector vector) {
+                return supports.test(vector);
+            }
+
+            @Override
+            public byte[] compute(MacVector vector) throws Exception {
+                return function.apply(vector);
+            }
+        };
+    }
+
+    private static final class EngineStats {
+        final String name;
+        final LongAdder executed = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder disagreements = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        EngineStats(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * 测试报告。
+     */
+    public static final class Report {
+        private final List<EngineStats> stats = new ArrayList<>();
+        private final List<String> details = Collections.synchronizedList(new ArrayList<>());
+        private final LongAdder vectors = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder failedVectors = new LongAdder();
+        private final LongAdder unsupported = new LongAdder();
+        private long elapsedNanos;
+
+        Report(List<Engine> engines) {
+            for (Engine engine : engines)
+                stats.add(new EngineStats(engine.getName()));
+        }
+
+        private void addDetail(String detail) {
+            if (details.size() < MAX_FAILURE_DETAILS)
+                details.add(detail);
+        }
+
+        public long getVectorCount() {
+            return vectors.sum();
+        }
+
+        /**
+         * @return 至少有一个实现出错或结果不一致的向量数量
+         */
+        public long getFailedCount() {
+            return failedVectors.sum();
+        }
+
+        /**
+         * @return 没有任何实现支持的向量数量
+         */
+        public long getUnsupportedCount() {
+            return unsupported.sum();
+        }
+
+        /**
+         * @return 所有实现与参考实现结果不一致的次数
+         */
+        public long getDisagreementCount() {
+            long sum = 0;
+            for (EngineStats s : stats)
+                sum += s.disagreements.sum();
+            return sum;
+        }
+
+        /**
+         * @param name 实现名称
+         * @return 该实现计算的向量数量
+         */
+        public long getExecutedCount(String name) {
+            for (EngineStats s : stats) {
+                if (s.name.equals(name))
+                    return s.executed.sum();
+            }
+            return 0;
+        }
+
+        /**
+         * @return 前100个失败的详细信息
+         */
+        public List<String> getDetails() {
+            synchronized (details) {
+                return new ArrayList<>(details);
+            }
+        }
+
+        public boolean isPassed() {
+            return getFailedCount() == 0 && getUnsupportedCount() == 0 && getDisagreementCount() == 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            double seconds = Math.max(elapsedNanos, 1) / 1e9;
+            sb.append(String.format("vectors: %d, failed: %d, unsupported: %d, elapsed: %.3f s, %.0f vectors/s, %.2f MB/s%n",
+                    vectors.sum(), failedVectors.sum(), unsupported.sum(), seconds,
+                    vectors.sum() / seconds, bytes.sum() / seconds / 1e6));
+            sb.append(String.format("%-20s %12s %10s %8s %12s %14s %10s%n",
+                    "engine", "executed", "failures", "errors", "disagreement", "vectors/s", "MB/s"));
+            for (EngineStats s : stats) {
+                double engineSeconds = Math.max(s.nanos.sum(), 1) / 1e9;
+                sb.append(String.format("%-20s %12d %10d %8d %12d %14.0f %10.2f%n",
+                        s.name, s.executed.sum(), s.failures.sum(), s.errors.sum(), s.disagreements.sum(),
+                        s.executed.sum() / engineSeconds, s.bytes.sum() / engineSeconds / 1e6));
+            }
+            for (String detail : getDetails())
+                sb.append(detail).append(System.lineSeparator());
+            return sb.toString();
+        }
+    }
+}
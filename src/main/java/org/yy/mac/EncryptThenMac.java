@@ -0,0 +1,281 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.Arrays;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * CBC加密与MAC的单遍流水线：先加密后计算MAC，先验证后解密。
+ * <p>
+ * 分别加密和计算MAC时数据要读两遍。这里按 {@link #TILE_SIZE} 字节的块处理：一块数据加密后（仍在缓存中）
+ * 立即输入 YCMac，再写入调用者的 ByteBuffer 或输出流；解密时同一块密文先输入 YCMac 再解密。
+ * 加密和MAC使用各自的密钥和分组密码对象，密钥编排只在构造时进行一次。
+ * <p>
+ * 加密为CBC模式和PKCS#7填充，MAC对密文计算，IV不计入MAC，由调用者按协议处理。
+ * MAC参数使用填充3时，ByteBuffer的方法根据密文长度声明长度；输出流不支持填充3。
+ * <p>
+ * 解密也只读一遍：明文在验证之前已写入输出缓冲区，但验证失败时清零并恢复 position，不返回任何明文；
+ * 最后一个分组（含填充）在验证之后才写入。输出流不能撤回已写入的数据，所以不提供流式解密。
+ * <p>
+ * 对象不是线程安全的，每个线程使用自己的对象。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class EncryptThenMac {
+    static final int TILE_SIZE = 4096;
+
+    private final BlockCipher encryptor;
+    private final BlockCipher decryptor;
+    private final KeyParameter key;
+    private final YCMac mac;
+    private final MacPlan plan;
+    private final int blockSize;
+    private final byte[] chain;
+    private final byte[] tile; //多一个分组，用于最后的填充
+    private final byte[] plain;
+    private boolean decryptorReady;
+
+    /**
+     * @param algSymm   对称算法
+     * @param key       加密密钥
+     * @param macParams MAC参数：{@link ParametersWithPadding} 或 {@link MacPlan}，密钥应与加密密钥不同
+     */
+    public EncryptThenMac(AlgSymm algSymm, byte[] key, CipherParameters macParams) {
+        this.key = new KeyParameter(key);
+        this.encryptor = CMacTool.getBlockCipher(algSymm);
+        encryptor.init(true, this.key);
+        this.decryptor = CMacTool.getBlockCipher(algSymm);
+        this.mac = new YCMac(CMacTool.getBlockCipher(algSymm));
+        mac.init(macParams);
+        this.plan = mac.getPlan();
+
+        blockSize = encryptor.getBlockSize();
+        chain = new byte[blockSize];
+        tile = new byte[TILE_SIZE + blockSize];
+        plain = new byte[TILE_SIZE];
+    }
+
+    public int getMacSize() {
+        return mac.getMacSize();
+    }
+
+    /**
+     * @param dataLength 明文长度
+     * @return 密文长度
+     */
+    public long getCipherLength(long dataLength) {
+        return (dataLength / blockSize + 1) * blockSize;
+    }
+
+    /**
+     * 加密 in 中 position 到 limit 之间的数据，密文写入 out，同时计算密文的MAC。
+     * 处理后 in 的 position 等于 limit，out 的 position 增加密文长度。
+     *
+     * @param iv  向量
+     * @param in  明文
+     * @param out [out] 密文，剩余空间不少于 {@link #getCipherLength(long)}
+     * @return 密文的MAC
+     */
+    public byte[] encrypt(byte[] iv, ByteBuffer in, ByteBuffer out) {
+        int cipherLength = (int) getCipherLength(in.remaining());
+        if (out.remaining() < cipherLength)
+            throw new IllegalArgumentException("Output buffer too small: " + out.remaining() + " < " + cipherLength);
+        start(iv, cipherLength);
+
+        try {
+            while (true) {
+                int n = Math.min(in.remaining(), TILE_SIZE);
+                in.get(tile, 0, n);
+                boolean last = !in.hasRemaining();
+                if (last)
+                    n = pad(n);
+                encryptTile(n);
+                out.put(tile, 0, n);
+                if (last)
+                    return finish();
+            }
+        } catch (RuntimeException e) {
+            mac.reset();
+            throw e;
+        }
+    }
+
+    /**
+     * 加密输入流中的所有数据，密文写入输出流，同时计算密文的MAC。不关闭流。
+     *
+     * @param iv  向量
+     * @param in  明文
+     * @param out [out] 密文
+     * @return 密文的MAC
+     * @throws IOException 读写错误
+     */
+    public byte[] encrypt(byte[] iv, InputStream in, OutputStream out) throws IOException {
+        if (plan.prefix != null)
+            throw new IllegalArgumentException("Padding 3 needs the length of the ciphertext");
+        start(iv, -1);
+
+        try {
+            while (true) {
+                int n = 0;
+                int len;
+                while (n < TILE_SIZE && (len = in.read(tile, n, TILE_SIZE - n)) >= 0)
+                    n += len;
+                boolean last = n < TILE_SIZE;
+                if (last)
+                    n = pad(n);
+                encryptTile(n);
+                out.write(tile, 0, n);
+                if (last)
+                    return finish();
+            }
+        } catch (IOException | RuntimeException e) {
+            mac.reset();
+            throw e;
+        }
+    }
+
+    /**
+     * 验证 in 中 position 到 limit 之间的密文的MAC并解密，明文写入 out。
+     * 处理后 in 的 position 等于 limit；验证失败时 out 中写入的数据被清零，position 不变。
+     * <p>
+     * out 的剩余空间必须能容纳明文。明文长度在去掉填充后才知道，最长为密文长度减1，
+     * 预先不知道明文长度时按密文长度减1分配；空间不足时同样清零并抛出 IllegalArgumentException。
+     *
+     * @param iv  向量
+     * @param in  密文，长度为分组长度的正整数倍
+     * @param out [out] 明文，剩余空间不少于明文长度
+     * @param tag 密文的MAC
+     * @return 明文长度
+     * @throws YCryptoException MAC验证失败，或填充错误
+     */
+    public int decrypt(byte[] iv, ByteBuffer in, ByteBuffer out, byte[] tag) throws YCryptoException {
+        int cipherLength = in.remaining();
+        if (cipherLength == 0 || cipherLength % blockSize != 0)
+            throw new IllegalArgumentException("Ciphertext length must be a positive multiple of the block size");
+        if (out.remaining() < cipherLength - blockSize)
+            throw new IllegalArgumentException("Output buffer too small: " + out.remaining() + " < " + (cipherLength - blockSize));
+        if (!decryptorReady) {
+            decryptor.init(false, key);
+            decryptorReady = true;
+        }
+        start(iv, cipherLength);
+
+        int start = out.position();
+        try {
+            while (true) {
+                int n = Math.min(in.remaining(), TILE_SIZE);
+                in.get(tile, 0, n);
+                mac.update(tile, 0, n);
+                decryptTile(n);
+                if (!in.hasRemaining()) {
+                    //最后一个分组在验证之后写入
+                    out.put(plain, 0, n - blockSize);
+                    int lastOff = n - blockSize;
+                    byte[] computed = new byte[mac.getMacSize()];
+                    mac.doFinal(computed, 0);
+                    if (!Arrays.constantTimeAreEqual(tag, computed)) {
+                        wipe(out, start);
+                        throw new YCryptoException("MAC verification failed");
+                    }
+                    int padLength = plain[n - 1] & 0xff;
+                    if (!checkPadding(lastOff, padLength)) {
+                        wipe(out, start);
+                        throw new YCryptoException("Invalid padding");
+                    }
+                    if (out.remaining() < blockSize - padLength)
+                        throw new IllegalArgumentException("Output buffer too small: "
+                                + (out.position() - start + out.remaining()) + " < " + (cipherLength - padLength));
+                    out.put(plain, lastOff, blockSize - padLength);
+                    Arrays.fill(plain, (byte) 0);
+                    return out.position() - start;
+                }
+                out.put(plain, 0, n);
+            }
+        } catch (RuntimeException e) {
+            mac.reset();
+            wipe(out, start);
+            throw e;
+        }
+    }
+
+    private void start(byte[] iv, long cipherLength) {
+        if (iv == null || iv.length != blockSize)
+            throw new IllegalArgumentException("IV must be " + blockSize + " bytes");
+        System.arraycopy(iv, 0, chain, 0, blockSize);
+        if (plan.prefix != null)
+            mac.init(plan.withLength(cipherLength));
+    }
+
+    private byte[] finish() {
+        byte[] tag = new byte[mac.getMacSize()];
+        mac.doFinal(tag, 0);
+        return tag;
+    }
+
+    /**
+     * PKCS#7填充最后一块。
+     *
+     * @param n 最后一块的数据长度
+     * @return 填充后的长度
+     */
+    private int pad(int n) {
+        int padLength = blockSize - n % blockSize;
+        java.util.Arrays.fill(tile, n, n + padLength, (byte) padLength);
+        return n + padLength;
+    }
+
+    private boolean checkPadding(int lastOff, int padLength) {
+        boolean ok = padLength >= 1 && padLength <= blockSize;
+        for (int i = 0; i < blockSize; i++)
+            ok &= i < blockSize - padLength || (plain[lastOff + i] & 0xff) == padLength;
+        return ok;
+    }
+
+    /**
+     * CBC加密 tile 中的 n 个字节，然后输入MAC。
+     */
+    private void encryptTile(int n) {
+        byte[] prev = chain;
+        int prevOff = 0;
+        for (int off = 0; off < n; off += blockSize) {
+            for (int i = 0; i < blockSize; i++)
+                tile[off + i] ^= prev[prevOff + i];
+            encryptor.processBlock(tile, off, tile, off);
+            prev = tile;
+            prevOff = off;
+        }
+        System.arraycopy(tile, n - blockSize, chain, 0, blockSize);
+        mac.update(tile, 0, n);
+    }
+
+    /**
+     * CBC解密 tile 中的 n 个字节到 plain。
+     */
+    private void decryptTile(int n) {
+        for (int off = 0; off < n; off += blockSize) {
+            decryptor.processBlock(tile, off, plain, off);
+            if (off == 0) {
+                for (int i = 0; i < blockSize; i++)
+                    plain[i] ^= chain[i];
+            } else {
+                for (int i = 0; i < blockSize; i++)
+                    plain[off + i] ^= tile[off - blockSize + i];
+            }
+        }
+        System.arraycopy(tile, n - blockSize, chain, 0, blockSize);
+    }
+
+    private void wipe(ByteBuffer out, int start) {
+        for (int i = start; i < out.position(); i++)
+            out.put(i, (byte) 0);
+        out.position(start);
+        Arrays.fill(plain, (byte) 0);
+    }
+}
@@ -0,0 +1,440 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.AESLightEngine;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.engines.SM4Engine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 分组密码实现的注册表。
+ * <p>
+ * 每个 {@link AlgSymm} 可以有多个实现：内置的BC AESEngine、AESLightEngine、JCA AES（JVM内置指令）、SM4Engine、DESEngine、DESedeEngine，
+ * 以及通过 {@link ServiceLoader} 发现的 {@link BlockCipherProvider}。只有通过标准测试向量检验的实现才会被选择。
+ * <p>
+ * 每个算法按消息长度分为 {@link SizeClass#SMALL} 和 {@link SizeClass#LARGE} 两类，分别选择实现，优先级为：
+ * <ol>
+ * <li>系统属性覆盖：org.yy.mac.engine.AES128.large=JCA-AES，或不区分长度的 org.yy.mac.engine.AES128=JCA-AES；</li>
+ * <li>系统属性 org.yy.mac.engine.profile 指定的文件中保存的选择（仅当文件是在同一环境下生成的）；</li>
+ * <li>系统属性 org.yy.mac.engine.calibrate=true 时，第一次使用时运行简短的基准测试，选择最快的实现，并保存到 profile 文件；</li>
+ * <li>否则长消息的AES使用 JCA-AES，由 {@link BulkCbc} 批量迭代（批量迭代关闭时除外）；
+ * 其他情况按注册顺序使用第一个通过检验的实现（即第一个内置实现，与之前的 CMacTool.getBlockCipher 相同），不检验其后的实现。</li>
+ * </ol>
+ * 所有实现的 getAlgorithmName 相同，所以由不同实现编译的 {@link MacPlan} 可以通用。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class EngineRegistry implements EngineRegistryMXBean {
+    public static final String PROPERTY_PREFIX = "org.yy.mac.engine.";
+    public static final String PROPERTY_CALIBRATE = PROPERTY_PREFIX + "calibrate";
+    public static final String PROPERTY_PROFILE = PROPERTY_PREFIX + "profile";
+
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String JCA_AES = "JCA-AES"; //长消息的AES默认使用的实现
+    private static final long CALIBRATE_NANOS = 20_000_000L; //每个实现每类长度的测试时间
+    private static final int SIZE_CLASSES = SizeClass.values().length;
+
+    /**
+     * 消息长度分类。
+     */
+    public enum SizeClass {
+        SMALL(64), LARGE(16 * 1024);
+
+        private final int benchmarkLength; //校准时使用的消息长度
+
+        SizeClass(int benchmarkLength) {
+            this.benchmarkLength = benchmarkLength;
+        }
+
+        public static SizeClass of(int dataLength) {
+            return dataLength < 1024 ? SMALL : LARGE;
+        }
+    }
+
+    private final List<BlockCipherProvider> providers;
+    //以 AlgSymm 和 SizeClass 的序号为下标，未确定时为null
+    private final AtomicReferenceArray<BlockCipherProvider> selections =
+            new AtomicReferenceArray<>(AlgSymm.values().length * SIZE_CLASSES);
+    private final Properties profile = new Properties();
+    private final Path profilePath;
+    private final boolean calibrate;
+
+    private static final class Holder {
+        static final EngineRegistry INSTANCE = new EngineRegistry();
+    }
+
+    public static EngineRegistry getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * 测试时创建独立的注册表，不影响 {@link #getInstance()} 的选择。
+     */
+    EngineRegistry() {
+        List<BlockCipherProvider> list = new ArrayList<>(builtinProviders());
+        for (BlockCipherProvider provider : ServiceLoader.load(BlockCipherProvider.class, EngineRegistry.class.getClassLoader()))
+            list.add(provider);
+        providers = Collections.unmodifiableList(list);
+
+        calibrate = Boolean.getBoolean(PROPERTY_CALIBRATE);
+        String path = System.getProperty(PROPERTY_PROFILE);
+        profilePath = path == null ? null : Paths.get(path);
+        if (profilePath != null && Files.exists(profilePath)) {
+            try (InputStream in = Files.newInputStream(profilePath)) {
+                profile.load(in);
+            } catch (IOException e) {
+                profile.clear(); //无法读取时重新校准
+            }
+            if (!fingerprint().equals(profile.getProperty(FINGERPRINT)))
+                profile.clear();
+        }
+    }
+
+    /**
+     * 创建分组密码，使用短消息的选择。
+     *
+     * @param algSymm 对称算法
+     * @return BlockCipher 对象
+     */
+    public BlockCipher getBlockCipher(AlgSymm algSymm) {
+        return getBlockCipher(algSymm, SizeClass.SMALL);
+    }
+
+    /**
+     * 创建分组密码，使用适合该消息长度的选择。
+     *
+     * @param algSymm    对称算法
+     * @param dataLength 消息长度
+     * @return BlockCipher 对象
+     */
+    public BlockCipher getBlockCipher(AlgSymm algSymm, int dataLength) {
+        return getBlockCipher(algSymm, SizeClass.of(dataLength));
+    }
+
+    private BlockCipher getBlockCipher(AlgSymm algSymm, SizeClass sizeClass) {
+        return select(algSymm, sizeClass).create(algSymm);
+    }
+
+    /**
+     * 选择的实现，第一次调用时确定。
+     *
+     * @param algSymm   对称算法
+     * @param sizeClass 消息长度分类
+     * @return 实现
+     */
+    public BlockCipherProvider select(AlgSymm algSymm, SizeClass sizeClass) {
+        int i = index(algSymm, sizeClass);
+        BlockCipherProvider provider = selections.get(i);
+        return provider != null ? provider : choose(i, algSymm, sizeClass);
+    }
+
+    private synchronized BlockCipherProvider choose(int i, AlgSymm algSymm, SizeClass sizeClass) {
+        BlockCipherProvider provider = selections.get(i);
+        if (provider == null) {
+            provider = choose(algSymm, sizeClass);
+            selections.set(i, provider);
+        }
+        return provider;
+    }
+
+    /**
+     * 已确定的选择，如 "SM4.small" -&gt; "BC-SM4Engine"。
+     *
+     * @return 选择
+     */
+    public Map<String, String> getSelections() {
+        Map<String, String> result = new TreeMap<>();
+        for (AlgSymm algSymm : AlgSymm.values()) {
+            for (SizeClass sizeClass : SizeClass.values()) {
+                BlockCipherProvider provider = selections.get(index(algSymm, sizeClass));
+                if (provider != null)
+                    result.put(key(algSymm, sizeClass), provider.getName());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 所有实现的名称，包括未通过测试向量检验的。
+     *
+     * @return 名称
+     */
+    public List<String> getProviderNames() {
+        List<String> names = new ArrayList<>();
+        for (BlockCipherProvider provider : providers)
+            names.add(provider.getName());
+        return names;
+    }
+
+    /**
+     * 对该算法所有通过检验的实现运行基准测试。
+     *
+     * @param algSymm   对称算法
+     * @param sizeClass 消息长度分类
+     * @return 实现名称到每字节纳秒数
+     */
+    public Map<String, Double> benchmark(AlgSymm algSymm, SizeClass sizeClass) {
+        Map<String, Double> result = new TreeMap<>();
+        for (BlockCipherProvider provider : candidates(algSymm))
+            result.put(provider.getName(), nanosPerByte(provider, algSymm, sizeClass));
+        return result;
+    }
+
+    /**
+     * 只对需要的实现运行测试向量检验：覆盖和 profile 只检验指定的实现，不校准时按注册顺序检验到第一个通过的为止，
+     * 避免第一次使用时加载不需要的实现（如JCA）。只有校准时才检验所有实现。
+     */
+    private BlockCipherProvider choose(AlgSymm algSymm, SizeClass sizeClass) {
+        String key = key(algSymm, sizeClass);
+        String name = System.getProperty(PROPERTY_PREFIX + key, System.getProperty(PROPERTY_PREFIX + algSymm.name()));
+        if (name != null) {
+            BlockCipherProvider provider = find(algSymm, name);
+            if (provider == null)
+                throw new IllegalArgumentException("Engine " + name + " of " + PROPERTY_PREFIX + key + " is not available for " + algSymm.name());
+            return provider;
+        }
+
+        name = profile.getProperty(key);
+        if (name != null) {
+            BlockCipherProvider provider = find(algSymm, name);
+            if (provider != null)
+                return provider;
+        }
+
+        if (!calibrate) {
+            if (sizeClass == SizeClass.LARGE && BulkCbc.ENABLED) {
+                BlockCipherProvider provider = find(algSymm, JCA_AES);
+                if (provider != null)
+                    return provider;
+            }
+            for (BlockCipherProvider provider : providers) {
+                if (provider.supports(algSymm) && selfTest(provider, algSymm))
+                    return provider;
+            }
+            throw new RuntimeException("Not support symmetric algorithm " + algSymm + " for CMAC");
+        }
+
+        List<BlockCipherProvider> candidates = candidates(algSymm);
+        if (candidates.isEmpty())
+            throw new RuntimeException("Not support symmetric algorithm " + algSymm + " for CMAC");
+        if (candidates.size() == 1)
+            return candidates.get(0);
+
+        BlockCipherProvider best = null;
+        double bestTime = Double.MAX_VALUE;
+        for (BlockCipherProvider provider : candidates) {
+            double time = nanosPerByte(provider, algSymm, sizeClass);
+            if (time < bestTime) {
+                bestTime = time;
+                best = provider;
+            }
+        }
+        saveProfile(key, best.getName());
+        return best;
+    }
+
+    /**
+     * 支持该算法并通过测试向量检验的实现，按注册顺序排列。
+     */
+    List<BlockCipherProvider> candidates(AlgSymm algSymm) {
+        List<BlockCipherProvider> candidates = new ArrayList<>();
+        for (BlockCipherProvider provider : providers) {
+            if (provider.supports(algSymm) && selfTest(provider, algSymm))
+                candidates.add(provider);
+        }
+        return candidates;
+    }
+
+    /**
+     * @return 指定名称的实现，不支持该算法或未通过检验时为null
+     */
+    private BlockCipherProvider find(AlgSymm algSymm, String name) {
+        for (BlockCipherProvider provider : providers) {
+            if (provider.getName().equals(name))
+                return provider.supports(algSymm) && selfTest(provider, algSymm) ? provider : null;
+        }
+        return null;
+    }
+
+    private synchronized void saveProfile(String key, String name) {
+        if (profilePath == null)
+            return;
+
+        profile.setProperty(FINGERPRINT, fingerprint());
+        profile.setProperty(key, name);
+        try (OutputStream out = Files.newOutputStream(profilePath)) {
+            profile.store(out, "org.yy.mac engine selections");
+        } catch (IOException e) {
+            //只影响下次启动，本次的选择仍然有效
+        }
+    }
+
+    /**
+     * profile 只在相同的CPU架构、核数和JVM下有效。
+     */
+    private static String fingerprint() {
+        return System.getProperty("os.arch") + "/" + Runtime.getRuntime().availableProcessors() + "/"
+                + System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version");
+    }
+
+    private static int index(AlgSymm algSymm, SizeClass sizeClass) {
+        return algSymm.ordinal() * SIZE_CLASSES + sizeClass.ordinal();
+    }
+
+    private static String key(AlgSymm algSymm, SizeClass sizeClass) {
+        return algSymm.name() + "." + sizeClass.name().toLowerCase();
+    }
+
+    /**
+     * 每次计算都重新设置密钥，然后CBC加密一个消息，与MAC计算的开销相同。
+     */
+    private static double nanosPerByte(BlockCipherProvider provider, AlgSymm algSymm, SizeClass sizeClass) {
+        BlockCipher cipher = provider.create(algSymm);
+        KeyParameter key = new KeyParameter(new byte[SymmUtils.getSymmKeyLength(algSymm)]);
+        byte[] data = new byte[sizeClass.benchmarkLength];
+        int blockSize = cipher.getBlockSize();
+
+        long bytes = 0;
+        long start = 0;
+        for (int round = 0; round < 2; round++) { //第一轮预热
+            bytes = 0;
+            start = System.nanoTime();
+            do {
+                cipher.init(true, key);
+                for (int off = blockSize; off < data.length; off += blockSize) {
+                    for (int i = 0; i < blockSize; i++)
+                        data[off + i] ^= data[off - blockSize + i];
+                    cipher.processBlock(data, off, data, off);
+                }
+                bytes += data.length;
+            } while (System.nanoTime() - start < CALIBRATE_NANOS);
+        }
+        return (double) (System.nanoTime() - start) / bytes;
+    }
+
+    /**
+     * 标准测试向量：FIPS-197 附录C、GB/T 32907 附录A、DES 的经典示例（DESede 用三个相同的DES密钥）。
+     */
+    private static boolean selfTest(BlockCipherProvider provider, AlgSymm algSymm) {
+        String key;
+        String plain;
+        String expected;
+        switch (algSymm) {
+            case AES128:
+                key = "000102030405060708090a0b0c0d0e0f";
+                plain = "00112233445566778899aabbccddeeff";
+                expected = "69c4e0d86a7b0430d8cdb78070b4c55a";
+                break;
+            case AES192:
+                key = "000102030405060708090a0b0c0d0e0f1011121314151617";
+                plain = "00112233445566778899aabbccddeeff";
+                expected = "dda97ca4864cdfe06eaf70a0ec0d7191";
+                break;
+            case AES256:
+                key = "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f";
+                plain = "00112233445566778899aabbccddeeff";
+                expected = "8ea2b7ca516745bfeafc49904b496089";
+                break;
+            case SM4:
+                key = "0123456789abcdeffedcba9876543210";
+                plain = "0123456789abcdeffedcba9876543210";
+                expected = "681edf34d206965e86b3e94f536e4246";
+                break;
+            case DES:
+                key = "133457799bbcdff1";
+                plain = "0123456789abcdef";
+                expected = "85e813540f0ab405";
+                break;
+            case DESede:
+                key = "133457799bbcdff1133457799bbcdff1";
+                plain = "0123456789abcdef";
+                expected = "85e813540f0ab405";
+                break;
+            case DESede3:
+                key = "133457799bbcdff1133457799bbcdff1133457799bbcdff1";
+                plain = "0123456789abcdef";
+                expected = "85e813540f0ab405";
+                break;
+            default:
+                return false;
+        }
+
+        try {
+            BlockCipher cipher = provider.create(algSymm);
+            byte[] block = Hex.decode(plain);
+            cipher.init(true, new KeyParameter(Hex.decode(key)));
+            cipher.processBlock(block, 0, block, 0);
+            if (!Arrays.areEqual(Hex.decode(expected), block))
+                return false;
+            cipher.init(false, new KeyParameter(Hex.decode(key)));
+            cipher.processBlock(block, 0, block, 0);
+            return Arrays.areEqual(Hex.decode(plain), block);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static List<BlockCipherProvider> builtinProviders() {
+        List<BlockCipherProvider> list = new ArrayList<>();
+        list.add(new BuiltinProvider("BC-AESEngine", EngineRegistry::isAES, a -> new AESEngine()));
+        list.add(new BuiltinProvider("BC-AESLightEngine", EngineRegistry::isAES, a -> new AESLightEngine()));
+        list.add(new BuiltinProvider(JCA_AES, EngineRegistry::isAES, a -> new JcaBlockCipher("AES", 16)));
+        list.add(new BuiltinProvider("BC-SM4Engine", a -> a == AlgSymm.SM4, a -> new SM4Engine()));
+        list.add(new BuiltinProvider("BC-DESEngine", a -> a == AlgSymm.DES, a -> new DESEngine()));
+        list.add(new BuiltinProvider("BC-DESedeEngine", a -> a == AlgSymm.DESede || a == AlgSymm.DESede3, a -> new DESedeEngine()));
+        return list;
+    }
+
+    private static boolean isAES(AlgSymm algSymm) {
+        return algSymm == AlgSymm.AES128 || algSymm == AlgSymm.AES192 || algSymm == AlgSymm.AES256;
+    }
+
+    private static final class BuiltinProvider implements BlockCipherProvider {
+        private final String name;
+        private final Predicate<AlgSymm> supports;
+        private final Function<AlgSymm, BlockCipher> factory;
+
+        BuiltinProvider(String name, Predicate<AlgSymm> supports, Function<AlgSymm, BlockCipher> factory) {
+            this.name = name;
+            this.supports = supports;
+            this.factory = factory;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean supports(AlgSymm algSymm) {
+            return supports.test(algSymm);
+        }
+
+        @Override
+        public BlockCipher create(AlgSymm algSymm) {
+            return factory.apply(algSymm);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.yy.mac;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link EngineRegistry} 的管理接口。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public interface EngineRegistryMXBean {
+    /**
+     * @return 已确定的选择，如 "SM4.small" -&gt; "BC-SM4Engine"
+     */
+    Map<String, String> getSelections();
+
+    List<String> getProviderNames();
+}
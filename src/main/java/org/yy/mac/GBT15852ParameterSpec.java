@@ -0,0 +1,70 @@
+package org.yy.mac;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * 《GBT 15852.1》MAC算法在JCA接口中使用的参数。
+ * <p>
+ * 主密钥key1通过 {@link javax.crypto.Mac#init(java.security.Key, AlgorithmParameterSpec)} 的Key传入，
+ * 这里只包含其他可选参数，含义与 {@link ParametersWithPadding} 一致。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class GBT15852ParameterSpec implements AlgorithmParameterSpec {
+    private final byte[] key2;
+    private final byte[] iv;
+    private final long length;
+    private final int macSizeInBits;
+    private int keyInduce = 1;
+
+    public GBT15852ParameterSpec(byte[] key2) {
+        this(key2, null, 0, 0);
+    }
+
+    public GBT15852ParameterSpec(byte[] key2, byte[] iv) {
+        this(key2, iv, 0, 0);
+    }
+
+    /**
+     * @param key2          输出变换中使用的密钥，可以为null
+     * @param iv            向量，可以为null
+     * @param length        输入数据的总长度，仅填充方式3时有效；0表示未知，由 {@link SpillingMac} 暂存数据
+     * @param macSizeInBits Mac的比特长度，0表示使用分组长度
+     */
+    public GBT15852ParameterSpec(byte[] key2, byte[] iv, long length, int macSizeInBits) {
+        this.key2 = key2 == null ? null : key2.clone();
+        this.iv = iv == null ? null : iv.clone();
+        this.length = length;
+        this.macSizeInBits = macSizeInBits;
+    }
+
+    /**
+     * 密钥诱导方式，参见 {@link ParametersWithPadding#setKeyInduce(int)}。
+     *
+     * @param keyInduce 0或1
+     */
+    public void setKeyInduce(int keyInduce) {
+        this.keyInduce = keyInduce;
+    }
+
+    public byte[] getKey2() {
+        return key2 == null ? null : key2.clone();
+    }
+
+    public byte[] getIV() {
+        return iv == null ? null : iv.clone();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getMacSizeInBits() {
+        return macSizeInBits;
+    }
+
+    public int getKeyInduce() {
+        return keyInduce;
+    }
+}
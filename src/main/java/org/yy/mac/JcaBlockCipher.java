@@ -0,0 +1,73 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 把JCA的 ECB/NoPadding Cipher 包装为BC的 BlockCipher。
+ * <p>
+ * 使用JDK默认的提供者，在支持的CPU上AES由JVM的内置指令实现；但每个分组都要经过一次JCA调用，
+ * 所以是否比BC的引擎快取决于CPU和消息长度，由 {@link EngineRegistry} 的校准决定。
+ * YCMac 使用本类时，连续的多个分组由 {@link BulkCbc} 以CBC模式一次计算。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+final class JcaBlockCipher implements BlockCipher {
+    private final String algorithm;
+    private final int blockSize;
+    private Cipher cipher;
+
+    JcaBlockCipher(String algorithm, int blockSize) {
+        this.algorithm = algorithm;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+        if (!(params instanceof KeyParameter))
+            throw new IllegalArgumentException("Invalid parameter passed to " + algorithm + " init - " + params.getClass().getName());
+
+        try {
+            if (cipher == null)
+                cipher = Cipher.getInstance(algorithm + "/ECB/NoPadding");
+            cipher.init(forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+                    new SecretKeySpec(((KeyParameter) params).getKey(), algorithm));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String getAlgorithmName() {
+        return algorithm;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException, IllegalStateException {
+        if (cipher == null)
+            throw new IllegalStateException(algorithm + " not initialised");
+
+        try {
+            return cipher.update(in, inOff, blockSize, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new DataLengthException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void reset() {
+    }
+}
@@ -0,0 +1,221 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每个线程独立的已初始化Mac对象缓存。
+ * <p>
+ * 以(算法, 密钥)为键，按LRU淘汰。密钥的hash仅用于分桶，命中时会比较完整的密钥，不会因hash冲突返回错误的对象。
+ * 缓存的对象只在所属线程中使用，不需要同步。
+ * <p>
+ * 命中、未命中和淘汰的计数以及所有线程的条目数通过 {@link MacCacheMXBean} 查看；修改最大条目数、{@link #flush()}
+ * 和 {@link #evict(byte[])} 对所有线程生效：各线程在下一次访问缓存时检查，不需要访问其他线程的缓存。
+ * 在此之前，空闲线程的缓存中仍保留原来的对象，但不会再被使用。
+ *
+ * @param <M> 缓存的Mac类型
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+final class MacCache<M> implements MacCacheMXBean {
+    private volatile int maxEntries;
+    private volatile int generation; //flush 的次数，线程的缓存落后时清空
+    private final List<byte[]> evicted = new ArrayList<>(); //evict 的密钥的SHA-256摘要，按调用顺序，不保存密钥本身
+    private volatile int evictedCount; //evicted 的长度，线程的缓存落后时删除其后的密钥
+    private final ThreadLocal<Local<M>> cache = ThreadLocal.withInitial(Local::new);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder size = new LongAdder();
+
+    MacCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * 查找当前线程缓存的Mac对象。
+     *
+     * @param algorithm 算法名称
+     * @param key       密钥，不会被保存
+     * @return 已初始化的Mac对象，没有时返回null
+     */
+    M get(String algorithm, byte[] key) {
+        M mac = local().get(new CacheKey(algorithm, key));
+        if (mac != null)
+            hits.increment();
+        else
+            misses.increment();
+        return mac;
+    }
+
+    /**
+     * 缓存当前线程的Mac对象。
+     *
+     * @param algorithm 算法名称
+     * @param key       密钥，会复制一份作为键
+     * @param mac       已初始化的Mac对象
+     */
+    void put(String algorithm, byte[] key, M mac) {
+        Map<CacheKey, M> map = local();
+        if (map.put(new CacheKey(algorithm, key.clone()), mac) == null)
+            size.increment();
+        Iterator<M> eldest = map.values().iterator();
+        for (int n = map.size() - maxEntries; n > 0; n--) {
+            eldest.next();
+            eldest.remove();
+            size.decrement();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * 清空当前线程的缓存。
+     */
+    void clear() {
+        Map<CacheKey, M> map = cache.get().map;
+        size.add(-map.size());
+        map.clear();
+    }
+
+    /**
+     * 删除所有线程中以该密钥初始化的对象，包括所有算法，用于单个密钥的轮换。
+     * 各线程在下一次访问缓存时删除。
+     *
+     * @param key 密钥
+     */
+    synchronized void evict(byte[] key) {
+        evicted.add(digest(key));
+        evictedCount = evicted.size();
+    }
+
+    private Map<CacheKey, M> local() {
+        Local<M> local = cache.get();
+        int current = generation;
+        if (local.generation != current) {
+            size.add(-local.map.size());
+            local.map.clear();
+            local.generation = current;
+        }
+        int count = evictedCount;
+        if (local.evicted != count) {
+            if (!local.map.isEmpty())
+                remove(local.map, local.evicted, count);
+            local.evicted = count;
+        }
+        return local.map;
+    }
+
+    /**
+     * 删除当前线程中第 from 到 to 个 evict 的密钥。只在有新的 evict 时执行，每个条目计算一次摘要。
+     */
+    private void remove(Map<CacheKey, M> map, int from, int to) {
+        List<byte[]> digests;
+        synchronized (this) {
+            digests = new ArrayList<>(evicted.subList(from, to));
+        }
+        Iterator<CacheKey> keys = map.keySet().iterator();
+        while (keys.hasNext()) {
+            byte[] digest = digest(keys.next().key);
+            for (byte[] d : digests) {
+                if (Arrays.equals(d, digest)) {
+                    keys.remove();
+                    size.decrement();
+                    break;
+                }
+            }
+        }
+    }
+
+    private static byte[] digest(byte[] key) {
+        SHA256Digest sha256 = new SHA256Digest();
+        sha256.update(key, 0, key.length);
+        byte[] digest = new byte[sha256.getDigestSize()];
+        sha256.doFinal(digest, 0);
+        return digest;
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("Max entries must be positive");
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public long getSize() {
+        return size.sum();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    @Override
+    public synchronized void flush() {
+        generation++;
+    }
+
+    private static final class Local<M> {
+        final Map<CacheKey, M> map = new LinkedHashMap<>(16, 0.75f, true);
+        int generation;
+        int evicted; //已处理的 evict 个数
+    }
+
+    private static final class CacheKey {
+        final String algorithm;
+        final byte[] key;
+        final int hash;
+
+        CacheKey(String algorithm, byte[] key) {
+            this.algorithm = algorithm;
+            this.key = key;
+            this.hash = algorithm.hashCode() * 31 + Arrays.hashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof CacheKey))
+                return false;
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash && algorithm.equals(other.algorithm) && Arrays.equals(key, other.key);
+        }
+    }
+}
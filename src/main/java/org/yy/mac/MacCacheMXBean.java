@@ -0,0 +1,45 @@
+package org.yy.mac;
+
+/**
+ * 每个线程的Mac对象缓存（{@link CMacTool} 使用）的管理接口。
+ * <p>
+ * 计数包括所有线程；条目数为所有线程的缓存条目之和。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public interface MacCacheMXBean {
+    /**
+     * @return 每个线程的最大条目数
+     */
+    int getMaxEntries();
+
+    /**
+     * 修改每个线程的最大条目数。各线程在下一次放入对象时淘汰多余的条目。
+     *
+     * @param maxEntries 最大条目数
+     */
+    void setMaxEntries(int maxEntries);
+
+    /**
+     * @return 所有线程的条目数；已结束的线程的条目仍然计入，所以是近似值
+     */
+    long getSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    /**
+     * @return 命中率，没有查找时为0
+     */
+    double getHitRate();
+
+    /**
+     * 清空所有线程的缓存，用于密钥轮换。各线程在下一次访问缓存时清空。
+     * 只轮换单个终端的密钥时使用 {@link TerminalKeyTableMXBean#evictCachedKey(long)}。
+     */
+    void flush();
+}
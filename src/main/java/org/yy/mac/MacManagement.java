@@ -0,0 +1,82 @@
+package org.yy.mac;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 在平台 MBeanServer 上注册管理接口，JMX客户端（jconsole、采集程序等）可以在运行时查看和调整。
+ * <p>
+ * {@link #registerAll()} 注册全局对象：
+ * <pre>
+ *   org.yy.mac:type=MacCache,name=CMac       {@link CMacTool#omac} 的缓存
+ *   org.yy.mac:type=MacCache,name=JcaMac     {@link CMacTool#omacJca} 的缓存
+ *   org.yy.mac:type=EngineRegistry           各算法选择的分组密码实现
+ *   org.yy.mac:type=MacMetrics               各算法的计算次数、字节数和吞吐量
+ * </pre>
+ * 终端密钥表由应用创建，通过 {@link #register(TerminalKeyTable, String)} 注册，
+ * 名称由应用指定，如 org.yy.mac:type=TerminalKeyTable,name="pos"。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class MacManagement {
+    public static final String DOMAIN = "org.yy.mac";
+
+    private MacManagement() {
+    }
+
+    /**
+     * 注册全局对象。已注册的对象不再重复注册。
+     */
+    public static synchronized void registerAll() {
+        register(CMacTool.getCMacCache(), name("MacCache", "CMac"));
+        register(CMacTool.getJcaMacCache(), name("MacCache", "JcaMac"));
+        register(EngineRegistry.getInstance(), name("EngineRegistry", null));
+        register(MacMetrics.getInstance(), name("MacMetrics", null));
+    }
+
+    /**
+     * @param table 终端密钥表
+     * @param name  名称
+     * @return 注册的名称，用于 {@link #unregister(ObjectName)}
+     */
+    public static ObjectName register(TerminalKeyTable table, String name) {
+        return register(table, name("TerminalKeyTable", ObjectName.quote(name)));
+    }
+
+    /**
+     * 注销。名称未注册时忽略。
+     *
+     * @param name 注册的名称
+     */
+    public static void unregister(ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to unregister " + name, e);
+        }
+    }
+
+    private static synchronized ObjectName register(Object mbean, ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (!server.isRegistered(name))
+                server.registerMBean(mbean, name);
+            return name;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register " + name, e);
+        }
+    }
+
+    private static ObjectName name(String type, String name) {
+        try {
+            return new ObjectName(DOMAIN + ":type=" + type + (name == null ? "" : ",name=" + name));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Invalid MBean name " + name, e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.yy.mac;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MAC计算的统计：按分组密码记录计算的MAC数和字节数。
+ * <p>
+ * 由 {@link YCMac#doFinal} 记录，默认关闭，关闭时只多读一个 volatile 变量。每个消息的结果只计一次：
+ * {@link MacSession#getChainValue()} 的中间结果不计入，{@link CMac56}、{@link MultiAlgMac} 和 {@link MultiKeyMac}
+ * 的一个消息计一次，字节数为消息长度。
+ * 可以通过系统属性 org.yy.mac.metrics=true 在启动时打开，或通过JMX（{@link MacManagement}）在运行时打开和关闭。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class MacMetrics implements MacMetricsMXBean {
+    private static final MacMetrics INSTANCE = new MacMetrics();
+
+    static volatile boolean enabled = Boolean.getBoolean("org.yy.mac.metrics");
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private volatile long since = System.nanoTime();
+
+    private MacMetrics() {
+    }
+
+    public static MacMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 记录一次计算。
+     *
+     * @param cipherName 分组密码名称
+     * @param bytes      消息长度
+     */
+    static void record(String cipherName, long bytes) {
+        Counter counter = INSTANCE.counters.computeIfAbsent(cipherName, k -> new Counter());
+        counter.operations.increment();
+        counter.bytes.add(bytes);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        MacMetrics.enabled = enabled;
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((k, v) -> result.put(k, v.operations.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getByteCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((k, v) -> result.put(k, v.bytes.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getThroughput() {
+        double seconds = Math.max(1, System.nanoTime() - since) / 1e9;
+        Map<String, Double> result = new TreeMap<>();
+        counters.forEach((k, v) -> result.put(k, v.bytes.sum() / seconds));
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        for (Counter counter : counters.values()) {
+            counter.operations.reset();
+            counter.bytes.reset();
+        }
+        since = System.nanoTime();
+    }
+
+    private static final class Counter {
+        final LongAdder operations = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+}
@@ -0,0 +1,40 @@
+package org.yy.mac;
+
+import java.util.Map;
+
+/**
+ * {@link MacMetrics} 的管理接口。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public interface MacMetricsMXBean {
+    boolean isEnabled();
+
+    /**
+     * 打开或关闭统计，关闭时 {@link YCMac#doFinal} 不记录。
+     *
+     * @param enabled 是否统计
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return 分组密码名称到计算的MAC数
+     */
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * @return 分组密码名称到计算的字节数
+     */
+    Map<String, Long> getByteCounts();
+
+    /**
+     * @return 分组密码名称到上次清零以来每秒的平均字节数
+     */
+    Map<String, Double> getThroughput();
+
+    /**
+     * 计数清零。
+     */
+    void reset();
+}
@@ -0,0 +1,503 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.util.Arrays;
+
+/**
+ * 《GBT 15852.1》MAC算法的执行计划。
+ * <p>
+ * 由 {@link ParametersWithPadding} 编译而来：密钥诱导在编译时完成，初始变换、消息填充、最终迭代、输出变换和截断操作
+ * 分别编译为专用的步骤对象，计算时不再按参数分支。执行计划不可变，不修改 ParametersWithPadding，
+ * 可以在多个线程的 {@link YCMac} 之间共享（每个YCMac使用自己的分组密码对象）。
+ * <p>
+ * 执行计划可以作为 {@link YCMac#init(CipherParameters)} 的参数，此时不再进行密钥诱导。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class MacPlan implements CipherParameters {
+    final int typeAlg;
+    final int typePad;
+    final int blockSize;
+    final String cipherName; //编译时使用的分组密码名称
+
+    final KeyParameter chainKey; //迭代时使用的密钥，即密钥诱导之后的key1
+    final byte[] iv; //初始链接值，未设置时为全0
+    final byte[] prefix; //填充方式3在开头添加的长度分组，其他填充方式为null
+    final long length; //填充方式3声明的消息长度，其他填充方式为-1
+    final boolean rekeys; //最终迭代或输出变换是否更换了分组密码的密钥，计算结束后需要恢复为chainKey
+
+    final FirstBlock firstBlock; //4.初始变换
+    final Padding padding; //2.消息填充
+    final LastIteration lastIteration; //6.最终迭代
+    final OutTransform outTransform; //7.输出变换
+    final Truncation truncation; //8.截断操作
+
+    private MacPlan(ParametersWithPadding parameters, BlockCipher cipher) {
+        typeAlg = parameters.typeAlg;
+        typePad = parameters.typePad;
+        blockSize = cipher.getBlockSize();
+        cipherName = cipher.getAlgorithmName();
+        iv = parameters.iv != null ? parameters.iv.clone() : new byte[blockSize];
+
+        //1.密钥诱导。与之前的实现一致，在以key1和IV初始化的CBC模式下进行
+        CBCBlockCipher cbc = new CBCBlockCipher(cipher);
+        cbc.init(true, parameters.getParameters());
+        YCMac.KeyInduce keyInduce = new YCMac.KeyInduce(cbc);
+
+        byte[] key1 = parameters.key1;
+        byte[] key2 = parameters.key2;
+        byte[] K1 = null; //用在初始变换2或最终迭代3中的密钥
+        byte[] K2 = null; //用在最终迭代2/3中的密钥
+
+        if (typeAlg == 2) {
+            //如果没有提供key2，则需要生成。
+            //为了兼容2008，通过keyInduce参数决定密钥生成方式。0表示使用2008标准中的密钥诱导；1表示使用2020标准中的密钥诱导1。
+            if (key2 == null) {
+                if (parameters.keyInduce == 0)
+                    key2 = keyInduce.induce0(key1);
+                else {
+                    keyInduce.induce1(key1.length);
+                    key1 = keyInduce.K1;
+                    key2 = keyInduce.K2;
+                }
+            }
+        } else if (typeAlg == 4) {
+            //需要生成初始变换2的密钥K1：如果提供了key2，则用2008标准中的密钥诱导生成K1；
+            //如果没有提供key2，则需用密钥诱导1生成K1，以及要在输出变换2中使用的密钥key2
+            if (key2 != null)
+                K1 = keyInduce.induce0(key2);
+            else {
+                keyInduce.induce1(key1.length);
+                key2 = keyInduce.K1;
+                K1 = keyInduce.K2;
+            }
+        } else if (typeAlg == 5) {
+            //最终迭代3中的两个密钥用密钥诱导2生成；分别放在K1和K2中
+            keyInduce.induce2();
+            K1 = keyInduce.K1;
+            K2 = keyInduce.K2;
+        } else if (typeAlg == 6) {
+            //当只提供一个密钥时，需用密钥诱导1生成所需的两个密钥。用于最终迭代2的密钥放在K2中
+            if (key2 == null) {
+                keyInduce.induce1(key1.length);
+                key1 = keyInduce.K1;
+                K2 = keyInduce.K2;
+            } else
+                K2 = key2;
+        }
+
+        chainKey = new KeyParameter(key1);
+        cipher.init(true, chainKey);
+
+        switch (parameters.transformInit) {
+            case 2:
+                firstBlock = new KeyedFirstBlock(new KeyParameter(K1), chainKey);
+                break;
+            case 3: {
+                //初始变换3：D1 ^ E(IV) ^ IV，掩码在编译时计算
+                byte[] mask = new byte[blockSize];
+                cipher.processBlock(iv, 0, mask, 0);
+                YCMac.xor(mask, iv);
+                firstBlock = new MaskedFirstBlock(mask);
+                break;
+            }
+            default:
+                firstBlock = new PlainFirstBlock();
+        }
+
+        switch (typePad) {
+            case 2:
+                padding = new Padding2();
+                break;
+            case 4:
+                padding = new Padding4();
+                break;
+            default:
+                padding = new Padding1();
+        }
+
+        switch (parameters.lastIteration) {
+            case 2:
+                lastIteration = new LastIteration2(new KeyParameter(K2));
+                break;
+            case 3:
+                lastIteration = new LastIteration3(K1, K2);
+                break;
+            case 4:
+                lastIteration = new LastIteration4(iv);
+                break;
+            default:
+                lastIteration = new LastIteration1();
+        }
+
+        switch (parameters.transformOut) {
+            case 2:
+                outTransform = new OutTransform2(new KeyParameter(key2));
+                break;
+            case 3:
+                outTransform = new OutTransform3(new KeyParameter(key2), chainKey);
+                break;
+            default:
+                outTransform = null;
+        }
+
+        truncation = parameters.truncate == 2 ? new Truncation2() : new Truncation1();
+
+        rekeys = parameters.lastIteration == 2 || outTransform != null;
+
+        if (typePad == 3) {
+            //填充方式3：在开头添加的填充块，64位的比特长度
+            if (parameters.length < 0 || parameters.length > Long.MAX_VALUE / 8)
+                throw new IllegalArgumentException("Invalid message length for padding 3: " + parameters.length);
+            prefix = new byte[blockSize];
+            PaddingWriter.writeHeader(3, parameters.length, blockSize, prefix, 0);
+            length = parameters.length;
+        } else {
+            prefix = null;
+            length = -1;
+        }
+    }
+
+    /**
+     * 填充方式3的执行计划换用另一个消息长度，其他步骤与原计划共享。
+     */
+    private MacPlan(MacPlan plan, long length) {
+        typeAlg = plan.typeAlg;
+        typePad = plan.typePad;
+        blockSize = plan.blockSize;
+        cipherName = plan.cipherName;
+        chainKey = plan.chainKey;
+        iv = plan.iv;
+        rekeys = plan.rekeys;
+        firstBlock = plan.firstBlock;
+        padding = plan.padding;
+        lastIteration = plan.lastIteration;
+        outTransform = plan.outTransform;
+        truncation = plan.truncation;
+
+        prefix = new byte[blockSize];
+        PaddingWriter.writeHeader(3, length, blockSize, prefix, 0);
+        this.length = length;
+    }
+
+    /**
+     * 编译执行计划。
+     * <p>
+     * 编译过程中会使用 cipher 进行密钥诱导，结束时 cipher 以迭代密钥初始化。
+     *
+     * @param parameters 算法参数，不会被修改
+     * @param cipher     底层分组密码，必须与使用此计划的YCMac的分组密码同类
+     * @return 执行计划
+     */
+    public static MacPlan compile(ParametersWithPadding parameters, BlockCipher cipher) {
+        return new MacPlan(parameters, cipher);
+    }
+
+    public int getAlgorithm() {
+        return typeAlg;
+    }
+
+    public int getPadding() {
+        return typePad;
+    }
+
+    /**
+     * 两个执行计划的 update 阶段是否完全相同：同一种分组密码和迭代密钥、相同的初始链接值和填充3的长度分组，
+     * 初始变换都是直接迭代。这时两者只在填充、最终迭代、输出变换和截断上不同，可以共享一次迭代，
+     * 如算法1、2、3、5、7使用同一个key1时。
+     *
+     * @param other 另一个执行计划
+     * @return 是否可以共享迭代
+     */
+    boolean sharesChain(MacPlan other) {
+        return cipherName.equals(other.cipherName) && blockSize == other.blockSize
+                && firstBlock instanceof PlainFirstBlock && other.firstBlock instanceof PlainFirstBlock
+                && Arrays.equals(chainKey.getKey(), other.chainKey.getKey())
+                && Arrays.equals(iv, other.iv) && Arrays.equals(prefix, other.prefix);
+    }
+
+    /**
+     * @return 填充方式3声明的消息长度，其他填充方式为-1
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * 填充方式3：声明另一个消息长度的执行计划，不重新进行密钥诱导。用于在输入全部数据之后才知道长度的情况。
+     *
+     * @param length 消息长度
+     * @return 执行计划，长度相同时返回自身
+     */
+    MacPlan withLength(long length) {
+        if (prefix == null)
+            throw new IllegalStateException("Only padding 3 declares the message length");
+        if (length < 0 || length > Long.MAX_VALUE / 8)
+            throw new IllegalArgumentException("Invalid message length for padding 3: " + length);
+        return length == this.length ? this : new MacPlan(this, length);
+    }
+
+    /**
+     * 初始变换，处理第一个分组。
+     */
+    abstract static class FirstBlock {
+        abstract void process(YCMac mac);
+    }
+
+    /**
+     * 初始变换1：直接迭代。
+     */
+    static final class PlainFirstBlock extends FirstBlock {
+        @Override
+        void process(YCMac mac) {
+            mac.chainBlock(mac.buf, 0);
+        }
+    }
+
+    /**
+     * 初始变换2：使用子密钥加密后再使用原密钥进行后续加密。
+     */
+    static final class KeyedFirstBlock extends FirstBlock {
+        private final KeyParameter K1;
+        private final KeyParameter chainKey;
+
+        KeyedFirstBlock(KeyParameter K1, KeyParameter chainKey) {
+            this.K1 = K1;
+            this.chainKey = chainKey;
+        }
+
+        @Override
+        void process(YCMac mac) {
+            mac.chainBlock(mac.buf, 0);
+            mac.cipher.init(true, K1);
+            mac.cipher.processBlock(mac.mac, 0, mac.mac, 0);
+            mac.cipher.init(true, chainKey);
+        }
+    }
+
+    /**
+     * 初始变换3：第一个分组与 E(IV)^IV 异或后加密。
+     */
+    static final class MaskedFirstBlock extends FirstBlock {
+        private final byte[] mask;
+
+        MaskedFirstBlock(byte[] mask) {
+            this.mask = mask;
+        }
+
+        @Override
+        void process(YCMac mac) {
+            byte[] chain = mac.mac;
+            byte[] buf = mac.buf;
+            for (int i = 0; i < chain.length; i++)
+                chain[i] = (byte) (buf[i] ^ mask[i]);
+            mac.cipher.processBlock(chain, 0, chain, 0);
+        }
+    }
+
+    /**
+     * 消息填充，填充最后一个分组。
+     */
+    abstract static class Padding {
+        abstract void pad(YCMac mac);
+    }
+
+    /**
+     * 填充方式1和3：不足一个分组时补0。
+     */
+    static final class Padding1 extends Padding {
+        @Override
+        void pad(YCMac mac) {
+            Arrays.fill(mac.buf, mac.bufOff, mac.buf.length, (byte) 0);
+        }
+    }
+
+    /**
+     * 填充方式2：总是添加0x80，最后一个分组已满时增加一个分组。
+     */
+    static final class Padding2 extends Padding {
+        @Override
+        void pad(YCMac mac) {
+            if (mac.bufOff == mac.buf.length) {
+                mac.processBuffer();
+                mac.bufOff = 0;
+            }
+            mac.buf[mac.bufOff] = (byte) 0x80;
+            Arrays.fill(mac.buf, mac.bufOff + 1, mac.buf.length, (byte) 0);
+        }
+    }
+
+    /**
+     * 填充方式4：最后一个分组不满时添加0x80。
+     */
+    static final class Padding4 extends Padding {
+        @Override
+        void pad(YCMac mac) {
+            if (mac.bufOff != mac.buf.length) {
+                mac.buf[mac.bufOff] = (byte) 0x80;
+                Arrays.fill(mac.buf, mac.bufOff + 1, mac.buf.length, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * 最终迭代。
+     */
+    abstract static class LastIteration {
+        /**
+         * @param mac      计算对象
+         * @param complete 最后一个分组是否完整（未填充）
+         */
+        abstract void process(YCMac mac, boolean complete);
+    }
+
+    /**
+     * 最终迭代1：直接迭代。
+     */
+    static final class LastIteration1 extends LastIteration {
+        @Override
+        void process(YCMac mac, boolean complete) {
+            mac.chainBlock(mac.buf, 0);
+        }
+    }
+
+    /**
+     * 最终迭代2：与最后一个分组异或后使用K2加密。
+     */
+    static final class LastIteration2 extends LastIteration {
+        private final KeyParameter K2;
+
+        LastIteration2(KeyParameter K2) {
+            this.K2 = K2;
+        }
+
+        @Override
+        void process(YCMac mac, boolean complete) {
+            YCMac.xor(mac.mac, mac.buf);
+            mac.cipher.init(true, K2);
+            mac.cipher.processBlock(mac.mac, 0, mac.mac, 0);
+        }
+    }
+
+    /**
+     * 最终迭代3：最后一个分组与K1（完整）或K2（已填充）异或后迭代。
+     */
+    static final class LastIteration3 extends LastIteration {
+        private final byte[] K1;
+        private final byte[] K2;
+
+        LastIteration3(byte[] K1, byte[] K2) {
+            this.K1 = K1;
+            this.K2 = K2;
+        }
+
+        @Override
+        void process(YCMac mac, boolean complete) {
+            YCMac.xor(mac.buf, complete ? K1 : K2);
+            mac.chainBlock(mac.buf, 0);
+        }
+    }
+
+    /**
+     * 最终迭代4：与最后一个分组异或，完整时循环右移、已填充时左移，再与IV异或后加密。
+     */
+    static final class LastIteration4 extends LastIteration {
+        private final byte[] iv;
+
+        LastIteration4(byte[] iv) {
+            this.iv = iv;
+        }
+
+        @Override
+        void process(YCMac mac, boolean complete) {
+            byte[] chain = mac.mac;
+            byte[] temp = mac.buf; //缓冲区已不再需要，用作临时空间
+            YCMac.xor(chain, temp);
+            if (complete)
+                YCMac.shiftRight(chain, temp);
+            else
+                YCMac.shiftLeft(chain, temp);
+            for (int i = 0; i < chain.length; i++)
+                chain[i] = (byte) (temp[i] ^ iv[i]);
+            mac.cipher.processBlock(chain, 0, chain, 0);
+        }
+    }
+
+    /**
+     * 输出变换。输出变换1不需要处理，对应的步骤为null。
+     */
+    abstract static class OutTransform {
+        abstract void process(YCMac mac);
+    }
+
+    /**
+     * 输出变换2：使用key2再加密一次。
+     */
+    static final class OutTransform2 extends OutTransform {
+        private final KeyParameter key2;
+
+        OutTransform2(KeyParameter key2) {
+            this.key2 = key2;
+        }
+
+        @Override
+        void process(YCMac mac) {
+            mac.cipher.init(true, key2);
+            mac.cipher.processBlock(mac.mac, 0, mac.mac, 0);
+        }
+    }
+
+    /**
+     * 输出变换3：使用key2解密后再使用key1加密。
+     */
+    static final class OutTransform3 extends OutTransform {
+        private final KeyParameter key2;
+        private final KeyParameter key1;
+
+        OutTransform3(KeyParameter key2, KeyParameter key1) {
+            this.key2 = key2;
+            this.key1 = key1;
+        }
+
+        @Override
+        void process(YCMac mac) {
+            byte[] chain = mac.mac;
+            mac.cipher.init(false, key2);
+            mac.cipher.processBlock(chain, 0, chain, 0);
+            mac.cipher.init(true, key1);
+            mac.cipher.processBlock(chain, 0, chain, 0);
+        }
+    }
+
+    /**
+     * 截断操作。
+     */
+    abstract static class Truncation {
+        abstract void truncate(byte[] chain, int macSize, byte[] out, int outOff, boolean complete);
+    }
+
+    /**
+     * 截断操作1：取最左边的比特。
+     */
+    static final class Truncation1 extends Truncation {
+        @Override
+        void truncate(byte[] chain, int macSize, byte[] out, int outOff, boolean complete) {
+            System.arraycopy(chain, 0, out, outOff, macSize);
+        }
+    }
+
+    /**
+     * 截断操作2：最后一个分组已填充时取最右边的比特。
+     */
+    static final class Truncation2 extends Truncation {
+        @Override
+        void truncate(byte[] chain, int macSize, byte[] out, int outOff, boolean complete) {
+            System.arraycopy(chain, complete ? 0 : chain.length - macSize, out, outOff, macSize);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.CipherParameters;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 分段计算MAC的会话。
+ * <p>
+ * {@link CMacTool#cmac(AlgSymm, byte[], byte[], byte[])} 通过把结果写回 iv 实现分段计算，每一段都要重新创建和初始化
+ * YCMac；会话在整个消息期间保持同一个已初始化的 YCMac，每段只是一次 update。
+ * 需要中间结果（即写回的 iv）时调用 {@link #getChainValue()}，它在内部副本上完成最后一步，不影响后续的 update，
+ * 也不需要重新初始化。与写回 iv 的方式相同，除最后一段外，每段的长度应为分组长度的整数倍。
+ * <p>
+ * 所有方法都是同步的，会话可以在线程之间传递，例如每段由线程池中不同的线程处理。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class MacSession {
+    private final YCMac mac;
+    private final YCMac peek; //计算中间结果的副本
+    private long length;
+
+    /**
+     * 与 {@link CMacTool#cmac(AlgSymm, byte[], byte[], byte[])} 相同的算法1和填充1。
+     *
+     * @param algSymm 对称算法
+     * @param key     密钥
+     * @param iv      向量，可以为null
+     */
+    public MacSession(AlgSymm algSymm, byte[] key, byte[] iv) {
+        this(algSymm, new ParametersWithPadding(key, null, iv, 1, 1, 0));
+    }
+
+    /**
+     * @param algSymm 对称算法
+     * @param params  {@link ParametersWithPadding} 或 {@link MacPlan}
+     */
+    public MacSession(AlgSymm algSymm, CipherParameters params) {
+        mac = new YCMac(CMacTool.getBlockCipher(algSymm));
+        mac.init(params);
+        peek = new YCMac(CMacTool.getBlockCipher(algSymm));
+        peek.init(mac.getPlan());
+        peek.metered = false;
+    }
+
+    public int getMacSize() {
+        return mac.getMacSize();
+    }
+
+    /**
+     * @return 当前消息已输入的字节数
+     */
+    public synchronized long getLength() {
+        return length;
+    }
+
+    public synchronized void update(byte[] in, int inOff, int len) {
+        mac.update(in, inOff, len);
+        length += len;
+    }
+
+    public synchronized void update(ByteBuffer in) {
+        int len = in.remaining();
+        mac.update(in);
+        length += len;
+    }
+
+    /**
+     * 当前的中间结果：对已输入的数据执行 doFinal 得到的值，即 CMacTool.cmac 分段计算时写回 iv 的值。
+     * 不改变会话的状态。填充3只能在输入全部数据之后调用。
+     * <p>
+     * 每次调用多一次分组加密（最后一个分组在副本上加密，之后的 update 还会再处理一次），
+     * 所以每段只有一个分组时开销约为一次计算的两倍，每段较长时可以忽略。
+     *
+     * @return 中间结果
+     */
+    public synchronized byte[] getChainValue() {
+        byte[] out = new byte[mac.getMacSize()];
+        getChainValue(out, 0);
+        return out;
+    }
+
+    /**
+     * 同 {@link #getChainValue()}，输出到调用者的数组。
+     *
+     * @param out    [out] 中间结果
+     * @param outOff 写入位置
+     * @return 长度
+     */
+    public synchronized int getChainValue(byte[] out, int outOff) {
+        mac.copyState(peek);
+        return peek.doFinal(out, outOff);
+    }
+
+    /**
+     * 结束当前消息，会话恢复到初始状态，可以计算下一个消息。
+     *
+     * @param out    [out] MAC
+     * @param outOff 写入位置
+     * @return MAC长度
+     */
+    public synchronized int doFinal(byte[] out, int outOff) {
+        length = 0;
+        return mac.doFinal(out, outOff);
+    }
+
+    public synchronized byte[] doFinal() {
+        byte[] out = new byte[mac.getMacSize()];
+        doFinal(out, 0);
+        return out;
+    }
+
+    public synchronized void reset() {
+        length = 0;
+        mac.reset();
+    }
+}
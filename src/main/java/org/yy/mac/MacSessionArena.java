@@ -0,0 +1,373 @@
+package org.yy.mac;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 堆外的流式MAC会话表。
+ * <p>
+ * 每个长连接保持一个 {@link YCMac} 时，每个会话都有自己的分组密码、CBC对象、缓冲区和参数，占用几百字节到几KB的堆内存。
+ * 这里每个会话只占用直接内存中一个64字节的槽位，保存链接值、未处理的分组、偏移和终端密钥的槽位号，
+ * 密钥和轮密钥只在 {@link TerminalKeyTable} 中保存一份；计算由少量 {@link Engine} 完成，每个线程一个，
+ * 按会话句柄读写槽位。百万个会话只占64MB直接内存，不增加GC的负担，计算过程也不分配对象。
+ * <p>
+ * 支持的算法与 {@link TerminalKeyTable.Engine} 相同：GB/T 15852.1的算法1（填充1或2）和算法5（填充4，即CMAC），
+ * IV为0，MAC长度为16字节，结果与相同参数的 {@link YCMac} 相同。
+ * <p>
+ * {@link #open} 和 {@link #close} 是同步的。同一个会话不能在多个线程中同时计算，会话在线程之间传递时由调用者保证可见性
+ * （如通过线程池提交）；不同的会话可以并发计算。会话使用终端密钥表中的密钥，密钥表的修改不能与计算同时进行；
+ * 终端被删除后，它的会话的计算失败；终端的密钥被替换后（{@link TerminalKeyTable#put} 或 {@link TerminalKeyTable#load}，
+ * 新的密钥可能在另一个槽位中），会话之后的计算使用新的密钥，所以应在两个消息之间替换。
+ * <p>
+ * 槽位布局：
+ * <pre>
+ *   0   终端号(8)  密钥槽位号(4)  代数(4)
+ *  16   链接值(16)，空闲时为下一个空闲槽位
+ *  32   未处理的分组(16)
+ *  48   已输入的字节数(8)
+ *  56   算法(1)  填充方式(1)  分组偏移(1)  状态(1)  保留(4)
+ * </pre>
+ * 句柄的高32位为代数，低32位为槽位号；槽位关闭时代数加一，所以已关闭的句柄不会误用重新分配的槽位。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class MacSessionArena {
+    /**
+     * 每个会话的字节数
+     */
+    public static final int SLOT_SIZE = 64;
+    /**
+     * 最多的会话数（64GB）
+     */
+    public static final int MAX_CAPACITY = 1 << 30;
+
+    private static final int SEGMENT_SHIFT = 24; //每段 2^24 个会话，1GB
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private static final int TERMINAL = 0;
+    private static final int KEY_SLOT = 8;
+    private static final int GENERATION = 12;
+    private static final int CHAIN = 16;
+    private static final int PARTIAL = 32;
+    private static final int LENGTH = 48;
+    private static final int TYPE_ALG = 56;
+    private static final int TYPE_PAD = 57;
+    private static final int BUF_OFF = 58;
+    private static final int STATE = 59;
+
+    private final TerminalKeyTable keys;
+    private final int capacity;
+    private final ByteBuffer[] segments;
+    private int nextIndex; //未使用过的第一个槽位
+    private int freeHead = -1; //关闭后空闲的槽位链表
+    private int size;
+
+    /**
+     * @param keys     终端密钥表
+     * @param capacity 最多同时打开的会话数
+     */
+    public MacSessionArena(TerminalKeyTable keys, int capacity) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Capacity must be 1 to " + MAX_CAPACITY);
+
+        this.keys = keys;
+        this.capacity = capacity;
+        int segmentCount = ((capacity - 1) >>> SEGMENT_SHIFT) + 1;
+        this.segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            int slots = Math.min(1 << SEGMENT_SHIFT, capacity - (i << SEGMENT_SHIFT));
+            segments[i] = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 打开的会话数
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return 槽位占用的直接内存字节数
+     */
+    public long getMemorySize() {
+        return (long) capacity * SLOT_SIZE;
+    }
+
+    /**
+     * 打开一个会话。
+     *
+     * @param terminalId 终端号
+     * @param typeAlg    MAC算法：1或5
+     * @param typePad    填充方式：算法1为1或2，算法5为4
+     * @return 会话句柄
+     * @throws IllegalArgumentException 终端不存在，或算法和填充方式不支持
+     * @throws IllegalStateException    会话数已达到上限
+     */
+    public synchronized long open(long terminalId, int typeAlg, int typePad) {
+        if (!(typeAlg == 1 && (typePad == 1 || typePad == 2)) && !(typeAlg == 5 && typePad == 4))
+            throw new IllegalArgumentException("Unsupported MAC algorithm " + typeAlg + " with padding " + typePad);
+        int keySlot = keys.slotOf(terminalId);
+        if (keySlot < 0)
+            throw new IllegalArgumentException("Unknown terminal " + terminalId);
+
+        int index;
+        if (freeHead >= 0) {
+            index = freeHead;
+            freeHead = segment(index).getInt(offset(index) + CHAIN);
+        } else if (nextIndex < capacity)
+            index = nextIndex++;
+        else
+            throw new IllegalStateException("Session arena is full");
+
+        ByteBuffer segment = segment(index);
+        int base = offset(index);
+        clear(segment, base, CHAIN, SLOT_SIZE);
+        segment.putLong(base + TERMINAL, terminalId);
+        segment.putInt(base + KEY_SLOT, keySlot);
+        segment.put(base + TYPE_ALG, (byte) typeAlg);
+        segment.put(base + TYPE_PAD, (byte) typePad);
+        segment.put(base + STATE, (byte) 1);
+        size++;
+        return ((long) segment.getInt(base + GENERATION) << 32) | index;
+    }
+
+    /**
+     * 关闭会话，清零槽位。之后句柄不能再使用。
+     *
+     * @param session 会话句柄
+     */
+    public synchronized void close(long session) {
+        int index = check(session);
+        ByteBuffer segment = segment(index);
+        int base = offset(index);
+        clear(segment, base, TERMINAL, GENERATION);
+        clear(segment, base, CHAIN, SLOT_SIZE);
+        segment.putInt(base + GENERATION, segment.getInt(base + GENERATION) + 1);
+        segment.putInt(base + CHAIN, freeHead);
+        freeHead = index;
+        size--;
+    }
+
+    /**
+     * 放弃当前的消息，恢复到打开时的状态。
+     *
+     * @param session 会话句柄
+     */
+    public void reset(long session) {
+        int index = check(session);
+        ByteBuffer segment = segment(index);
+        int base = offset(index);
+        clear(segment, base, CHAIN, TYPE_ALG);
+        segment.put(base + BUF_OFF, (byte) 0);
+    }
+
+    /**
+     * @param session 会话句柄
+     * @return 当前消息已输入的字节数
+     */
+    public long getLength(long session) {
+        int index = check(session);
+        return segment(index).getLong(offset(index) + LENGTH);
+    }
+
+    /**
+     * 创建计算对象。计算对象只能在一个线程中使用，每个线程创建一个，可以计算所有的会话。
+     *
+     * @return 计算对象
+     */
+    public Engine newEngine() {
+        return new Engine();
+    }
+
+    /**
+     * @return 槽位号
+     * @throws IllegalArgumentException 句柄无效，或会话已关闭
+     */
+    private int check(long session) {
+        int index = (int) session;
+        if (index < 0 || index >= capacity)
+            throw new IllegalArgumentException("Invalid session " + session);
+        ByteBuffer segment = segment(index);
+        int base = offset(index);
+        if (segment.get(base + STATE) != 1 || segment.getInt(base + GENERATION) != (int) (session >>> 32))
+            throw new IllegalArgumentException("Session " + session + " is closed");
+        return index;
+    }
+
+    private ByteBuffer segment(int index) {
+        return segments[index >>> SEGMENT_SHIFT];
+    }
+
+    private static int offset(int index) {
+        return (index & SEGMENT_MASK) * SLOT_SIZE;
+    }
+
+    private static void clear(ByteBuffer segment, int base, int from, int to) {
+        for (int i = from; i < to; i += 4)
+            segment.putInt(base + i, 0);
+    }
+
+    /**
+     * 按句柄计算会话的MAC。
+     */
+    public final class Engine {
+        private final int[] s = new int[4];
+        private final byte[] chunk = new byte[256]; //读取直接缓冲区
+
+        private Engine() {
+        }
+
+        /**
+         * 输入数据。最后一个完整的分组留在槽位中，到 doFinal 时处理。
+         *
+         * @param session 会话句柄
+         * @param in      数据
+         * @param inOff   数据起始位置
+         * @param len     数据长度
+         * @throws IllegalArgumentException 句柄无效，或会话已关闭
+         * @throws IllegalStateException    终端已被删除
+         */
+        public void update(long session, byte[] in, int inOff, int len) {
+            if (len < 0)
+                throw new IllegalArgumentException("Can't have a negative input length!");
+            int index = check(session);
+            ByteBuffer segment = segment(index);
+            int base = offset(index);
+            int keySlot = keySlot(segment, base);
+            if (len == 0)
+                return;
+
+            int[] s = load(segment, base);
+            int bufOff = segment.get(base + BUF_OFF);
+            int end = inOff + len;
+            while (inOff < end) {
+                if (bufOff == 16) {
+                    for (int w = 0; w < 4; w++)
+                        s[w] ^= segment.getInt(base + PARTIAL + 4 * w);
+                    keys.encrypt(keySlot, s);
+                    bufOff = 0;
+                }
+                if (bufOff == 0) {
+                    //完整的分组直接处理，不经过槽位；至少留下一个字节
+                    for (; end - inOff > 16; inOff += 16) {
+                        s[0] ^= SlotCipher.getInt(in, inOff);
+                        s[1] ^= SlotCipher.getInt(in, inOff + 4);
+                        s[2] ^= SlotCipher.getInt(in, inOff + 8);
+                        s[3] ^= SlotCipher.getInt(in, inOff + 12);
+                        keys.encrypt(keySlot, s);
+                    }
+                }
+                int n = Math.min(16 - bufOff, end - inOff);
+                for (int i = 0; i < n; i++)
+                    segment.put(base + PARTIAL + bufOff + i, in[inOff + i]);
+                bufOff += n;
+                inOff += n;
+            }
+
+            store(segment, base, s);
+            segment.put(base + BUF_OFF, (byte) bufOff);
+            segment.putLong(base + LENGTH, segment.getLong(base + LENGTH) + len);
+        }
+
+        /**
+         * 输入 in 中 position 到 limit 之间的数据，处理后 position 等于 limit。
+         *
+         * @param session 会话句柄
+         * @param in      数据
+         */
+        public void update(long session, ByteBuffer in) {
+            if (in.hasArray()) {
+                update(session, in.array(), in.arrayOffset() + in.position(), in.remaining());
+                in.position(in.limit());
+                return;
+            }
+            check(session);
+            while (in.hasRemaining()) {
+                int n = Math.min(in.remaining(), chunk.length);
+                in.get(chunk, 0, n);
+                update(session, chunk, 0, n);
+            }
+        }
+
+        /**
+         * 完成当前消息的计算，会话恢复到打开时的状态，可以继续计算下一个消息。
+         *
+         * @param session 会话句柄
+         * @param out     [out] MAC
+         * @param outOff  MAC的写入位置
+         * @return MAC长度
+         * @throws IllegalArgumentException 句柄无效，或会话已关闭
+         * @throws IllegalStateException    终端已被删除
+         */
+        public int doFinal(long session, byte[] out, int outOff) {
+            int index = check(session);
+            ByteBuffer segment = segment(index);
+            int base = offset(index);
+            int keySlot = keySlot(segment, base);
+            int typeAlg = segment.get(base + TYPE_ALG);
+            int typePad = segment.get(base + TYPE_PAD);
+            int[] s = load(segment, base);
+            int rem = segment.get(base + BUF_OFF);
+
+            //填充2总是填充，留下的完整分组先处理
+            if (typePad == 2 && rem == 16) {
+                for (int w = 0; w < 4; w++)
+                    s[w] ^= segment.getInt(base + PARTIAL + 4 * w);
+                keys.encrypt(keySlot, s);
+                rem = 0;
+            }
+            int pad = typePad == 1 ? 0 : 0x80;
+            for (int w = 0; w < 4; w++) {
+                int word = 0;
+                for (int j = 4 * w; j < 4 * w + 4; j++) {
+                    int b = j < rem ? segment.get(base + PARTIAL + j) & 0xff : j == rem ? pad : 0;
+                    word = (word << 8) | b;
+                }
+                if (typeAlg == 5)
+                    word ^= keys.getSubkey(keySlot, rem == 16, w);
+                s[w] ^= word;
+            }
+            keys.encrypt(keySlot, s);
+
+            for (int w = 0; w < 4; w++)
+                SlotCipher.putInt(s[w], out, outOff + 4 * w);
+            s[0] = s[1] = s[2] = s[3] = 0;
+            clear(segment, base, CHAIN, TYPE_ALG);
+            segment.put(base + BUF_OFF, (byte) 0);
+            return 16;
+        }
+
+        /**
+         * @return 终端密钥的槽位号；密钥被替换到另一个槽位时重新查找并保存
+         */
+        private int keySlot(ByteBuffer segment, int base) {
+            long terminalId = segment.getLong(base + TERMINAL);
+            int keySlot = segment.getInt(base + KEY_SLOT);
+            if (!keys.holds(keySlot, terminalId)) {
+                keySlot = keys.slotOf(terminalId);
+                if (keySlot < 0)
+                    throw new IllegalStateException("Key of terminal " + terminalId + " was removed");
+                segment.putInt(base + KEY_SLOT, keySlot);
+            }
+            return keySlot;
+        }
+
+        private int[] load(ByteBuffer segment, int base) {
+            for (int w = 0; w < 4; w++)
+                s[w] = segment.getInt(base + CHAIN + 4 * w);
+            return s;
+        }
+
+        private void store(ByteBuffer segment, int base, int[] s) {
+            for (int w = 0; w < 4; w++) {
+                segment.putInt(base + CHAIN + 4 * w, s[w]);
+                s[w] = 0;
+            }
+        }
+    }
+}
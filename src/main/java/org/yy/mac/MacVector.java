@@ -0,0 +1,70 @@
+package org.yy.mac;
+
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * MAC测试向量。
+ * <p>
+ * 由 {@link MacVectorReader} 从向量文件中读取，字段含义与 {@link ParametersWithPadding} 一致。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class MacVector {
+    final String source; //来源，文件名和行号
+    final int standard; //标准版本：2008、2020
+    final AlgSymm algSymm;
+    final int typeAlg;
+    final int typePad;
+    final int keyInduce;
+    final byte[] key1;
+    final byte[] key2;
+    final byte[] iv;
+    final byte[] msg;
+    final byte[] mac;
+
+    MacVector(String source, int standard, AlgSymm algSymm, int typeAlg, int typePad, int keyInduce,
+              byte[] key1, byte[] key2, byte[] iv, byte[] msg, byte[] mac) {
+        this.source = source;
+        this.standard = standard;
+        this.algSymm = algSymm;
+        this.typeAlg = typeAlg;
+        this.typePad = typePad;
+        this.keyInduce = keyInduce;
+        this.key1 = key1;
+        this.key2 = key2;
+        this.iv = iv;
+        this.msg = msg;
+        this.mac = mac;
+    }
+
+    /**
+     * 是否为2008版本的算法5~6，需要使用 {@link CMac56} 计算。
+     */
+    boolean isCMac56() {
+        return standard == 2008 && (typeAlg == 5 || typeAlg == 6);
+    }
+
+    /**
+     * 创建算法参数。每次调用都会返回新的对象。
+     *
+     * @return 算法参数
+     */
+    ParametersWithPadding newParameters() {
+        ParametersWithPadding parameters = new ParametersWithPadding(
+                key1.clone(), key2 == null ? null : key2.clone(), iv == null ? null : iv.clone(),
+                typeAlg, typePad, msg.length);
+        parameters.setKeyInduce(keyInduce);
+        return parameters;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public String toString() {
+        return source + ": " + standard + " ALG" + typeAlg + " PAD" + typePad + " " + algSymm.name()
+                + " MSG(" + msg.length + ") MAC=" + Hex.toHexString(mac);
+    }
+}
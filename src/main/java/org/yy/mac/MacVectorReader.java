@@ -0,0 +1,141 @@
+package org.yy.mac;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * MAC测试向量文件读取。
+ * <p>
+ * 文件格式为文本，每个向量由若干 "名称 = 值" 行组成，向量之间用空行分隔，'#' 开头的行为注释：
+ * <pre>
+ * STANDARD = 2020          # 可选，2008或2020，默认2020
+ * CIPHER = SM4             # AlgSymm 名称：AES128/AES192/AES256/DES/DESede/DESede3/SM4
+ * ALG = 3                  # 算法1~8
+ * PAD = 1                  # 填充1~4
+ * KEYINDUCE = 1            # 可选，0或1，默认1
+ * KEY1 = 0123456789ABCDEFFEDCBA9876543210
+ * KEY2 = 4149D2ADED9456681EC8B511D9E7EE04   # 可选
+ * IV = ...                 # 可选
+ * MSG = 5468...            # 可以为空
+ * MAC = 2763211B2BCAF719   # 期望的MAC，其长度即为Mac大小
+ * </pre>
+ * 每次调用 {@link #next()} 只读取一个向量，不会把整个文件读入内存。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class MacVectorReader implements Closeable {
+    private final BufferedReader reader;
+    private final String name;
+    private int lineNumber;
+
+    public MacVectorReader(Reader reader, String name) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, 1 << 16);
+        this.name = name;
+    }
+
+    /**
+     * 读取下一个向量。
+     *
+     * @return 向量，文件结束时返回null
+     * @throws IOException 读取错误或格式错误
+     */
+    public MacVector next() throws IOException {
+        String standard = null, cipher = null, alg = null, pad = null, keyInduce = null;
+        String key1 = null, key2 = null, iv = null, msg = null, mac = null;
+        int start = -1;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            line = line.trim();
+
+            if (line.isEmpty()) {
+                if (start >= 0)
+                    break;
+                continue;
+            }
+            if (start < 0)
+                start = lineNumber;
+
+            int eq = line.indexOf('=');
+            if (eq < 0)
+                throw error("Expected 'NAME = VALUE'");
+            String key = line.substring(0, eq).trim().toUpperCase();
+            String value = line.substring(eq + 1).trim();
+            switch (key) {
+                case "STANDARD":
+                    standard = value;
+                    break;
+                case "CIPHER":
+                    cipher = value;
+                    break;
+                case "ALG":
+                    alg = value;
+                    break;
+                case "PAD":
+                    pad = value;
+                    break;
+                case "KEYINDUCE":
+                    keyInduce = value;
+                    break;
+                case "KEY1":
+                    key1 = value;
+                    break;
+                case "KEY2":
+                    key2 = value;
+                    break;
+                case "IV":
+                    iv = value;
+                    break;
+                case "MSG":
+                    msg = value;
+                    break;
+                case "MAC":
+                    mac = value;
+                    break;
+                default:
+                    throw error("Unknown field " + key);
+            }
+        }
+
+        if (start < 0)
+            return null;
+
+        String source = name + ":" + start;
+        if (cipher == null || alg == null || pad == null || key1 == null || msg == null || mac == null)
+            throw new IOException(source + ": CIPHER, ALG, PAD, KEY1, MSG and MAC are required");
+
+        try {
+            return new MacVector(source,
+                    standard == null ? 2020 : Integer.parseInt(standard),
+                    AlgSymm.valueOf(cipher),
+                    Integer.parseInt(alg),
+                    Integer.parseInt(pad),
+                    keyInduce == null ? 1 : Integer.parseInt(keyInduce),
+                    Hex.decode(key1),
+                    key2 == null ? null : Hex.decode(key2),
+                    iv == null ? null : Hex.decode(iv),
+                    Hex.decode(msg),
+                    Hex.decode(mac));
+        } catch (RuntimeException e) {
+            throw new IOException(source + ": " + e.getMessage(), e);
+        }
+    }
+
+    private IOException error(String message) {
+        return new IOException(name + ":" + lineNumber + ": " + message);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,140 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.CipherParameters;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 同一个消息在多个MAC算法下的结果，共享CBC迭代。
+ * <p>
+ * 算法1（CBC-MAC）、2（EMAC）、3（ANSI零售MAC）、5（CMAC）和7使用同一个key1时，update 阶段的迭代完全相同，
+ * 只有填充、最终迭代、输出变换和截断不同。构造时按 {@link MacPlan#sharesChain} 把通道分组，每组只有第一个通道执行迭代；
+ * doFinal 时把该组的迭代状态复制到其他通道，各通道再以自己的执行计划完成最后的步骤。
+ * 所以每增加一个共享迭代的算法，只增加最后一两个分组的计算，不需要再处理一遍数据。
+ * <p>
+ * 不能共享的通道（如算法4、8，或使用密钥诱导改变了key1的算法2、6）单独迭代，结果不受影响。
+ * 所有通道必须使用同一种分组密码。doFinal 之后恢复到构造之后的状态。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class MultiAlgMac {
+    private final YCMac[] lanes;
+    private final YCMac[] chains; //每组执行迭代的通道
+    private final int[] chainOf; //通道所在的组
+
+    /**
+     * @param algSymm 对称算法
+     * @param params  每个通道的参数：{@link ParametersWithPadding} 或 {@link MacPlan}
+     */
+    public MultiAlgMac(AlgSymm algSymm, CipherParameters... params) {
+        this(algSymm, null, params);
+    }
+
+    /**
+     * @param algSymm        对称算法
+     * @param macSizesInBits 每个通道的Mac比特长度，为null时都使用分组长度
+     * @param params         每个通道的参数：{@link ParametersWithPadding} 或 {@link MacPlan}
+     */
+    public MultiAlgMac(AlgSymm algSymm, int[] macSizesInBits, CipherParameters... params) {
+        if (params.length == 0)
+            throw new IllegalArgumentException("At least one algorithm is required");
+        if (macSizesInBits != null && macSizesInBits.length != params.length)
+            throw new IllegalArgumentException("MAC sizes and parameters must have the same length");
+
+        lanes = new YCMac[params.length];
+        chainOf = new int[params.length];
+        YCMac[] groups = new YCMac[params.length];
+        int groupCount = 0;
+        for (int i = 0; i < params.length; i++) {
+            int macSizeInBits = macSizesInBits != null ? macSizesInBits[i] : SymmUtils.getSymmBlockLength(algSymm) * 8;
+            lanes[i] = new YCMac(CMacTool.getBlockCipher(algSymm), macSizeInBits);
+            lanes[i].init(params[i]);
+            lanes[i].metered = false;
+
+            int group = 0;
+            while (group < groupCount && !groups[group].getPlan().sharesChain(lanes[i].getPlan()))
+                group++;
+            if (group == groupCount)
+                groups[groupCount++] = lanes[i];
+            chainOf[i] = group;
+        }
+        chains = new YCMac[groupCount];
+        System.arraycopy(groups, 0, chains, 0, groupCount);
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return 实际执行的迭代数
+     */
+    public int getChainCount() {
+        return chains.length;
+    }
+
+    public int getMacSize(int lane) {
+        return lanes[lane].getMacSize();
+    }
+
+    public void update(byte in) {
+        for (YCMac chain : chains)
+            chain.update(in);
+    }
+
+    public void update(byte[] in, int inOff, int len) {
+        for (YCMac chain : chains)
+            chain.update(in, inOff, len);
+    }
+
+    /**
+     * 输入ByteBuffer中 position 到 limit 之间的数据，处理后 position 等于 limit。
+     *
+     * @param in 输入数据
+     */
+    public void update(ByteBuffer in) {
+        if (chains.length == 1) {
+            chains[0].update(in);
+            return;
+        }
+
+        int position = in.position();
+        for (YCMac chain : chains) {
+            in.position(position);
+            chain.update(in);
+        }
+    }
+
+    /**
+     * 计算所有通道的MAC，然后恢复到构造之后的状态。
+     *
+     * @return 按参数顺序排列的MAC值
+     */
+    public byte[][] doFinal() {
+        byte[][] out = new byte[lanes.length][];
+        if (MacMetrics.enabled)
+            MacMetrics.record(chains[0].getPlan().cipherName, chains[0].getCount()); //一个消息只计一次
+        //先完成共享迭代的其他通道，最后完成执行迭代的通道
+        for (int i = 0; i < lanes.length; i++) {
+            YCMac chain = chains[chainOf[i]];
+            if (lanes[i] != chain) {
+                chain.copyChain(lanes[i]);
+                out[i] = new byte[lanes[i].getMacSize()];
+                lanes[i].doFinal(out[i], 0);
+            }
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            if (out[i] == null) {
+                out[i] = new byte[lanes[i].getMacSize()];
+                lanes[i].doFinal(out[i], 0);
+            }
+        }
+        return out;
+    }
+
+    public void reset() {
+        for (YCMac lane : lanes)
+            lane.reset();
+    }
+}
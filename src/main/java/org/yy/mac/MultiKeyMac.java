@@ -0,0 +1,118 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.CipherParameters;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 同一个消息在多个密钥下的MAC，一次读取数据。
+ * <p>
+ * 用于密钥轮换（新旧终端密钥）或多收单机构路由等需要用多个密钥对同一消息计算MAC的场景。
+ * 每个密钥对应一个 YCMac 通道，执行计划在构造时编译一次；输入数据按 {@link #TILE_SIZE} 分片，
+ * 每一片依次交给所有通道，分片在处理期间保持在CPU缓存中，所以增加密钥只增加分组密码的计算量，不会重复从内存读取数据。
+ * <p>
+ * 各通道可以使用不同的算法和填充，但必须使用同一种分组密码。doFinal 之后恢复到构造之后的状态。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class MultiKeyMac {
+    public static final int TILE_SIZE = 4096;
+
+    private final YCMac[] lanes;
+    private byte[] tile; //direct ByteBuffer 的分片，只复制一次
+
+    /**
+     * @param algSymm 对称算法
+     * @param params  每个通道的参数：{@link ParametersWithPadding} 或 {@link MacPlan}
+     */
+    public MultiKeyMac(AlgSymm algSymm, CipherParameters... params) {
+        this(algSymm, SymmUtils.getSymmBlockLength(algSymm) * 8, params);
+    }
+
+    /**
+     * @param algSymm       对称算法
+     * @param macSizeInBits Mac的比特长度，所有通道相同
+     * @param params        每个通道的参数：{@link ParametersWithPadding} 或 {@link MacPlan}
+     */
+    public MultiKeyMac(AlgSymm algSymm, int macSizeInBits, CipherParameters... params) {
+        if (params.length == 0)
+            throw new IllegalArgumentException("At least one key is required");
+
+        lanes = new YCMac[params.length];
+        for (int i = 0; i < params.length; i++) {
+            lanes[i] = new YCMac(CMacTool.getBlockCipher(algSymm), macSizeInBits);
+            lanes[i].init(params[i]);
+            lanes[i].metered = false;
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getMacSize() {
+        return lanes[0].getMacSize();
+    }
+
+    public void update(byte in) {
+        for (YCMac lane : lanes)
+            lane.update(in);
+    }
+
+    public void update(byte[] in, int inOff, int len) {
+        if (len < 0)
+            throw new IllegalArgumentException("Can't have a negative input length!");
+
+        while (len > 0) {
+            int n = Math.min(TILE_SIZE, len);
+            for (YCMac lane : lanes)
+                lane.update(in, inOff, n);
+            inOff += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * 输入ByteBuffer中 position 到 limit 之间的数据，处理后 position 等于 limit。
+     * <p>
+     * direct/mapped ByteBuffer 的每一片只复制一次，然后交给所有通道。
+     *
+     * @param in 输入数据
+     */
+    public void update(ByteBuffer in) {
+        if (in.hasArray()) {
+            update(in.array(), in.arrayOffset() + in.position(), in.remaining());
+            in.position(in.limit());
+            return;
+        }
+
+        if (tile == null)
+            tile = new byte[TILE_SIZE];
+        while (in.hasRemaining()) {
+            int n = Math.min(TILE_SIZE, in.remaining());
+            in.get(tile, 0, n);
+            for (YCMac lane : lanes)
+                lane.update(tile, 0, n);
+        }
+    }
+
+    /**
+     * 计算所有通道的MAC，然后恢复到构造之后的状态。
+     *
+     * @return 按参数顺序排列的MAC值
+     */
+    public byte[][] doFinal() {
+        byte[][] out = new byte[lanes.length][getMacSize()];
+        if (MacMetrics.enabled)
+            MacMetrics.record(lanes[0].getPlan().cipherName, lanes[0].getCount()); //一个消息只计一次
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i].doFinal(out[i], 0);
+        return out;
+    }
+
+    public void reset() {
+        for (YCMac lane : lanes)
+            lane.reset();
+    }
+}
@@ -0,0 +1,354 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * PMAC1：可并行计算的基于分组密码的MAC。
+ * <p>
+ * 参考 P. Rogaway, Efficient Instantiations of Tweakable Blockciphers and Refinements to Modes OCB and PMAC。
+ * 与《GBT 15852.1》中基于CBC的算法不同，各分组的加密互不依赖，所以一个大消息可以按分组范围分给多个线程计算。
+ * 它不是《GBT 15852.1》中的算法，只用于可以自行选择算法的内部场景。
+ * <p>
+ * 记 L=E(0)，L(i)=L·x^i（即 multx），L(-1)=L·x^-1；第i个分组的偏移量 Δ(i)=Δ(i-1)^L(ntz(i))，
+ * 也等于格雷码 i^(i>>1) 中各比特j对应的L(j)的异或，所以任意一段分组都可以独立计算。
+ * <p>
+ * 可以像其他Mac一样使用 update 流式计算，也可以使用 computeParallel 对整个缓冲区或文件并行计算，两者结果一致。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class PMac implements Mac {
+    private static final int MAX_LEVEL = 64; //分组序号为long，ntz最大为63
+    private static final int PARALLEL_THRESHOLD = 4096; //并行计算时每个任务的最小分组数
+    private static final int MAX_WINDOW = 1 << 30; //映射文件时每个窗口的最大长度
+
+    private final BlockCipher cipher;
+    private final int macSize;
+
+    private final byte[][] L = new byte[MAX_LEVEL][];
+    private byte[] Linv; //L·x^-1
+
+    private final byte[] offset;
+    private final byte[] sigma;
+    private final byte[] buf;
+    private final byte[] temp;
+    private int bufOff;
+    private long blockCount; //已处理的分组数
+
+    public PMac(BlockCipher cipher) {
+        this(cipher, cipher.getBlockSize() * 8);
+    }
+
+    public PMac(BlockCipher cipher, int macSizeInBits) {
+        if ((macSizeInBits % 8) != 0) {
+            throw new IllegalArgumentException("MAC size must be multiple of 8");
+        }
+
+        if (macSizeInBits > (cipher.getBlockSize() * 8)) {
+            throw new IllegalArgumentException("MAC size must be less or equal to " + (cipher.getBlockSize() * 8));
+        }
+
+        int blockSize = cipher.getBlockSize();
+        if (blockSize != 8 && blockSize != 16)
+            throw new IllegalArgumentException("PMAC requires a 64 or 128 bit block cipher");
+
+        this.cipher = cipher;
+        this.macSize = macSizeInBits / 8;
+        offset = new byte[blockSize];
+        sigma = new byte[blockSize];
+        buf = new byte[blockSize];
+        temp = new byte[blockSize];
+    }
+
+    @Override
+    public void init(CipherParameters params) {
+        if (!(params instanceof KeyParameter))
+            throw new IllegalArgumentException("PMac only permits parameters type of KeyParameter.");
+
+        cipher.init(true, params);
+
+        YCMac.KeyInduce keyInduce = new YCMac.KeyInduce(cipher);
+        L[0] = new byte[buf.length];
+        cipher.processBlock(L[0], 0, L[0], 0);
+        for (int i = 1; i < MAX_LEVEL; i++)
+            L[i] = keyInduce.multx(L[i - 1]);
+        Linv = divx(L[0]);
+
+        reset();
+    }
+
+    @Override
+    public String getAlgorithmName() {
+        return cipher.getAlgorithmName() + "-PMAC";
+    }
+
+    @Override
+    public int getMacSize() {
+        return macSize;
+    }
+
+    @Override
+    public void update(byte in) {
+        if (bufOff == buf.length) {
+            processBlock(buf, 0);
+            bufOff = 0;
+        }
+
+        buf[bufOff++] = in;
+    }
+
+    @Override
+    public void update(byte[] in, int inOff, int len) {
+        if (len < 0) {
+            throw new IllegalArgumentException("Can't have a negative input length!");
+        }
+
+        int blockSize = buf.length;
+        int gapLen = blockSize - bufOff;
+
+        if (len > gapLen) {
+            System.arraycopy(in, inOff, buf, bufOff, gapLen);
+            processBlock(buf, 0);
+
+            bufOff = 0;
+            len -= gapLen;
+            inOff += gapLen;
+
+            //最后一个分组需要特殊处理，所以总是保留在缓冲区中
+            while (len > blockSize) {
+                processBlock(in, inOff);
+                len -= blockSize;
+                inOff += blockSize;
+            }
+        }
+
+        System.arraycopy(in, inOff, buf, bufOff, len);
+        bufOff += len;
+    }
+
+    private void processBlock(byte[] in, int inOff) {
+        blockCount++;
+        YCMac.xor(offset, L[Long.numberOfTrailingZeros(blockCount)]);
+        for (int i = 0; i < temp.length; i++)
+            temp[i] = (byte) (in[inOff + i] ^ offset[i]);
+        cipher.processBlock(temp, 0, temp, 0);
+        YCMac.xor(sigma, temp);
+    }
+
+    @Override
+    public int doFinal(byte[] out, int outOff) {
+        finish(sigma, buf, bufOff);
+        cipher.processBlock(sigma, 0, sigma, 0);
+        System.arraycopy(sigma, 0, out, outOff, macSize);
+
+        reset();
+        return macSize;
+    }
+
+    /**
+     * 处理最后一个分组：完整时与 L·x^-1 异或，否则使用填充2。
+     */
+    private void finish(byte[] sigma, byte[] last, int lastLen) {
+        if (lastLen == last.length)
+            YCMac.xor(sigma, Linv);
+        else {
+            last[lastLen] = (byte) 0x80;
+            for (int i = lastLen + 1; i < last.length; i++)
+                last[i] = 0;
+        }
+        YCMac.xor(sigma, last);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < buf.length; i++) {
+            offset[i] = 0;
+            sigma[i] = 0;
+            buf[i] = 0;
+        }
+        bufOff = 0;
+        blockCount = 0;
+    }
+
+    /**
+     * 并行计算整个缓冲区的MAC。
+     * <p>
+     * 缓冲区的分组按范围拆分为多个任务在 pool 中执行，每个任务使用 cipherFactory 创建的分组密码对象。
+     * 结果与 init/update/doFinal 相同。
+     *
+     * @param cipherFactory 分组密码工厂，例如 () -&gt; CMacTool.getBlockCipher(AlgSymm.SM4)
+     * @param key           密钥
+     * @param data          数据，position 到 limit 之间，不修改其 position
+     * @param macSizeInBits Mac的比特长度
+     * @param pool          线程池
+     * @return MAC值
+     */
+    public static byte[] computeParallel(Supplier<BlockCipher> cipherFactory, byte[] key, ByteBuffer data,
+                                         int macSizeInBits, ForkJoinPool pool) {
+        PMac mac = new PMac(cipherFactory.get(), macSizeInBits);
+        mac.init(new KeyParameter(key));
+
+        int blockSize = mac.buf.length;
+        long blocks = lastBlockStart(data.remaining(), blockSize) / blockSize;
+        if (blocks > 0)
+            YCMac.xor(mac.sigma, pool.invoke(new SigmaTask(mac, cipherFactory, key, data, 1, blocks)));
+
+        return mac.finishParallel(data, (int) (blocks * blockSize));
+    }
+
+    /**
+     * 并行计算文件的MAC。
+     * <p>
+     * 文件按窗口映射到内存中，所有窗口的分组同时在 pool 中计算，适用于超过2GB的大文件。
+     *
+     * @param cipherFactory 分组密码工厂
+     * @param key           密钥
+     * @param channel       文件
+     * @param macSizeInBits Mac的比特长度
+     * @param pool          线程池
+     * @return MAC值
+     * @throws IOException 读取文件错误
+     */
+    public static byte[] computeParallel(Supplier<BlockCipher> cipherFactory, byte[] key, FileChannel channel,
+                                         int macSizeInBits, ForkJoinPool pool) throws IOException {
+        PMac mac = new PMac(cipherFactory.get(), macSizeInBits);
+        mac.init(new KeyParameter(key));
+
+        int blockSize = mac.buf.length;
+        long size = channel.size();
+        long lastStart = lastBlockStart(size, blockSize);
+        int window = MAX_WINDOW - MAX_WINDOW % blockSize;
+
+        List<SigmaTask> tasks = new ArrayList<>();
+        for (long pos = 0; pos < lastStart; pos += window) {
+            long len = Math.min(window, lastStart - pos);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            tasks.add(new SigmaTask(mac, cipherFactory, key, buffer, pos / blockSize + 1, len / blockSize));
+        }
+        YCMac.xor(mac.sigma, pool.invoke(new RecursiveTask<byte[]>() {
+            @Override
+            protected byte[] compute() {
+                byte[] result = new byte[blockSize];
+                for (SigmaTask task : invokeAll(tasks))
+                    YCMac.xor(result, task.join());
+                return result;
+            }
+        }));
+
+        ByteBuffer last = channel.map(FileChannel.MapMode.READ_ONLY, lastStart, size - lastStart);
+        return mac.finishParallel(last, 0);
+    }
+
+    /**
+     * 最后一个分组的起始位置。空消息和长度为分组整数倍的消息，最后一个分组也需要单独处理。
+     */
+    private static long lastBlockStart(long length, int blockSize) {
+        if (length == 0)
+            return 0;
+        return (length - 1) / blockSize * blockSize;
+    }
+
+    private byte[] finishParallel(ByteBuffer data, int lastOff) {
+        ByteBuffer last = data.duplicate();
+        last.position(data.position() + lastOff);
+        int lastLen = last.remaining();
+        last.get(buf, 0, lastLen);
+
+        finish(sigma, buf, lastLen);
+        cipher.processBlock(sigma, 0, sigma, 0);
+        byte[] out = new byte[macSize];
+        System.arraycopy(sigma, 0, out, 0, macSize);
+        return out;
+    }
+
+    /**
+     * 计算一段分组 E(M[i]^Δ(i)) 的异或。
+     */
+    private static final class SigmaTask extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final PMac mac; //只读取其中的L
+        private final Supplier<BlockCipher> cipherFactory;
+        private final byte[] key;
+        private final ByteBuffer data; //data.position() 对应分组 first
+        private final long first; //第一个分组的序号，从1开始
+        private final long count;
+
+        SigmaTask(PMac mac, Supplier<BlockCipher> cipherFactory, byte[] key, ByteBuffer data, long first, long count) {
+            this.mac = mac;
+            this.cipherFactory = cipherFactory;
+            this.key = key;
+            this.data = data;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        protected byte[] compute() {
+            int blockSize = mac.buf.length;
+            if (count > PARALLEL_THRESHOLD) {
+                long half = count / 2;
+                ByteBuffer right = data.duplicate();
+                right.position(data.position() + (int) (half * blockSize));
+                SigmaTask rightTask = new SigmaTask(mac, cipherFactory, key, right, first + half, count - half);
+                rightTask.fork();
+                byte[] result = new SigmaTask(mac, cipherFactory, key, data, first, half).compute();
+                YCMac.xor(result, rightTask.join());
+                return result;
+            }
+
+            BlockCipher cipher = cipherFactory.get();
+            cipher.init(true, new KeyParameter(key));
+
+            //Δ(first-1)：格雷码中各比特对应的L(j)的异或
+            byte[] offset = new byte[blockSize];
+            long gray = (first - 1) ^ ((first - 1) >>> 1);
+            for (int j = 0; gray != 0; j++, gray >>>= 1) {
+                if ((gray & 1) != 0)
+                    YCMac.xor(offset, mac.L[j]);
+            }
+
+            byte[] sigma = new byte[blockSize];
+            byte[] block = new byte[blockSize];
+            ByteBuffer in = data.duplicate();
+            for (long i = first; i < first + count; i++) {
+                in.get(block);
+                YCMac.xor(offset, mac.L[Long.numberOfTrailingZeros(i)]);
+                YCMac.xor(block, offset);
+                cipher.processBlock(block, 0, block, 0);
+                YCMac.xor(sigma, block);
+            }
+            return sigma;
+        }
+    }
+
+    /**
+     * L·x^-1。
+     */
+    private static byte[] divx(byte[] in) {
+        byte[] out = new byte[in.length];
+        int lsb = in[in.length - 1] & 1;
+        YCMac.shiftRight(in, out);
+        out[0] &= 0x7F; //shiftRight 为循环右移，这里只需要普通右移
+        if (lsb != 0) {
+            byte[] poly = YCMac.KeyInduce.lookupPoly(in.length);
+            out[0] ^= (byte) 0x80;
+            out[out.length - 1] ^= (byte) ((poly[3] & 0xff) >>> 1 | (poly[2] & 1) << 7);
+            out[out.length - 2] ^= (byte) ((poly[2] & 0xff) >>> 1 | (poly[1] & 1) << 7);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,129 @@
+package org.yy.mac;
+
+import org.bouncycastle.util.Pack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 《GBT 15852.1》填充的流式输出。
+ * <p>
+ * 只输出填充部分：填充3开头的长度分组（header），以及各填充方式在消息末尾添加的数据（tail）。
+ * 消息本身由调用者原样发送，不需要复制；例如向HSM发送填充后的MAB数据时，依次发送 header、消息、tail 即可。
+ * header 和 tail 都不超过一个分组。
+ * <p>
+ * 与 {@link CMacTool#padding1(byte[], int)} ~ {@link CMacTool#padding4(byte[], int)} 的结果一致：
+ * 填充1、3、4在消息长度为分组整数倍（包括空消息）时不添加数据。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class PaddingWriter {
+    private PaddingWriter() {
+    }
+
+    /**
+     * 开头的长度分组的长度。
+     *
+     * @param typePad   填充方式：1、2、3、4
+     * @param blockSize 分组长度
+     * @return 填充3为 blockSize，其他为0
+     */
+    public static int headerLength(int typePad, int blockSize) {
+        checkPadding(typePad);
+        return typePad == 3 ? blockSize : 0;
+    }
+
+    /**
+     * 末尾填充的长度。
+     *
+     * @param typePad    填充方式：1、2、3、4
+     * @param dataLength 消息长度
+     * @param blockSize  分组长度
+     * @return 末尾填充的字节数
+     */
+    public static int tailLength(int typePad, long dataLength, int blockSize) {
+        checkPadding(typePad);
+        int rem = (int) (dataLength % blockSize);
+        if (typePad == 2)
+            return blockSize - rem; //总是添加0x80
+        return rem == 0 ? 0 : blockSize - rem;
+    }
+
+    /**
+     * 输出填充3开头的长度分组：消息的比特长度，大端序，右对齐。
+     *
+     * @return 输出的字节数；其他填充方式为0
+     */
+    public static int writeHeader(int typePad, long dataLength, int blockSize, byte[] out, int outOff) {
+        int len = headerLength(typePad, blockSize);
+        if (len == 0)
+            return 0;
+
+        byte[] bLen = Pack.longToBigEndian(dataLength * 8);
+        int n = Math.min(bLen.length, blockSize);
+        Arrays.fill(out, outOff, outOff + blockSize - n, (byte) 0);
+        System.arraycopy(bLen, bLen.length - n, out, outOff + blockSize - n, n);
+        return len;
+    }
+
+    public static int writeHeader(int typePad, long dataLength, int blockSize, ByteBuffer out) {
+        return put(out, header(typePad, dataLength, blockSize));
+    }
+
+    public static int writeHeader(int typePad, long dataLength, int blockSize, OutputStream out) throws IOException {
+        byte[] header = header(typePad, dataLength, blockSize);
+        out.write(header);
+        return header.length;
+    }
+
+    /**
+     * 输出消息末尾的填充。
+     *
+     * @return 输出的字节数
+     */
+    public static int writeTail(int typePad, long dataLength, int blockSize, byte[] out, int outOff) {
+        int len = tailLength(typePad, dataLength, blockSize);
+        if (len == 0)
+            return 0;
+
+        Arrays.fill(out, outOff, outOff + len, (byte) 0);
+        if (typePad == 2 || typePad == 4)
+            out[outOff] = (byte) 0x80;
+        return len;
+    }
+
+    public static int writeTail(int typePad, long dataLength, int blockSize, ByteBuffer out) {
+        return put(out, tail(typePad, dataLength, blockSize));
+    }
+
+    public static int writeTail(int typePad, long dataLength, int blockSize, OutputStream out) throws IOException {
+        byte[] tail = tail(typePad, dataLength, blockSize);
+        out.write(tail);
+        return tail.length;
+    }
+
+    private static byte[] header(int typePad, long dataLength, int blockSize) {
+        byte[] header = new byte[headerLength(typePad, blockSize)];
+        writeHeader(typePad, dataLength, blockSize, header, 0);
+        return header;
+    }
+
+    private static byte[] tail(int typePad, long dataLength, int blockSize) {
+        byte[] tail = new byte[tailLength(typePad, dataLength, blockSize)];
+        writeTail(typePad, dataLength, blockSize, tail, 0);
+        return tail;
+    }
+
+    private static int put(ByteBuffer out, byte[] data) {
+        out.put(data);
+        return data.length;
+    }
+
+    private static void checkPadding(int typePad) {
+        if (typePad < 1 || typePad > 4)
+            throw new IllegalArgumentException("Unsupported padding: " + typePad);
+    }
+}
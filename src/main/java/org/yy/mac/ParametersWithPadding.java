@@ -15,7 +15,7 @@ import org.bouncycastle.crypto.params.ParametersWithIV;
 public class ParametersWithPadding implements CipherParameters {
     int typeAlg; //算法类型：1~6
     int typePad; //填充类型：1、2、3、4
-    int length; //仅 typePad=3 时有效，表示输入数据的总长度
+    long length; //仅 typePad=3 时有效，表示输入数据的总长度（字节）
     int transformInit; //初始变换：1、2、3
     int transformOut; //输出变换：1、2、3
     int lastIteration; //最终迭代：1、2、3、4
@@ -39,13 +39,13 @@ public class ParametersWithPadding implements CipherParameters {
 
     public ParametersWithPadding(
             byte[] key1, byte[] key2,
-            int typeAlg, int typePad, int length) {
+            int typeAlg, int typePad, long length) {
         this(key1, key2, null, typeAlg, typePad, length);
     }
 
     public ParametersWithPadding(
             byte[] key1, byte[] key2, byte[] iv,
-            int typeAlg, int typePad, int length) {
+            int typeAlg, int typePad, long length) {
         this.key1 = key1;
         this.key2 = key2;
         this.iv = iv;
@@ -100,6 +100,13 @@ public class ParametersWithPadding implements CipherParameters {
         this.keyInduce = keyInduce;
     }
 
+    /**
+     * @return 输入数据的总长度，仅填充方式3时有效
+     */
+    public long getLength() {
+        return length;
+    }
+
     public CipherParameters getParameters() {
         if (iv == null)
             return new KeyParameter(key1);
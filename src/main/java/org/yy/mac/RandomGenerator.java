@@ -1,21 +1,75 @@
 package org.yy.mac;
 
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.prng.SP800SecureRandom;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+import org.bouncycastle.util.Pack;
+
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Random Data Generator.
  * <p>
+ * By default every call goes to one {@link SecureRandom}. The DRBG mode created by {@link #drbg(AlgSymm)}
+ * gives each thread its own SP 800-90A CTR DRBG, which produces output in buffered batches and reseeds
+ * itself from the system entropy source after a fixed amount of output, so threads never contend.
+ * <p>
  * Created by YaoYuan on 2020/11/13.
  */
 public class RandomGenerator {
+    public static final int MAX_BATCH_SIZE = 32 * 1024; //CTR DRBG generates at most 2^18 bits per request
+    public static final long DEFAULT_RESEED_INTERVAL = 64L * 1024 * 1024;
+
+    private static final SecureRandom ENTROPY = new SecureRandom();
+    private static final AtomicLong INSTANCES = new AtomicLong();
+
     private final SecureRandom random;
+    private final ThreadLocal<Drbg> drbg;
 
     public RandomGenerator() {
-        random = new SecureRandom();
+        this(new SecureRandom());
     }
 
     public RandomGenerator(SecureRandom random) {
         this.random = random;
+        this.drbg = null;
+    }
+
+    private RandomGenerator(AlgSymm algSymm, int batchSize, long reseedInterval) {
+        int keySize = drbgKeySize(algSymm);
+        if (batchSize <= 0 || batchSize > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("Batch size must be in (0, " + MAX_BATCH_SIZE + "]");
+        if (reseedInterval < batchSize)
+            throw new IllegalArgumentException("Reseed interval must not be less than the batch size");
+
+        long instance = INSTANCES.incrementAndGet();
+        this.random = null;
+        this.drbg = ThreadLocal.withInitial(() -> new Drbg(
+                CMacTool.getBlockCipher(algSymm), keySize, instance, batchSize, reseedInterval));
+    }
+
+    /**
+     * Create a generator in DRBG mode, with the default batch size and reseed interval.
+     *
+     * @param algSymm block cipher of the CTR DRBG: AES128, AES192 or AES256
+     * @return random data generator
+     */
+    public static RandomGenerator drbg(AlgSymm algSymm) {
+        return new RandomGenerator(algSymm, MAX_BATCH_SIZE, DEFAULT_RESEED_INTERVAL);
+    }
+
+    /**
+     * Create a generator in DRBG mode.
+     *
+     * @param algSymm        block cipher of the CTR DRBG: AES128, AES192 or AES256
+     * @param batchSize      bytes generated per DRBG request and buffered per thread, at most {@link #MAX_BATCH_SIZE}
+     * @param reseedInterval bytes generated by one thread before its DRBG is reseeded
+     * @return random data generator
+     */
+    public static RandomGenerator drbg(AlgSymm algSymm, int batchSize, long reseedInterval) {
+        return new RandomGenerator(algSymm, batchSize, reseedInterval);
     }
 
     /**
@@ -29,7 +83,93 @@ public class RandomGenerator {
             return new byte[0];
 
         byte[] data = new byte[length];
-        random.nextBytes(data);
+        nextBytes(data, 0, length);
         return data;
     }
+
+    /**
+     * Fill part of an array with random data.
+     *
+     * @param out output array
+     * @param off offset in the array
+     * @param len length of random data
+     */
+    public void nextBytes(byte[] out, int off, int len) {
+        if (off < 0 || len < 0 || off + len > out.length)
+            throw new IndexOutOfBoundsException("Range [" + off + ", " + (off + len) + ") is out of array bounds");
+
+        if (drbg != null)
+            drbg.get().fill(out, off, len);
+        else if (off == 0 && len == out.length)
+            random.nextBytes(out);
+        else {
+            byte[] data = new byte[len];
+            random.nextBytes(data);
+            System.arraycopy(data, 0, out, off, len);
+        }
+    }
+
+    private static int drbgKeySize(AlgSymm algSymm) {
+        switch (algSymm) {
+            case AES128:
+            case AES192:
+            case AES256:
+                return SymmUtils.getSymmKeyLength(algSymm) * 8;
+            default:
+                //CTR DRBG of BC only defines the security strength of AES and TDEA
+                throw new IllegalArgumentException("Not support symmetric algorithm " + algSymm.name() + " for DRBG");
+        }
+    }
+
+    /**
+     * CTR DRBG of one thread, with its output buffer.
+     */
+    private static final class Drbg {
+        private final SP800SecureRandom random;
+        private final byte[] batch;
+        private final long reseedInterval;
+        private int pos;
+        private long generated; //bytes generated since the last reseed
+
+        Drbg(BlockCipher cipher, int keySize, long instance, int batchSize, long reseedInterval) {
+            //personalization string separates the instances and threads
+            byte[] personalization = new byte[24];
+            Pack.longToBigEndian(instance, personalization, 0);
+            Pack.longToBigEndian(Thread.currentThread().getId(), personalization, 8);
+            Pack.longToBigEndian(System.nanoTime(), personalization, 16);
+
+            byte[] nonce = new byte[16];
+            ENTROPY.nextBytes(nonce);
+            random = new SP800SecureRandomBuilder(ENTROPY, false)
+                    .setPersonalizationString(personalization)
+                    .setSecurityStrength(Math.min(keySize, 256))
+                    .buildCTR(cipher, keySize, nonce, false);
+            batch = new byte[batchSize];
+            pos = batchSize;
+            this.reseedInterval = reseedInterval;
+        }
+
+        void fill(byte[] out, int off, int len) {
+            while (len > 0) {
+                if (pos == batch.length)
+                    refill();
+                int n = Math.min(len, batch.length - pos);
+                System.arraycopy(batch, pos, out, off, n);
+                Arrays.fill(batch, pos, pos + n, (byte) 0); //output is not kept after it is handed out
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void refill() {
+            if (generated >= reseedInterval) {
+                random.reseed((byte[]) null);
+                generated = 0;
+            }
+            random.nextBytes(batch);
+            generated += batch.length;
+            pos = 0;
+        }
+    }
 }
@@ -0,0 +1,91 @@
+package org.yy.mac;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 记录文件的分帧方式，由 {@link RecordMacPipeline} 使用。
+ * <p>
+ * 实现只读取记录头，不复制数据；必须是无状态的。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public interface RecordFraming {
+    /**
+     * 解析 pos 处的一条记录。
+     *
+     * @param data  文件的映射窗口，只能读取 [pos, data.limit())，不能修改 position 和 limit
+     * @param pos   记录在窗口中的起始位置
+     * @param frame [out] 记录的位置
+     * @return 窗口中包含完整的记录时返回true；窗口剩余的数据不足一条记录时返回false
+     * @throws IllegalArgumentException 记录头格式错误
+     */
+    boolean next(ByteBuffer data, int pos, Frame frame);
+
+    /**
+     * 一条记录的位置。payload 为需要计算MAC的数据。
+     */
+    final class Frame {
+        int payloadOffset; //相对于记录起始位置
+        int payloadLength;
+        int recordLength; //包括记录头
+
+        public void set(int payloadOffset, int payloadLength, int recordLength) {
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+            this.recordLength = recordLength;
+        }
+    }
+
+    /**
+     * 大端序二进制长度前缀，长度不包括前缀本身。
+     *
+     * @param prefixLength 前缀的字节数：1~4
+     * @return 分帧方式
+     */
+    static RecordFraming lengthPrefixed(int prefixLength) {
+        if (prefixLength < 1 || prefixLength > 4)
+            throw new IllegalArgumentException("Length prefix must be 1 to 4 bytes");
+
+        return (data, pos, frame) -> {
+            if (data.limit() - pos < prefixLength)
+                return false;
+            long length = 0;
+            for (int i = 0; i < prefixLength; i++)
+                length = (length << 8) | (data.get(pos + i) & 0xff);
+            if (length > Integer.MAX_VALUE - prefixLength)
+                throw new IllegalArgumentException("Record length " + length + " is too large");
+            if (data.limit() - pos - prefixLength < length)
+                return false;
+            frame.set(prefixLength, (int) length, prefixLength + (int) length);
+            return true;
+        };
+    }
+
+    /**
+     * ASCII十进制长度前缀，如ISO 8583报文常用的4位长度，长度不包括前缀本身。
+     *
+     * @param digits 前缀的位数：1~9
+     * @return 分帧方式
+     */
+    static RecordFraming asciiLength(int digits) {
+        if (digits < 1 || digits > 9)
+            throw new IllegalArgumentException("ASCII length prefix must be 1 to 9 digits");
+
+        return (data, pos, frame) -> {
+            if (data.limit() - pos < digits)
+                return false;
+            int length = 0;
+            for (int i = 0; i < digits; i++) {
+                int c = data.get(pos + i);
+                if (c < '0' || c > '9')
+                    throw new IllegalArgumentException("Invalid ASCII length prefix");
+                length = length * 10 + c - '0';
+            }
+            if (data.limit() - pos - digits < length)
+                return false;
+            frame.set(digits, length, digits + length);
+            return true;
+        };
+    }
+}
@@ -0,0 +1,227 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.CipherParameters;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 记录文件的MAC流水线。
+ * <p>
+ * 记录文件由多条带长度前缀的记录组成（分帧方式见 {@link RecordFraming}），每条记录单独计算MAC。
+ * 读取线程按窗口映射文件，解析窗口中的记录头并按批次交给线程池，批次中只保存记录在窗口中的位置，不复制数据；
+ * 队列满时读取线程自己执行批次，所以同时存在的批次数量有上限。
+ * sidecar 文件中与每个窗口的记录对应的区域只映射一次，第i条记录的MAC写入 i*tagSize 的位置，与计算完成的顺序无关。
+ * <p>
+ * 所有线程共享一个执行计划，每个线程使用自己的 YCMac。填充3需要每条记录的长度，不支持。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class RecordMacPipeline {
+    private static final int DEFAULT_WINDOW = 64 * 1024 * 1024;
+    private static final int BATCH_RECORDS = 1024;
+    private static final int BATCH_BYTES = 1024 * 1024;
+
+    private final MacPlan plan;
+    private final RecordFraming framing;
+    private final int threads;
+    private final int window;
+    private final ThreadLocal<YCMac> macs;
+
+    /**
+     * @param algSymm 对称算法
+     * @param params  {@link ParametersWithPadding} 或 {@link MacPlan}
+     * @param framing 分帧方式
+     * @param threads 线程数
+     */
+    public RecordMacPipeline(AlgSymm algSymm, CipherParameters params, RecordFraming framing, int threads) {
+        this(algSymm, params, framing, threads, DEFAULT_WINDOW);
+    }
+
+    RecordMacPipeline(AlgSymm algSymm, CipherParameters params, RecordFraming framing, int threads, int window) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Thread count must be positive");
+
+        if (params instanceof MacPlan)
+            this.plan = (MacPlan) params;
+        else if (params instanceof ParametersWithPadding)
+            this.plan = MacPlan.compile((ParametersWithPadding) params, CMacTool.getBlockCipher(algSymm));
+        else
+            throw new IllegalArgumentException("Pipeline only permits parameters type of ParametersWithPadding or MacPlan.");
+        if (plan.getPadding() == 3)
+            throw new IllegalArgumentException("Padding 3 needs the length of each record");
+
+        this.framing = framing;
+        this.threads = threads;
+        this.window = window;
+        this.macs = ThreadLocal.withInitial(() -> {
+            YCMac mac = new YCMac(CMacTool.getBlockCipher(algSymm));
+            mac.init(plan);
+            return mac;
+        });
+    }
+
+    public int getTagSize() {
+        return plan.blockSize;
+    }
+
+    /**
+     * 计算记录文件中每条记录的MAC，写入 sidecar 文件。
+     *
+     * @param input   记录文件
+     * @param sidecar MAC文件，已存在时覆盖
+     * @return 记录数
+     * @throws IOException 读写错误，或记录格式错误、文件末尾的记录不完整
+     */
+    public long run(Path input, Path sidecar) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(sidecar, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return run(in, out);
+        }
+    }
+
+    /**
+     * 计算记录文件中每条记录的MAC，写入 sidecar 文件。
+     *
+     * @param input   记录文件
+     * @param sidecar MAC文件，需要可读写
+     * @return 记录数
+     * @throws IOException 读写错误，或记录格式错误、文件末尾的记录不完整
+     */
+    public long run(FileChannel input, FileChannel sidecar) throws IOException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+        long count = 0;
+        try {
+            long size = input.size();
+            long pos = 0;
+            int tagSize = getTagSize();
+            RecordFraming.Frame frame = new RecordFraming.Frame();
+            int windowSize = window;
+            while (pos < size && failure.get() == null) {
+                MappedByteBuffer data = input.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(windowSize, size - pos));
+                List<Batch> batches = new ArrayList<>();
+                Batch batch = new Batch(data, 0);
+                int records = 0;
+                int off = 0;
+                //窗口中的MAC映射为一个区域，长度不能超过int
+                while (off < data.limit() && (long) (records + 1) * tagSize <= Integer.MAX_VALUE) {
+                    if (!framing.next(data, off, frame))
+                        break;
+                    if (frame.recordLength <= 0)
+                        throw new IOException("Invalid record length " + frame.recordLength + " at offset " + (pos + off));
+                    batch.add(off + frame.payloadOffset, frame.payloadLength);
+                    records++;
+                    off += frame.recordLength;
+                    if (batch.count == BATCH_RECORDS || batch.bytes >= BATCH_BYTES) {
+                        batches.add(batch);
+                        batch = new Batch(data, records);
+                    }
+                }
+                if (batch.count > 0)
+                    batches.add(batch);
+                if (records > 0) {
+                    MappedByteBuffer tags = sidecar.map(FileChannel.MapMode.READ_WRITE, count * tagSize, (long) records * tagSize);
+                    for (Batch b : batches)
+                        submit(executor, b, tags, failure);
+                    count += records;
+                }
+
+                if (off == 0) {
+                    //一条记录比窗口大
+                    if (pos + windowSize >= size)
+                        throw new IOException("Truncated record at offset " + pos);
+                    windowSize = (int) Math.min(Integer.MAX_VALUE, windowSize * 2L);
+                } else
+                    windowSize = window;
+                pos += off;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid record at or after record " + count + ": " + e.getMessage(), e);
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof UncheckedIOException)
+            throw ((UncheckedIOException) t).getCause();
+        if (t instanceof IllegalArgumentException)
+            throw new IOException(t.getMessage(), t);
+        if (t != null)
+            throw new IllegalStateException(t);
+        sidecar.truncate(count * getTagSize());
+        return count;
+    }
+
+    private void submit(ThreadPoolExecutor executor, Batch batch, ByteBuffer tags, AtomicReference<Throwable> failure) {
+        executor.execute(() -> {
+            if (failure.get() != null)
+                return;
+            try {
+                batch.process(macs.get(), tags, getTagSize());
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        });
+    }
+
+    /**
+     * 一个窗口中连续的若干条记录。
+     */
+    private static final class Batch {
+        private final ByteBuffer data;
+        private final int firstIndex; //第一条记录在窗口中的序号
+        private final int[] offsets = new int[BATCH_RECORDS];
+        private final int[] lengths = new int[BATCH_RECORDS];
+        private int count;
+        private long bytes;
+
+        Batch(ByteBuffer data, int firstIndex) {
+            this.data = data;
+            this.firstIndex = firstIndex;
+        }
+
+        void add(int offset, int length) {
+            offsets[count] = offset;
+            lengths[count] = length;
+            count++;
+            bytes += length;
+        }
+
+        /**
+         * @param tags 窗口中所有记录的MAC区域
+         */
+        void process(YCMac mac, ByteBuffer tags, int tagSize) {
+            tags = tags.duplicate();
+            tags.position(firstIndex * tagSize);
+            ByteBuffer record = data.duplicate();
+            byte[] tag = new byte[tagSize];
+            for (int i = 0; i < count; i++) {
+                record.limit(offsets[i] + lengths[i]);
+                record.position(offsets[i]);
+                mac.update(record);
+                mac.doFinal(tag, 0);
+                tags.put(tag);
+            }
+        }
+    }
+}
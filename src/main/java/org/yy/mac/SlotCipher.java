@@ -0,0 +1,260 @@
+package org.yy.mac;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 直接在堆外内存上运行的SM4和AES加密。
+ * <p>
+ * 轮密钥展开后以大端序int写入缓冲区的指定位置，加密时按绝对位置读取，不复制、不分配对象，
+ * 分组以4个int表示。供 {@link TerminalKeyTable} 等把密钥保存在堆外槽位中的结构使用。
+ * 只实现加密方向，MAC不需要解密。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+final class SlotCipher {
+    static final int SM4 = 1;
+    static final int AES = 2;
+
+    private static final int[] FK = {0xa3b1bac6, 0x56aa3350, 0x677d9197, 0xb27022dc};
+    private static final int[] CK = new int[32];
+    private static final int[] SM4_SBOX = {
+            0xd6, 0x90, 0xe9, 0xfe, 0xcc, 0xe1, 0x3d, 0xb7, 0x16, 0xb6, 0x14, 0xc2, 0x28, 0xfb, 0x2c, 0x05,
+            0x2b, 0x67, 0x9a, 0x76, 0x2a, 0xbe, 0x04, 0xc3, 0xaa, 0x44, 0x13, 0x26, 0x49, 0x86, 0x06, 0x99,
+            0x9c, 0x42, 0x50, 0xf4, 0x91, 0xef, 0x98, 0x7a, 0x33, 0x54, 0x0b, 0x43, 0xed, 0xcf, 0xac, 0x62,
+            0xe4, 0xb3, 0x1c, 0xa9, 0xc9, 0x08, 0xe8, 0x95, 0x80, 0xdf, 0x94, 0xfa, 0x75, 0x8f, 0x3f, 0xa6,
+            0x47, 0x07, 0xa7, 0xfc, 0xf3, 0x73, 0x17, 0xba, 0x83, 0x59, 0x3c, 0x19, 0xe6, 0x85, 0x4f, 0xa8,
+            0x68, 0x6b, 0x81, 0xb2, 0x71, 0x64, 0xda, 0x8b, 0xf8, 0xeb, 0x0f, 0x4b, 0x70, 0x56, 0x9d, 0x35,
+            0x1e, 0x24, 0x0e, 0x5e, 0x63, 0x58, 0xd1, 0xa2, 0x25, 0x22, 0x7c, 0x3b, 0x01, 0x21, 0x78, 0x87,
+            0xd4, 0x00, 0x46, 0x57, 0x9f, 0xd3, 0x27, 0x52, 0x4c, 0x36, 0x02, 0xe7, 0xa0, 0xc4, 0xc8, 0x9e,
+            0xea, 0xbf, 0x8a, 0xd2, 0x40, 0xc7, 0x38, 0xb5, 0xa3, 0xf7, 0xf2, 0xce, 0xf9, 0x61, 0x15, 0xa1,
+            0xe0, 0xae, 0x5d, 0xa4, 0x9b, 0x34, 0x1a, 0x55, 0xad, 0x93, 0x32, 0x30, 0xf5, 0x8c, 0xb1, 0xe3,
+            0x1d, 0xf6, 0xe2, 0x2e, 0x82, 0x66, 0xca, 0x60, 0xc0, 0x29, 0x23, 0xab, 0x0d, 0x53, 0x4e, 0x6f,
+            0xd5, 0xdb, 0x37, 0x45, 0xde, 0xfd, 0x8e, 0x2f, 0x03, 0xff, 0x6a, 0x72, 0x6d, 0x6c, 0x5b, 0x51,
+            0x8d, 0x1b, 0xaf, 0x92, 0xbb, 0xdd, 0xbc, 0x7f, 0x11, 0xd9, 0x5c, 0x41, 0x1f, 0x10, 0x5a, 0xd8,
+            0x0a, 0xc1, 0x31, 0x88, 0xa5, 0xcd, 0x7b, 0xbd, 0x2d, 0x74, 0xd0, 0x12, 0xb8, 0xe5, 0xb4, 0xb0,
+            0x89, 0x69, 0x97, 0x4a, 0x0c, 0x96, 0x77, 0x7e, 0x65, 0xb9, 0xf1, 0x09, 0xc5, 0x6e, 0xc6, 0x84,
+            0x18, 0xf0, 0x7d, 0xec, 0x3a, 0xdc, 0x4d, 0x20, 0x79, 0xee, 0x5f, 0x3e, 0xd7, 0xcb, 0x39, 0x48
+    };
+
+    //SM4的轮函数T按字节查表：T0[x] = L(S(x) << 24)，其余为T0的循环右移
+    private static final int[] ST0 = new int[256];
+    private static final int[] ST1 = new int[256];
+    private static final int[] ST2 = new int[256];
+    private static final int[] ST3 = new int[256];
+
+    private static final int[] AES_SBOX = new int[256];
+    private static final int[] TE0 = new int[256];
+    private static final int[] TE1 = new int[256];
+    private static final int[] TE2 = new int[256];
+    private static final int[] TE3 = new int[256];
+
+    static {
+        for (int i = 0; i < 32; i++) {
+            int ck = 0;
+            for (int j = 0; j < 4; j++)
+                ck = (ck << 8) | (((4 * i + j) * 7) & 0xff);
+            CK[i] = ck;
+        }
+        for (int i = 0; i < 256; i++) {
+            int b = SM4_SBOX[i] << 24;
+            int t = b ^ Integer.rotateLeft(b, 2) ^ Integer.rotateLeft(b, 10) ^ Integer.rotateLeft(b, 18) ^ Integer.rotateLeft(b, 24);
+            ST0[i] = t;
+            ST1[i] = Integer.rotateRight(t, 8);
+            ST2[i] = Integer.rotateRight(t, 16);
+            ST3[i] = Integer.rotateRight(t, 24);
+        }
+
+        //p遍历GF(2^8)的乘法群（生成元3），q为p的逆元
+        int p = 1;
+        int q = 1;
+        AES_SBOX[0] = 0x63;
+        do {
+            p = (p ^ (p << 1) ^ ((p & 0x80) != 0 ? 0x1b : 0)) & 0xff;
+            q ^= q << 1;
+            q ^= q << 2;
+            q ^= q << 4;
+            q &= 0xff;
+            if ((q & 0x80) != 0)
+                q ^= 0x09;
+            int x = q ^ rotl8(q, 1) ^ rotl8(q, 2) ^ rotl8(q, 3) ^ rotl8(q, 4);
+            AES_SBOX[p] = (x ^ 0x63) & 0xff;
+        } while (p != 1);
+
+        for (int i = 0; i < 256; i++) {
+            int s = AES_SBOX[i];
+            int s2 = xtime(s);
+            int t = (s2 << 24) | (s << 16) | (s << 8) | (s2 ^ s);
+            TE0[i] = t;
+            TE1[i] = Integer.rotateRight(t, 8);
+            TE2[i] = Integer.rotateRight(t, 16);
+            TE3[i] = Integer.rotateRight(t, 24);
+        }
+    }
+
+    private SlotCipher() {
+    }
+
+    /**
+     * @param algSymm 对称算法
+     * @return SM4 或 AES
+     * @throws IllegalArgumentException 不支持的算法
+     */
+    static int getAlgorithm(AlgSymm algSymm) {
+        switch (algSymm) {
+            case SM4:
+                return SM4;
+            case AES128:
+            case AES192:
+            case AES256:
+                return AES;
+            default:
+                throw new IllegalArgumentException("Key slots do not support " + algSymm.name());
+        }
+    }
+
+    /**
+     * 展开轮密钥，写入 buf 的 [rkOff, rkOff + 轮密钥长度)。
+     *
+     * @param algorithm SM4 或 AES
+     * @param key       密钥
+     * @param keyOff    密钥起始位置
+     * @param keyLen    密钥长度。SM4为16，AES为16、24或32
+     * @param buf       目标缓冲区，不修改 position
+     * @param rkOff     轮密钥的绝对位置
+     * @return 轮数
+     */
+    static int expandKey(int algorithm, byte[] key, int keyOff, int keyLen, ByteBuffer buf, int rkOff) {
+        if (algorithm == SM4) {
+            if (keyLen != 16)
+                throw new IllegalArgumentException("SM4 key must be 16 bytes");
+            int k0 = getInt(key, keyOff) ^ FK[0];
+            int k1 = getInt(key, keyOff + 4) ^ FK[1];
+            int k2 = getInt(key, keyOff + 8) ^ FK[2];
+            int k3 = getInt(key, keyOff + 12) ^ FK[3];
+            for (int i = 0; i < 32; i++) {
+                int t = tau(k1 ^ k2 ^ k3 ^ CK[i]);
+                int rk = k0 ^ t ^ Integer.rotateLeft(t, 13) ^ Integer.rotateLeft(t, 23);
+                buf.putInt(rkOff + 4 * i, rk);
+                k0 = k1;
+                k1 = k2;
+                k2 = k3;
+                k3 = rk;
+            }
+            return 32;
+        }
+
+        if (keyLen != 16 && keyLen != 24 && keyLen != 32)
+            throw new IllegalArgumentException("AES key must be 16, 24 or 32 bytes");
+        int nk = keyLen / 4;
+        int rounds = nk + 6;
+        int words = 4 * (rounds + 1);
+        for (int i = 0; i < nk; i++)
+            buf.putInt(rkOff + 4 * i, getInt(key, keyOff + 4 * i));
+        int rcon = 1;
+        for (int i = nk; i < words; i++) {
+            int t = buf.getInt(rkOff + 4 * (i - 1));
+            if (i % nk == 0) {
+                t = subWord(Integer.rotateLeft(t, 8)) ^ (rcon << 24);
+                rcon = xtime(rcon);
+            } else if (nk > 6 && i % nk == 4)
+                t = subWord(t);
+            buf.putInt(rkOff + 4 * i, buf.getInt(rkOff + 4 * (i - nk)) ^ t);
+        }
+        return rounds;
+    }
+
+    /**
+     * 加密一个分组。
+     *
+     * @param algorithm SM4 或 AES
+     * @param rounds    {@link #expandKey} 返回的轮数
+     * @param buf       轮密钥所在的缓冲区
+     * @param rkOff     轮密钥的绝对位置
+     * @param s         [in/out] 分组，4个大端序int
+     */
+    static void encrypt(int algorithm, int rounds, ByteBuffer buf, int rkOff, int[] s) {
+        if (algorithm == SM4)
+            encryptSm4(buf, rkOff, s);
+        else
+            encryptAes(rounds, buf, rkOff, s);
+    }
+
+    private static void encryptSm4(ByteBuffer buf, int rkOff, int[] s) {
+        int x0 = s[0];
+        int x1 = s[1];
+        int x2 = s[2];
+        int x3 = s[3];
+        for (int i = 0; i < 32; i += 4) {
+            x0 ^= t(x1 ^ x2 ^ x3 ^ buf.getInt(rkOff + 4 * i));
+            x1 ^= t(x2 ^ x3 ^ x0 ^ buf.getInt(rkOff + 4 * i + 4));
+            x2 ^= t(x3 ^ x0 ^ x1 ^ buf.getInt(rkOff + 4 * i + 8));
+            x3 ^= t(x0 ^ x1 ^ x2 ^ buf.getInt(rkOff + 4 * i + 12));
+        }
+        s[0] = x3;
+        s[1] = x2;
+        s[2] = x1;
+        s[3] = x0;
+    }
+
+    private static void encryptAes(int rounds, ByteBuffer buf, int rkOff, int[] s) {
+        int s0 = s[0] ^ buf.getInt(rkOff);
+        int s1 = s[1] ^ buf.getInt(rkOff + 4);
+        int s2 = s[2] ^ buf.getInt(rkOff + 8);
+        int s3 = s[3] ^ buf.getInt(rkOff + 12);
+        int k = rkOff + 16;
+        for (int r = 1; r < rounds; r++, k += 16) {
+            int t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xff] ^ TE2[(s2 >>> 8) & 0xff] ^ TE3[s3 & 0xff] ^ buf.getInt(k);
+            int t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xff] ^ TE2[(s3 >>> 8) & 0xff] ^ TE3[s0 & 0xff] ^ buf.getInt(k + 4);
+            int t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xff] ^ TE2[(s0 >>> 8) & 0xff] ^ TE3[s1 & 0xff] ^ buf.getInt(k + 8);
+            int t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xff] ^ TE2[(s1 >>> 8) & 0xff] ^ TE3[s2 & 0xff] ^ buf.getInt(k + 12);
+            s0 = t0;
+            s1 = t1;
+            s2 = t2;
+            s3 = t3;
+        }
+        s[0] = lastRound(s0, s1, s2, s3) ^ buf.getInt(k);
+        s[1] = lastRound(s1, s2, s3, s0) ^ buf.getInt(k + 4);
+        s[2] = lastRound(s2, s3, s0, s1) ^ buf.getInt(k + 8);
+        s[3] = lastRound(s3, s0, s1, s2) ^ buf.getInt(k + 12);
+    }
+
+    private static int lastRound(int a, int b, int c, int d) {
+        return (AES_SBOX[a >>> 24] << 24) | (AES_SBOX[(b >>> 16) & 0xff] << 16)
+                | (AES_SBOX[(c >>> 8) & 0xff] << 8) | AES_SBOX[d & 0xff];
+    }
+
+    private static int subWord(int x) {
+        return (AES_SBOX[x >>> 24] << 24) | (AES_SBOX[(x >>> 16) & 0xff] << 16)
+                | (AES_SBOX[(x >>> 8) & 0xff] << 8) | AES_SBOX[x & 0xff];
+    }
+
+    private static int tau(int x) {
+        return (SM4_SBOX[x >>> 24] << 24) | (SM4_SBOX[(x >>> 16) & 0xff] << 16)
+                | (SM4_SBOX[(x >>> 8) & 0xff] << 8) | SM4_SBOX[x & 0xff];
+    }
+
+    //SM4的轮函数T：非线性变换后进行线性变换L
+    private static int t(int x) {
+        return ST0[x >>> 24] ^ ST1[(x >>> 16) & 0xff] ^ ST2[(x >>> 8) & 0xff] ^ ST3[x & 0xff];
+    }
+
+    private static int xtime(int x) {
+        return ((x << 1) ^ ((x & 0x80) != 0 ? 0x1b : 0)) & 0xff;
+    }
+
+    private static int rotl8(int x, int n) {
+        return ((x << n) | (x >>> (8 - n))) & 0xff;
+    }
+
+    static int getInt(byte[] b, int off) {
+        return (b[off] << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    static void putInt(int v, byte[] b, int off) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
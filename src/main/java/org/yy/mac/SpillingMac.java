@@ -0,0 +1,251 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.Mac;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 消息长度未知时的填充方式3。
+ * <p>
+ * 填充方式3在第一个分组之前添加消息长度，{@link YCMac} 在 init 时就需要长度，长度未知的数据只能先全部读入堆中。
+ * 这里先把数据暂存在内存缓冲区中，缓冲区达到上限后整体写入临时文件；doFinal 时已知长度，
+ * 换用声明该长度的执行计划（不重新进行密钥诱导），输入长度分组后再依次读入临时文件和缓冲区中的数据计算。
+ * 缓冲区随输入按需增长，无论消息多长，堆内存都不超过上限；读临时文件时复用同一个缓冲区。
+ * <p>
+ * 临时文件在溢出时创建，doFinal、reset 或 {@link #close()} 时删除。不需要溢出的短消息不创建文件。
+ * 放弃一个未完成的消息时必须调用 reset 或 close，否则临时文件会一直保留，只在JVM正常退出时尽力删除。
+ * 作为JCA的 javax.crypto.Mac 使用时没有 close，调用方放弃消息前应调用 Mac.reset()。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class SpillingMac implements Mac, AutoCloseable {
+    /**
+     * 默认的内存缓冲区大小
+     */
+    public static final int DEFAULT_MEMORY_LIMIT = 1024 * 1024;
+
+    private final YCMac mac;
+    private final int memoryLimit; //内存缓冲区的上限
+    private byte[] memory = new byte[0]; //未写入临时文件的数据，按需增长到 memoryLimit
+    private final Path directory; //临时文件所在的目录，null为系统默认目录
+    private int memoryOff;
+    private long length; //已输入的消息长度
+    private FileChannel spill; //临时文件，未溢出时为null
+    private MacPlan plan; //init 时编译的执行计划，长度在 doFinal 时替换
+
+    public SpillingMac(BlockCipher cipher) {
+        this(cipher, cipher.getBlockSize() * 8, DEFAULT_MEMORY_LIMIT, null);
+    }
+
+    /**
+     * @param cipher        底层分组密码
+     * @param macSizeInBits Mac比特长度
+     * @param memoryLimit   内存缓冲区的最大字节数，超过后写入临时文件
+     * @param directory     临时文件所在的目录，null为系统默认目录
+     */
+    public SpillingMac(BlockCipher cipher, int macSizeInBits, int memoryLimit, Path directory) {
+        if (memoryLimit < cipher.getBlockSize())
+            throw new IllegalArgumentException("Memory limit must be at least one block");
+        this.mac = new YCMac(cipher, macSizeInBits);
+        this.memoryLimit = memoryLimit;
+        this.directory = directory;
+    }
+
+    /**
+     * 初始化。声明的消息长度被忽略。
+     *
+     * @param params 填充方式3的 {@link ParametersWithPadding} 或 {@link MacPlan}
+     */
+    @Override
+    public void init(CipherParameters params) {
+        mac.init(params);
+        if (mac.getPlan().prefix == null)
+            throw new IllegalArgumentException("SpillingMac only supports padding 3");
+        plan = mac.getPlan();
+        reset();
+    }
+
+    @Override
+    public String getAlgorithmName() {
+        return mac.getAlgorithmName();
+    }
+
+    @Override
+    public int getMacSize() {
+        return mac.getMacSize();
+    }
+
+    /**
+     * @return 当前消息已输入的字节数
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return 当前消息是否已写入临时文件
+     */
+    public boolean isSpilled() {
+        return spill != null && spillSize() > 0;
+    }
+
+    @Override
+    public void update(byte in) {
+        if (memoryOff == memoryLimit)
+            flush();
+        if (memoryOff == memory.length)
+            grow(memoryOff + 1);
+        memory[memoryOff++] = in;
+        length++;
+    }
+
+    @Override
+    public void update(byte[] in, int inOff, int len) {
+        if (len < 0)
+            throw new IllegalArgumentException("Can't have a negative input length!");
+
+        length += len;
+        while (len > 0) {
+            if (memoryOff == memoryLimit)
+                flush();
+            int n = Math.min(len, memoryLimit - memoryOff);
+            grow(memoryOff + n);
+            System.arraycopy(in, inOff, memory, memoryOff, n);
+            memoryOff += n;
+            inOff += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public int doFinal(byte[] out, int outOff) {
+        try {
+            mac.init(plan.withLength(length));
+            if (isSpilled()) {
+                //临时文件中的数据在前；先写入缓冲区中剩余的数据，再复用缓冲区顺序读取
+                flush();
+                grow(memoryLimit);
+                ByteBuffer chunk = ByteBuffer.wrap(memory);
+                long pos = 0;
+                while (true) {
+                    chunk.clear();
+                    int n = spill.read(chunk, pos);
+                    if (n < 0)
+                        break;
+                    mac.update(memory, 0, n);
+                    pos += n;
+                }
+            } else
+                mac.update(memory, 0, memoryOff);
+            return mac.doFinal(out, outOff);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * 恢复到 init 之后的状态，丢弃已输入的数据并删除临时文件。
+     */
+    @Override
+    public void reset() {
+        memoryOff = 0;
+        length = 0;
+        close();
+    }
+
+    /**
+     * 复制当前的计算状态，包括已写入临时文件的数据。目标对象必须使用同类的分组密码和相同的Mac大小构造。
+     *
+     * @param dst 目标对象
+     */
+    void copyState(SpillingMac dst) {
+        if (dst.memoryLimit < memoryOff)
+            throw new IllegalArgumentException("Memory limit of the copy is too small");
+        dst.init(plan);
+        dst.grow(memoryOff);
+        try {
+            if (isSpilled()) {
+                dst.spillChannel();
+                long size = spillSize();
+                for (long pos = 0; pos < size; )
+                    pos += spill.transferTo(pos, size - pos, dst.spill);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.arraycopy(memory, 0, dst.memory, 0, memoryOff);
+        dst.memoryOff = memoryOff;
+        dst.length = length;
+    }
+
+    /**
+     * 删除临时文件。之后仍可以继续使用，溢出时重新创建。
+     */
+    @Override
+    public void close() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                spill = null;
+            }
+        }
+    }
+
+    /**
+     * 把缓冲区中的数据追加到临时文件。
+     */
+    private void flush() {
+        try {
+            FileChannel channel = spillChannel();
+            ByteBuffer src = ByteBuffer.wrap(memory, 0, memoryOff);
+            while (src.hasRemaining())
+                channel.write(src, channel.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        memoryOff = 0;
+    }
+
+    /**
+     * 确保缓冲区至少能容纳 size 字节，按倍数增长，不超过上限。
+     */
+    private void grow(int size) {
+        if (size <= memory.length)
+            return;
+        int capacity = Math.max(size, Math.max(memory.length * 2, 256));
+        memory = Arrays.copyOf(memory, Math.min(capacity, memoryLimit));
+    }
+
+    private FileChannel spillChannel() throws IOException {
+        if (spill == null) {
+            Path file = directory != null
+                    ? Files.createTempFile(directory, "ymac", ".spill")
+                    : Files.createTempFile("ymac", ".spill");
+            spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        return spill;
+    }
+
+    private long spillSize() {
+        try {
+            return spill.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,722 @@
+package org.yy.mac;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 堆外的终端密钥表。
+ * <p>
+ * 每个终端占用一个固定大小的槽位，保存密钥、展开后的轮密钥和CMAC的子密钥，槽位和索引都在直接内存中，
+ * 不占用Java堆，几百万个终端也不会增加GC的负担。索引是以终端号为键的开放寻址（线性探测）散列表。
+ * 计算MAC时通过 {@link Engine} 直接使用槽位中的轮密钥，不需要每笔交易重新进行密钥扩展，也不分配对象。
+ * <p>
+ * 支持SM4和AES（{@link SlotCipher}），不支持DES和3DES。
+ * 查找和计算MAC可以在多个线程中并发进行；{@link #put}、{@link #load} 和 {@link #remove} 修改表，
+ * 不能与计算MAC同时进行，应在加载完成后再开始使用。
+ * <p>
+ * 槽位布局，n为构造时指定的最大密钥长度：
+ * <pre>
+ *   0     终端号(8)  AlgSymm序号(1)  算法(1)  轮数(1)  密钥长度(1)  保留(4)
+ *  16     密钥(n)
+ *  16+n   K1(16)  K2(16)
+ *  48+n   轮密钥(4n+112)
+ * </pre>
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class TerminalKeyTable implements TerminalKeyTableMXBean {
+    private static final int KEY_OFFSET = 16;
+    private static final int SEGMENT_SIZE = 1 << 30;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    /**
+     * 索引最多 2^26 个表项（1GB），装载因子不超过0.75。
+     */
+    public static final int MAX_CAPACITY = (1 << 26) / 4 * 3;
+
+    private final int capacity;
+    private final int maxKeySize;
+    private final int slotSize;
+    private final int k1Offset;
+    private final int k2Offset;
+    private final int roundKeyOffset;
+    private final int segmentSlots;
+    private final ByteBuffer[] segments;
+    private final ByteBuffer index;
+    private final int mask;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private int[] freeSlots = new int[0]; //remove 和 load 替换时释放的槽位，优先使用
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private int size;
+
+    /**
+     * 槽位可以保存所有支持的密钥（320字节）。
+     *
+     * @param capacity 最多保存的终端数
+     */
+    public TerminalKeyTable(int capacity) {
+        this(capacity, 32);
+    }
+
+    /**
+     * 只保存SM4和AES-128密钥时 maxKeySize 为16，槽位为240字节。
+     *
+     * @param capacity   最多保存的终端数
+     * @param maxKeySize 最大的密钥长度：16、24或32
+     */
+    public TerminalKeyTable(int capacity, int maxKeySize) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Capacity must be 1 to " + MAX_CAPACITY);
+        if (maxKeySize != 16 && maxKeySize != 24 && maxKeySize != 32)
+            throw new IllegalArgumentException("Max key size must be 16, 24 or 32");
+
+        this.capacity = capacity;
+        this.maxKeySize = maxKeySize;
+        this.k1Offset = KEY_OFFSET + maxKeySize;
+        this.k2Offset = k1Offset + 16;
+        this.roundKeyOffset = k2Offset + 16;
+        this.slotSize = roundKeyOffset + 16 * (maxKeySize / 4 + 7); //AES的4*(Nr+1)个字
+        this.segmentSlots = SEGMENT_SIZE / slotSize;
+        int segmentCount = (capacity + segmentSlots - 1) / segmentSlots;
+        this.segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            int slots = Math.min(segmentSlots, capacity - i * segmentSlots);
+            segments[i] = ByteBuffer.allocateDirect(slots * slotSize);
+        }
+
+        int entries = 16;
+        while (entries < capacity / 3 * 4 + 4)
+            entries <<= 1;
+        this.index = ByteBuffer.allocateDirect(entries * INDEX_ENTRY_SIZE);
+        this.mask = entries - 1;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * @return 终端数
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public int getSize() {
+        return size();
+    }
+
+    /**
+     * @return 槽位和索引占用的直接内存字节数
+     */
+    @Override
+    public long getMemorySize() {
+        long bytes = index.capacity();
+        for (ByteBuffer segment : segments)
+            bytes += segment.capacity();
+        return bytes;
+    }
+
+    @Override
+    public boolean contains(long terminalId) {
+        return find(terminalId) >= 0;
+    }
+
+    /**
+     * @param terminalId 终端号
+     * @return 终端密钥的算法，终端不存在时返回null
+     */
+    public AlgSymm getAlgSymm(long terminalId) {
+        int slot = find(terminalId);
+        if (slot < 0)
+            return null;
+        return AlgSymm.values()[segment(slot).get(offset(slot) + 8)];
+    }
+
+    /**
+     * 添加终端，或替换已有终端的密钥。
+     *
+     * @param terminalId 终端号
+     * @param algSymm    对称算法：SM4、AES128、AES192或AES256
+     * @param key        密钥
+     * @throws IllegalArgumentException 算法不支持，或密钥长度错误
+     * @throws IllegalStateException    表已满
+     */
+    public synchronized void put(long terminalId, AlgSymm algSymm, byte[] key) {
+        checkKey(algSymm, key.length);
+        int slot = find(terminalId);
+        if (slot < 0)
+            slot = allocateSlot();
+        writeSlot(slot, terminalId, algSymm, key, 0, new int[4]);
+        insert(terminalId, slot);
+    }
+
+    /**
+     * 删除终端，清零槽位中的密钥：删除后该终端的MAC计算失败，直到 {@link #put} 新的密钥。
+     * 释放的槽位由之后的 {@link #put} 使用。
+     * <p>
+     * 与 {@link #put} 相同，只能在没有计算MAC时调用：删除会移动索引项并清零槽位，同时进行的查找可能找不到
+     * 其他终端，或读到被重新使用的槽位。所以不通过JMX提供。
+     *
+     * @param terminalId 终端号
+     * @return 终端是否存在
+     */
+    public synchronized boolean remove(long terminalId) {
+        int i = hash(terminalId) & mask;
+        while (true) {
+            int entry = i * INDEX_ENTRY_SIZE;
+            int slot = index.getInt(entry + 8);
+            if (slot == 0)
+                return false;
+            if (index.getLong(entry) == terminalId) {
+                clearSlot(slot - 1, 0);
+                freeSlot(slot - 1);
+                deleteEntry(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * 删除所有线程缓存的以该终端的密钥初始化的Mac对象（{@link CMacTool#evictCachedKey(byte[])}），用于轮换单个终端的密钥。
+     * 不修改表，可以在计算MAC时调用。
+     *
+     * @param terminalId 终端号
+     * @return 终端是否存在
+     */
+    @Override
+    public synchronized boolean evictCachedKey(long terminalId) {
+        int slot = find(terminalId);
+        if (slot < 0)
+            return false;
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        byte[] key = new byte[segment.get(base + 11)];
+        for (int i = 0; i < key.length; i++)
+            key[i] = segment.get(base + KEY_OFFSET + i);
+        CMacTool.evictCachedKey(key);
+        Arrays.fill(key, (byte) 0);
+        return true;
+    }
+
+    /**
+     * 从密钥文件并行加载终端密钥。
+     * <p>
+     * 文件每行一个终端：终端号、算法名称（{@link AlgSymm} 的枚举名）和十六进制密钥，以空格或Tab分隔，
+     * 空行和以#开头的行被忽略。文件按行分成 threads 段，每个线程解析一段并写入槽位，最后统一建立索引。
+     * 文件中已在表中的终端替换原来的密钥：新的密钥写入空闲的槽位，加载成功后释放原来的槽位，供之后的
+     * {@link #put} 和 load 使用，所以定期重新加载同一个文件时，表中需要为替换的终端留出同样多的槽位。
+     * 格式错误或同一终端在文件中出现多次时，文件中的终端都不加入，原来的密钥不变。
+     *
+     * @param keyFile 密钥文件
+     * @param threads 线程数
+     * @return 加载的终端数
+     * @throws IOException 读取错误，或文件格式错误
+     */
+    public synchronized int load(Path keyFile, int threads) throws IOException {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Thread count must be positive");
+
+        int firstFree = freeCount.get();
+        int firstSlot = nextSlot.get();
+        int[] slots;
+        try {
+            parseFile(keyFile, threads);
+            slots = loadedSlots(firstFree, firstSlot);
+            checkDuplicates(slots);
+        } catch (IOException | RuntimeException e) {
+            //出错时文件中的终端都不加入，清除已写入的槽位
+            for (int slot : loadedSlots(firstFree, firstSlot))
+                clearSlot(slot, 0);
+            freeCount.set(firstFree);
+            nextSlot.set(firstSlot);
+            throw e;
+        }
+
+        for (int slot : slots)
+            insert(segment(slot).getLong(offset(slot)), slot);
+        return slots.length;
+    }
+
+    /**
+     * @return 本次加载使用的槽位：取出的空闲槽位和新分配的槽位
+     */
+    private int[] loadedSlots(int firstFree, int firstSlot) {
+        int lastFree = freeCount.get();
+        int lastSlot = Math.min(nextSlot.get(), capacity);
+        int[] slots = new int[firstFree - lastFree + lastSlot - firstSlot];
+        System.arraycopy(freeSlots, lastFree, slots, 0, firstFree - lastFree);
+        for (int slot = firstSlot, i = firstFree - lastFree; slot < lastSlot; slot++, i++)
+            slots[i] = slot;
+        return slots;
+    }
+
+    private void parseFile(Path keyFile, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(keyFile, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize > Integer.MAX_VALUE)
+                throw new IOException("Key file is too large");
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+            int length = (int) fileSize;
+            int[] starts = new int[threads + 1];
+            starts[threads] = length;
+            for (int i = 1; i < threads; i++) {
+                int pos = Math.max(starts[i - 1], (int) ((long) length * i / threads));
+                while (pos > 0 && pos < length && data.get(pos - 1) != '\n')
+                    pos++;
+                starts[i] = pos;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    int start = starts[i];
+                    int end = starts[i + 1];
+                    futures.add(executor.submit(() -> parse(data, start, end)));
+                }
+                //等待所有线程结束后再报告错误，出错时才能安全地清除槽位
+                Throwable failure = null;
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null)
+                            failure = e.getCause();
+                    }
+                }
+                if (failure instanceof UncheckedIOException)
+                    throw ((UncheckedIOException) failure).getCause();
+                if (failure instanceof RuntimeException)
+                    throw (RuntimeException) failure;
+                if (failure != null)
+                    throw new IllegalStateException(failure);
+            } catch (InterruptedException e) {
+                //解析线程不响应中断，结束后才能清除槽位
+                executor.shutdownNow();
+                awaitTermination(executor);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading key file", e);
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        while (true) {
+            try {
+                if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS))
+                    return;
+            } catch (InterruptedException e) {
+                //继续等待，调用者会恢复中断状态
+            }
+        }
+    }
+
+    private void checkDuplicates(int[] slots) throws IOException {
+        long[] ids = new long[slots.length];
+        for (int i = 0; i < slots.length; i++)
+            ids[i] = segment(slots[i]).getLong(offset(slots[i]));
+        Arrays.parallelSort(ids);
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i] == ids[i - 1])
+                throw new IOException("Duplicate terminal " + ids[i] + " in key file");
+        }
+    }
+
+    /**
+     * 创建计算对象。计算对象只能在一个线程中使用，每个线程创建一个。
+     *
+     * @return 计算对象
+     */
+    public Engine newEngine() {
+        return new Engine();
+    }
+
+    private void parse(ByteBuffer data, int start, int end) {
+        byte[] key = new byte[32];
+        int[] block = new int[4];
+        int pos = start;
+        while (pos < end) {
+            int lineStart = pos;
+            int lineEnd = pos;
+            while (lineEnd < end && data.get(lineEnd) != '\n')
+                lineEnd++;
+            pos = lineEnd + 1;
+            if (lineEnd > lineStart && data.get(lineEnd - 1) == '\r')
+                lineEnd--;
+
+            int p = skipBlank(data, lineStart, lineEnd);
+            if (p == lineEnd || data.get(p) == '#')
+                continue;
+
+            long terminalId = 0;
+            int digits = 0;
+            for (; p < lineEnd && isDigit(data.get(p)); p++, digits++) {
+                if (terminalId > (Long.MAX_VALUE - 9) / 10)
+                    throw invalidLine(lineStart, "terminal id overflows");
+                terminalId = terminalId * 10 + data.get(p) - '0';
+            }
+            if (digits == 0)
+                throw invalidLine(lineStart, "missing terminal id");
+
+            p = skipBlank(data, p, lineEnd);
+            int nameStart = p;
+            while (p < lineEnd && !isBlank(data.get(p)))
+                p++;
+            byte[] name = new byte[p - nameStart];
+            for (int i = 0; i < name.length; i++)
+                name[i] = data.get(nameStart + i);
+            AlgSymm algSymm;
+            try {
+                algSymm = AlgSymm.valueOf(new String(name, StandardCharsets.US_ASCII));
+            } catch (IllegalArgumentException e) {
+                throw invalidLine(lineStart, "unknown algorithm");
+            }
+
+            p = skipBlank(data, p, lineEnd);
+            int keyLen = 0;
+            while (p < lineEnd && !isBlank(data.get(p))) {
+                if (p + 1 >= lineEnd || keyLen == key.length)
+                    throw invalidLine(lineStart, "invalid key");
+                int hi = Character.digit(data.get(p), 16);
+                int lo = Character.digit(data.get(p + 1), 16);
+                if (hi < 0 || lo < 0)
+                    throw invalidLine(lineStart, "invalid key");
+                key[keyLen++] = (byte) ((hi << 4) | lo);
+                p += 2;
+            }
+            if (skipBlank(data, p, lineEnd) != lineEnd)
+                throw invalidLine(lineStart, "unexpected trailing data");
+
+            try {
+                checkKey(algSymm, keyLen);
+            } catch (IllegalArgumentException e) {
+                throw invalidLine(lineStart, e.getMessage());
+            }
+            writeSlot(allocateSlot(), terminalId, algSymm, key, keyLen, block);
+        }
+    }
+
+    private static UncheckedIOException invalidLine(int offset, String message) {
+        return new UncheckedIOException(new IOException("Invalid key file line at offset " + offset + ": " + message));
+    }
+
+    private static int skipBlank(ByteBuffer data, int pos, int end) {
+        while (pos < end && isBlank(data.get(pos)))
+            pos++;
+        return pos;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private void checkKey(AlgSymm algSymm, int keyLen) {
+        int expected;
+        switch (algSymm) {
+            case AES192:
+                expected = 24;
+                break;
+            case AES256:
+                expected = 32;
+                break;
+            default:
+                SlotCipher.getAlgorithm(algSymm);
+                expected = 16;
+        }
+        if (keyLen != expected)
+            throw new IllegalArgumentException(algSymm.name() + " key must be " + expected + " bytes");
+        if (keyLen > maxKeySize)
+            throw new IllegalArgumentException("Key table only permits keys up to " + maxKeySize + " bytes");
+    }
+
+    /**
+     * 优先使用空闲的槽位。{@link #load} 的多个解析线程同时调用。
+     */
+    private int allocateSlot() {
+        int free = freeCount.getAndUpdate(n -> n > 0 ? n - 1 : n);
+        if (free > 0)
+            return freeSlots[free - 1];
+        int slot = nextSlot.getAndIncrement();
+        if (slot >= capacity) {
+            nextSlot.set(capacity);
+            throw new IllegalStateException("Terminal key table is full");
+        }
+        return slot;
+    }
+
+    /**
+     * 写入槽位：密钥、轮密钥，以及用 E(0) 计算的CMAC子密钥。
+     *
+     * @param keyLen 密钥长度，为0时使用整个 key 数组
+     * @param block  临时分组
+     */
+    private void writeSlot(int slot, long terminalId, AlgSymm algSymm, byte[] key, int keyLen, int[] block) {
+        if (keyLen == 0)
+            keyLen = key.length;
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        int algorithm = SlotCipher.getAlgorithm(algSymm);
+
+        clearSlot(slot, 0);
+        int rounds = SlotCipher.expandKey(algorithm, key, 0, keyLen, segment, base + roundKeyOffset);
+        segment.putLong(base, terminalId);
+        segment.put(base + 8, (byte) algSymm.ordinal());
+        segment.put(base + 9, (byte) algorithm);
+        segment.put(base + 10, (byte) rounds);
+        segment.put(base + 11, (byte) keyLen);
+        for (int i = 0; i < keyLen; i++)
+            segment.put(base + KEY_OFFSET + i, key[i]);
+
+        block[0] = block[1] = block[2] = block[3] = 0;
+        SlotCipher.encrypt(algorithm, rounds, segment, base + roundKeyOffset, block);
+        doubleBlock(block);
+        for (int i = 0; i < 4; i++)
+            segment.putInt(base + k1Offset + 4 * i, block[i]);
+        doubleBlock(block);
+        for (int i = 0; i < 4; i++)
+            segment.putInt(base + k2Offset + 4 * i, block[i]);
+        block[0] = block[1] = block[2] = block[3] = 0;
+    }
+
+    //GF(2^128)中乘以x
+    private static void doubleBlock(int[] b) {
+        int carry = b[0] >>> 31;
+        b[0] = (b[0] << 1) | (b[1] >>> 31);
+        b[1] = (b[1] << 1) | (b[2] >>> 31);
+        b[2] = (b[2] << 1) | (b[3] >>> 31);
+        b[3] = (b[3] << 1) ^ (carry * 0x87);
+    }
+
+    /**
+     * @return 终端的槽位号，终端不存在时返回-1
+     */
+    int slotOf(long terminalId) {
+        return find(terminalId);
+    }
+
+    /**
+     * @return 槽位是否仍保存该终端的密钥；终端被删除，或槽位被其他终端使用后返回false
+     */
+    boolean holds(int slot, long terminalId) {
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        return segment.getLong(base) == terminalId && segment.get(base + 9) != 0;
+    }
+
+    /**
+     * 用槽位中的轮密钥加密一个分组。
+     *
+     * @param s [in/out] 分组，4个大端序int
+     */
+    void encrypt(int slot, int[] s) {
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        SlotCipher.encrypt(segment.get(base + 9), segment.get(base + 10), segment, base + roundKeyOffset, s);
+    }
+
+    /**
+     * @param complete 最后一个分组是否完整：完整时为K1，否则为K2
+     * @param w        第几个int
+     * @return CMAC子密钥的一个int
+     */
+    int getSubkey(int slot, boolean complete, int w) {
+        return segment(slot).getInt(offset(slot) + (complete ? k1Offset : k2Offset) + 4 * w);
+    }
+
+    private ByteBuffer segment(int slot) {
+        return segments[slot / segmentSlots];
+    }
+
+    private int offset(int slot) {
+        return (slot % segmentSlots) * slotSize;
+    }
+
+    private static int hash(long terminalId) {
+        long h = terminalId * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return 槽位号，终端不存在时返回-1
+     */
+    private int find(long terminalId) {
+        int i = hash(terminalId) & mask;
+        while (true) {
+            int entry = i * INDEX_ENTRY_SIZE;
+            int slot = index.getInt(entry + 8);
+            if (slot == 0)
+                return -1;
+            if (index.getLong(entry) == terminalId)
+                return slot - 1;
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * 建立或更新索引项。终端已存在且槽位不同时，清除原来的槽位。
+     */
+    private void insert(long terminalId, int slot) {
+        int i = hash(terminalId) & mask;
+        while (true) {
+            int entry = i * INDEX_ENTRY_SIZE;
+            int old = index.getInt(entry + 8);
+            if (old == 0) {
+                index.putLong(entry, terminalId);
+                index.putInt(entry + 8, slot + 1);
+                size++;
+                return;
+            }
+            if (index.getLong(entry) == terminalId) {
+                if (old - 1 != slot) {
+                    clearSlot(old - 1, 8);
+                    freeSlot(old - 1);
+                }
+                index.putInt(entry + 8, slot + 1);
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * 删除索引项，把同一探测序列中后面的表项前移（线性探测不使用删除标记）。
+     */
+    private void deleteEntry(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int entry = j * INDEX_ENTRY_SIZE;
+            int slot = index.getInt(entry + 8);
+            if (slot == 0)
+                break;
+            long terminalId = index.getLong(entry);
+            int home = hash(terminalId) & mask;
+            //home 在 (i, j] 之间时表项不需要移动
+            if (i <= j ? i < home && home <= j : i < home || home <= j)
+                continue;
+            index.putLong(i * INDEX_ENTRY_SIZE, terminalId);
+            index.putInt(i * INDEX_ENTRY_SIZE + 8, slot);
+            i = j;
+        }
+        index.putLong(i * INDEX_ENTRY_SIZE, 0L);
+        index.putInt(i * INDEX_ENTRY_SIZE + 8, 0);
+    }
+
+    private void freeSlot(int slot) {
+        int n = freeCount.get();
+        if (n == freeSlots.length)
+            freeSlots = Arrays.copyOf(freeSlots, Math.max(16, n * 2));
+        freeSlots[n] = slot;
+        freeCount.set(n + 1);
+    }
+
+    private void clearSlot(int slot, int from) {
+        ByteBuffer segment = segment(slot);
+        int base = offset(slot);
+        for (int i = from; i < slotSize; i += 8)
+            segment.putLong(base + i, 0L);
+    }
+
+    /**
+     * 使用槽位中的密钥计算MAC。
+     * <p>
+     * 支持GB/T 15852.1的算法1（填充1或2）和算法5（填充4，即CMAC），IV为0，MAC长度为16字节，
+     * 结果与相同参数的 {@link YCMac} 相同。计算过程不分配对象。
+     */
+    public final class Engine {
+        private final int[] s = new int[4];
+
+        private Engine() {
+        }
+
+        /**
+         * @param terminalId 终端号
+         * @param typeAlg    MAC算法：1或5
+         * @param typePad    填充方式：算法1为1或2，算法5为4
+         * @param in         数据
+         * @param inOff      数据起始位置
+         * @param len        数据长度
+         * @param out        [out] MAC
+         * @param outOff     MAC的写入位置
+         * @return MAC长度
+         * @throws IllegalArgumentException 终端不存在，或算法和填充方式不支持
+         */
+        public int mac(long terminalId, int typeAlg, int typePad, byte[] in, int inOff, int len, byte[] out, int outOff) {
+            if (!(typeAlg == 1 && (typePad == 1 || typePad == 2)) && !(typeAlg == 5 && typePad == 4))
+                throw new IllegalArgumentException("Unsupported MAC algorithm " + typeAlg + " with padding " + typePad);
+            int slot = find(terminalId);
+            if (slot < 0)
+                throw new IllegalArgumentException("Unknown terminal " + terminalId);
+
+            ByteBuffer segment = segment(slot);
+            int base = offset(slot);
+            int algorithm = segment.get(base + 9);
+            int rounds = segment.get(base + 10);
+            int rk = base + roundKeyOffset;
+            int[] s = this.s;
+
+            //最后一个分组单独处理：填充2总是填充，其他填充方式在消息长度为分组整数倍时不填充
+            int lastOff = len > 0 && len % 16 == 0 && typePad != 2 ? len - 16 : len - len % 16;
+            s[0] = s[1] = s[2] = s[3] = 0;
+            for (int off = inOff; off < inOff + lastOff; off += 16) {
+                s[0] ^= SlotCipher.getInt(in, off);
+                s[1] ^= SlotCipher.getInt(in, off + 4);
+                s[2] ^= SlotCipher.getInt(in, off + 8);
+                s[3] ^= SlotCipher.getInt(in, off + 12);
+                SlotCipher.encrypt(algorithm, rounds, segment, rk, s);
+            }
+
+            int rem = len - lastOff;
+            int pad = typePad == 1 ? 0 : 0x80;
+            int subkey = rem == 16 ? k1Offset : k2Offset;
+            for (int w = 0; w < 4; w++) {
+                int word = 0;
+                for (int j = 4 * w; j < 4 * w + 4; j++) {
+                    int b = j < rem ? in[inOff + lastOff + j] & 0xff : j == rem ? pad : 0;
+                    word = (word << 8) | b;
+                }
+                if (typeAlg == 5)
+                    word ^= segment.getInt(base + subkey + 4 * w);
+                s[w] ^= word;
+            }
+            SlotCipher.encrypt(algorithm, rounds, segment, rk, s);
+
+            for (int w = 0; w < 4; w++)
+                SlotCipher.putInt(s[w], out, outOff + 4 * w);
+            s[0] = s[1] = s[2] = s[3] = 0;
+            return 16;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.yy.mac;
+
+/**
+ * {@link TerminalKeyTable} 的管理接口。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public interface TerminalKeyTableMXBean {
+    /**
+     * @return 终端数
+     */
+    int getSize();
+
+    int getCapacity();
+
+    int getSlotSize();
+
+    /**
+     * @return 槽位和索引占用的直接内存字节数
+     */
+    long getMemorySize();
+
+    boolean contains(long terminalId);
+
+    /**
+     * 删除所有线程缓存的以该终端的密钥初始化的Mac对象，用于轮换单个终端的密钥。
+     *
+     * @param terminalId 终端号
+     * @return 终端是否存在
+     */
+    boolean evictCachedKey(long terminalId);
+}
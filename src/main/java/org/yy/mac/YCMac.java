@@ -4,13 +4,13 @@ import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.Mac;
 import org.bouncycastle.crypto.macs.CMac;
-import org.bouncycastle.crypto.modes.CBCBlockCipher;
-import org.bouncycastle.crypto.paddings.ISO7816d4Padding;
-import org.bouncycastle.crypto.paddings.ZeroBytePadding;
-import org.bouncycastle.crypto.params.KeyParameter;
-import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.bouncycastle.util.Pack;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 /**
@@ -20,17 +20,24 @@ import java.util.Arrays;
  * @since 2022/11/2
  */
 public class YCMac implements Mac {
-    private final byte[] mac; //mac值
-    private final int macSize; //所需的Mac大小
+    private static final int MAP_WINDOW = 64 * 1024 * 1024;
+    private static final int STREAM_CHUNK = 64 * 1024;
+    private static final int STAGE_SIZE = 4096;
 
-    private final byte[] buf; //内部缓冲区
-    private int bufOff; //缓冲区当前数据长度
+    final byte[] mac; //当前链接值，计算结束后为mac值
+    private final int macSize; //所需的Mac大小
 
-    private byte[] K1; //用在初始变换2或最终迭代3中的密钥
-    private byte[] K2; //用在最终迭代2/3中的密钥
+    final byte[] buf; //内部缓冲区
+    int bufOff; //缓冲区当前数据长度
+    private byte[] stage; //direct ByteBuffer的分组暂存区
+    private boolean firstBlock; //下一个处理的分组是否为第一个分组，初始变换只作用于第一个分组
+    private long count; //已输入的消息长度，用于检查填充方式3声明的长度
+    boolean metered = true; //doFinal 是否计入 MacMetrics；内部副本和多通道对象的通道为false，由外层对象只计一次
 
-    private final BlockCipher cipher; //底层对称算法对象
-    ParametersWithPadding parameters; //算法参数
+    final BlockCipher cipher; //底层对称算法对象，update阶段总是以执行计划的迭代密钥初始化
+    private MacPlan plan; //执行计划
+    private BulkCbc bulk; //连续分组的批量迭代，不支持时为null
+    private MacPlan bulkPlan; //bulk 当前使用的执行计划
 
     public YCMac(BlockCipher cipher) {
         this(cipher, cipher.getBlockSize() * 8);
@@ -45,7 +52,7 @@ public class YCMac implements Mac {
             throw new IllegalArgumentException("MAC size must be less or equal to " + (cipher.getBlockSize() * 8));
         }
 
-        this.cipher = new CBCBlockCipher(cipher);
+        this.cipher = cipher;
         this.macSize = macSizeInBits / 8;
 
         mac = new byte[cipher.getBlockSize()];
@@ -54,39 +61,86 @@ public class YCMac implements Mac {
     }
 
     public String getAlgorithmName() {
-        return cipher.getAlgorithmName();
+        return cipher.getAlgorithmName() + "/CBC";
     }
 
+    /**
+     * 初始化。
+     *
+     * @param params {@link ParametersWithPadding}，在这里编译为执行计划；或已编译的 {@link MacPlan}
+     */
     public void init(CipherParameters params) {
-        validate(params);
+        if (params instanceof MacPlan) {
+            MacPlan plan = (MacPlan) params;
+            if (plan.blockSize != cipher.getBlockSize() || !plan.cipherName.equals(cipher.getAlgorithmName()))
+                throw new IllegalArgumentException("MacPlan was compiled for " + plan.cipherName + ", not " + cipher.getAlgorithmName());
+            cipher.init(true, plan.chainKey);
+            this.plan = plan;
+        } else if (params instanceof ParametersWithPadding)
+            this.plan = MacPlan.compile((ParametersWithPadding) params, cipher); //1.密钥诱导
+        else
+            throw new IllegalArgumentException("CMac mode only permits parameters type of ParametersWithPadding or MacPlan.");
 
-        cipher.init(true, parameters.getParameters());
-        keyInduce(); //1.密钥诱导
-        reset();
+        firstBlock = true;
+        resetState();
+    }
 
-        //填充方式3：处理在开头添加的填充块
-        if (parameters.typePad == 3) {
-            byte[] temp = new byte[cipher.getBlockSize()];
-            byte[] bLen = Pack.intToBigEndian(parameters.length * 8);
-            System.arraycopy(bLen, 0, temp, temp.length - bLen.length, bLen.length);
-            update(temp, 0, temp.length);
+    /**
+     * 当前的执行计划。
+     *
+     * @return 执行计划，未初始化时为null
+     */
+    public MacPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * 复制当前的计算状态。
+     * <p>
+     * 目标对象必须使用同类的分组密码和相同的Mac大小构造；只能在 init 之后、doFinal 之前调用。
+     * 复制后两个对象相互独立，可以分别继续 update。
+     *
+     * @param dst 目标对象
+     */
+    void copyState(YCMac dst) {
+        if (dst.plan != plan) {
+            dst.cipher.init(true, plan.chainKey);
+            dst.plan = plan;
         }
+        copyChain(dst);
     }
 
-    void validate(CipherParameters params) {
-        if (params instanceof ParametersWithPadding)
-            parameters = (ParametersWithPadding) params;
-        else
-            throw new IllegalArgumentException("CMac mode only permits parameters type of ParametersWithPadding.");
+    /**
+     * 把迭代状态复制到另一个对象，目标保留自己的执行计划。
+     * <p>
+     * 两个执行计划必须可以共享迭代（{@link MacPlan#sharesChain}），目标的分组密码已经以相同的迭代密钥初始化；
+     * 只能在 init 之后、doFinal 之前调用。
+     *
+     * @param dst 目标对象
+     */
+    void copyChain(YCMac dst) {
+        System.arraycopy(buf, 0, dst.buf, 0, buf.length);
+        dst.bufOff = bufOff;
+        dst.firstBlock = firstBlock;
+        dst.count = count;
+        System.arraycopy(mac, 0, dst.mac, 0, mac.length);
     }
 
     public int getMacSize() {
         return macSize;
     }
 
+    /**
+     * @return 当前消息已输入的字节数
+     */
+    long getCount() {
+        return count;
+    }
+
     public void update(byte in) {
+        count++;
         if (bufOff == buf.length) {
-            cipher.processBlock(buf, 0, mac, 0);
+            processBuffer();
             bufOff = 0;
         }
 
@@ -97,22 +151,29 @@ public class YCMac implements Mac {
         if (len < 0) {
             throw new IllegalArgumentException("Can't have a negative input length!");
         }
+        count += len;
 
-        int blockSize = cipher.getBlockSize();
+        int blockSize = buf.length;
         int gapLen = blockSize - bufOff;
 
         if (len > gapLen) {
             System.arraycopy(in, inOff, buf, bufOff, gapLen);
 
-            initTransform(parameters.transformInit); //4.初始变换
+            processBuffer();
 
             bufOff = 0;
             len -= gapLen;
             inOff += gapLen;
 
-            //5.迭代应用分组密码
+            //5.迭代应用分组密码。足够长时批量迭代，至少保留一个字节在缓冲区中
+            if (len - blockSize >= BulkCbc.THRESHOLD && bulk() != null) {
+                int bulkLen = (len - 1) / blockSize * blockSize;
+                bulk.chain(mac, in, inOff, bulkLen);
+                len -= bulkLen;
+                inOff += bulkLen;
+            }
             while (len > blockSize) {
-                cipher.processBlock(in, inOff, mac, 0);
+                chainBlock(in, inOff);
                 len -= blockSize;
                 inOff += blockSize;
             }
@@ -122,192 +183,175 @@ public class YCMac implements Mac {
         bufOff += len;
     }
 
-    public int doFinal(byte[] out, int outOff) {
-        int msgLen = bufOff;
-
-        paddingTransform(parameters.typePad); //2.消息填充。填充最后一个分组
-        lastIteration(parameters.lastIteration, msgLen); //6.最终迭代
-        outTransform(parameters.transformOut); //7.输出变换
-        truncate(parameters.truncate, out, outOff, msgLen); //8.截断操作
+    /**
+     * 输入ByteBuffer中 position 到 limit 之间的数据，处理后 position 等于 limit。
+     * <p>
+     * 有底层数组的ByteBuffer直接使用其数组，不复制数据；direct/mapped ByteBuffer 每次复制最多4KB。
+     *
+     * @param in 输入数据
+     */
+    public void update(ByteBuffer in) {
+        if (in.hasArray()) {
+            update(in.array(), in.arrayOffset() + in.position(), in.remaining());
+            in.position(in.limit());
+            return;
+        }
 
-        reset();
-        return macSize;
+        if (stage == null)
+            stage = new byte[STAGE_SIZE];
+        byte[] block = stage;
+        while (in.hasRemaining()) {
+            int len = Math.min(block.length, in.remaining());
+            in.get(block, 0, len);
+            update(block, 0, len);
+        }
     }
 
     /**
-     * 密钥诱导。
+     * 输入文件中从 channel 的当前位置到文件末尾的数据，处理后位置为文件末尾。
+     * <p>
+     * 按窗口映射文件，不把文件读入堆中，文件大小不受int的限制。
+     *
+     * @param channel 文件
+     * @return 输入的字节数
+     * @throws IOException 读取错误
      */
-    void keyInduce() {
-        KeyInduce keyInduce = new KeyInduce(cipher);
-
-        if (parameters.typeAlg == 2) {
-            //如果没有提供key2，则需要生成。
-            //为了兼容2008，通过keyInduce参数决定密钥生成方式。0表示使用2008标准中的密钥诱导；1表示使用2020标准中的密钥诱导1。
-            if (parameters.key2 == null) {
-                if(parameters.keyInduce==0)
-                    parameters.key2 = keyInduce.induce0(parameters.key1);
-                else {
-                    keyInduce.induce1(parameters.key1.length);
-                    parameters.key1 = keyInduce.K1;
-                    parameters.key2 = keyInduce.K2;
-                }
-            }
-        } else if (parameters.typeAlg == 4) {
-            //需要生成初始变换2的密钥K1：如果提供了key2，则用2008标准中的密钥诱导生成K1；
-            //如果没有提供key2，则需用密钥诱导1生成K1，以及要在输出变换2中使用的密钥key2
-            if (parameters.key2 != null)
-                K1 = keyInduce.induce0(parameters.key2);
-            else {
-                keyInduce.induce1(parameters.key1.length);
-                parameters.key2 = keyInduce.K1;
-                K1 = keyInduce.K2;
-            }
-        } else if (parameters.typeAlg == 5) {
-            //最终迭代3中的两个密钥用密钥诱导2生成；分别放在K1和K2中
-            keyInduce.induce2();
-            K1 = keyInduce.K1;
-            K2 = keyInduce.K2;
-        } else if (parameters.typeAlg == 6) {
-            //当只提供一个密钥时，需用密钥诱导1生成所需的两个密钥。用于最终迭代2的密钥放在K2中
-            if (parameters.key2 == null) {
-                keyInduce.induce1(parameters.key1.length);
-                parameters.key1 = keyInduce.K1;
-                K2 = keyInduce.K2; //用于最终迭代2，故不设置key2
-                cipher.init(true, parameters.getParameters()); //使用密钥诱导生成了key1，需要重新初始化cipher
-            } else
-                K2 = parameters.key2;
+    public long update(FileChannel channel) throws IOException {
+        long start = channel.position();
+        long size = channel.size();
+        for (long pos = start; pos < size; pos += MAP_WINDOW) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos));
+            update(window);
         }
+        channel.position(Math.max(start, size));
+        return Math.max(0, size - start);
     }
 
     /**
-     * 填充。
+     * 输入流中的所有数据，直到流结束。不关闭流。
      *
-     * @param type 填充方式
+     * @param in 输入流
+     * @return 输入的字节数
+     * @throws IOException 读取错误
      */
-    void paddingTransform(int type) {
-        int blockSize = cipher.getBlockSize();
-        if (type == 1 || type == 3) {
-            if (bufOff != blockSize)
-                new ZeroBytePadding().addPadding(buf, bufOff);
-        } else if (type == 2) {
-            if (bufOff == blockSize) {
-                cipher.processBlock(buf, 0, mac, 0);
-                bufOff = 0;
-            }
-            new ISO7816d4Padding().addPadding(buf, bufOff);
-        } else if (type == 4) {
-            if (bufOff != blockSize)
-                new ISO7816d4Padding().addPadding(buf, bufOff);
+    public long update(InputStream in) throws IOException {
+        byte[] chunk = new byte[STREAM_CHUNK];
+        long total = 0;
+        int len;
+        while ((len = in.read(chunk)) >= 0) {
+            update(chunk, 0, len);
+            total += len;
         }
+        return total;
     }
 
     /**
-     * 初始变换。
+     * 按顺序输入多个ByteBuffer，等价于输入它们拼接后的数据。
+     * <p>
+     * 跨越两个ByteBuffer的分组在内部缓冲区中拼接，不需要调用者拼接数据。
      *
-     * @param type 初始变换方式
+     * @param ins 输入数据
      */
-    void initTransform(int type) {
-        cipher.processBlock(buf, 0, mac, 0);
-
-        if (type == 2) {
-            //初始变换2：使用子密钥加密后再使用原密钥进行后续加密
-            reset();
-            cipher.init(true, new KeyParameter(K1));
-            cipher.processBlock(mac, 0, mac, 0);
-            cipher.init(true, new ParametersWithIV(parameters.getParameters(), mac));
-        } else if (type == 3) {
-            cipher.reset();
-            byte[] zeroes = new byte[cipher.getBlockSize()];
-            cipher.processBlock(zeroes, 0, mac, 0);
-            xor(buf, mac);
-            cipher.reset();
-            cipher.processBlock(buf, 0, mac, 0);
-        }
+    public void update(ByteBuffer[] ins) {
+        for (ByteBuffer in : ins)
+            update(in);
     }
 
     /**
-     * 输出变换。
+     * 按顺序输入多个数组片段，等价于输入它们拼接后的数据。
      *
-     * @param type 输出变换方式
+     * @param ins  输入数组
+     * @param offs 各数组的偏移
+     * @param lens 各数组的长度
      */
-    void outTransform(int type) {
-        if (type == 2) {
-            //使用子密钥再加密一次
-            reset();
-            //这里需要使用全0的IV进行初始化，因为在算法4的“初始化变换”中使用了非0的IV，如果只是reset，则IV不是全0，会导致结果有误
-            cipher.init(true, new ParametersWithIV(new KeyParameter(parameters.key2), new byte[cipher.getBlockSize()]));
-            cipher.processBlock(mac, 0, mac, 0);
-        } else if (type == 3) {
-            //使用子密钥解密后再使用原密钥加密
-            cipher.init(false, new KeyParameter(parameters.key2));
-            cipher.processBlock(mac, 0, mac, 0);
+    public void update(byte[][] ins, int[] offs, int[] lens) {
+        if (ins.length != offs.length || ins.length != lens.length)
+            throw new IllegalArgumentException("Slice arrays must have the same length!");
 
-            reset();
-            cipher.init(true, parameters.getParameters());
-            cipher.processBlock(mac, 0, mac, 0);
+        for (int i = 0; i < ins.length; i++)
+            update(ins[i], offs[i], lens[i]);
+    }
+
+    private BulkCbc bulk() {
+        if (bulkPlan != plan) {
+            if (bulk != null && BulkCbc.supports(plan, cipher))
+                bulk.setKey(plan);
+            else
+                bulk = BulkCbc.create(plan, cipher);
+            bulkPlan = plan;
         }
+        return bulk;
     }
 
+    /**
+     * 处理缓冲区中的完整分组。第一个分组需要进行初始变换。
+     */
+    void processBuffer() {
+        if (firstBlock) {
+            plan.firstBlock.process(this); //4.初始变换
+            firstBlock = false;
+        } else
+            chainBlock(buf, 0);
+    }
 
     /**
-     * 最终迭代。
-     *
-     * @param type   迭代类型
-     * @param msgLen 最后的消息长度
+     * CBC迭代一个分组：链接值与输入分组异或后加密。
      */
-    void lastIteration(int type, int msgLen) {
-        if (type == 1)
-            cipher.processBlock(buf, 0, mac, 0);
-        if (type == 2) {
-            xor(mac, buf);
-            reset();
-            cipher.init(true, new ParametersWithIV(new KeyParameter(K2), new byte[cipher.getBlockSize()]));
-            cipher.processBlock(mac, 0, mac, 0);
-        } else if (type == 3) {
-            if (msgLen % cipher.getBlockSize() == 0)
-                xor(buf, K1);
-            else
-                xor(buf, K2);
-            cipher.processBlock(buf, 0, mac, 0);
-        } else if (type == 4) {
-            byte[] temp = new byte[cipher.getBlockSize()];
-            xor(mac, buf);
-            if (msgLen % cipher.getBlockSize() == 0)
-                shiftRight(mac, temp);
-            else
-                shiftLeft(mac, temp);
-            System.arraycopy(temp, 0, mac, 0, temp.length);
+    void chainBlock(byte[] in, int inOff) {
+        for (int i = 0; i < mac.length; i++)
+            mac[i] ^= in[inOff + i];
+        cipher.processBlock(mac, 0, mac, 0);
+    }
 
+    public int doFinal(byte[] out, int outOff) {
+        if (plan.prefix != null && count != plan.length) {
+            long processed = count;
             reset();
-            cipher.init(true, parameters.getParameters());
-            cipher.processBlock(mac, 0, mac, 0);
+            throw new IllegalStateException("Padding 3 declared " + plan.length + " bytes, but " + processed + " bytes were processed");
         }
+
+        int msgLen = bufOff;
+        boolean complete = msgLen == buf.length; //最后一个分组是否完整；空消息需要填充
+
+        plan.padding.pad(this); //2.消息填充。填充最后一个分组
+        plan.lastIteration.process(this, complete); //6.最终迭代
+        if (plan.outTransform != null)
+            plan.outTransform.process(this); //7.输出变换
+        plan.truncation.truncate(mac, macSize, out, outOff, complete); //8.截断操作
+        if (metered && MacMetrics.enabled)
+            MacMetrics.record(plan.cipherName, count);
+
+        if (plan.rekeys)
+            cipher.init(true, plan.chainKey);
+        reset();
+        return macSize;
     }
 
     /**
-     * 截断操作。
-     *
-     * @param type   截断类型
-     * @param out    输出缓冲
-     * @param outOff 输出偏移
-     * @param msgLen 最后的消息长度
+     * 恢复到 init 之后的状态，可以直接计算下一个消息，不需要重新进行密钥诱导。
      */
-    void truncate(int type, byte[] out, int outOff, int msgLen) {
-        if (type == 2 && msgLen % cipher.getBlockSize() != 0)
-            System.arraycopy(mac, mac.length - macSize, out, outOff, macSize);
-        else
-            System.arraycopy(mac, 0, out, outOff, macSize);
-    }
-
     public void reset() {
-        //clean the buffer.
-        Arrays.fill(buf, (byte) 0);
-        bufOff = 0;
-
-        //reset the underlying cipher.
-        cipher.reset();
+        firstBlock = true;
+        if (plan != null)
+            resetState();
+        else {
+            Arrays.fill(buf, (byte) 0);
+            bufOff = 0;
+        }
     }
 
+    private void resetState() {
+        count = 0;
+        System.arraycopy(plan.iv, 0, mac, 0, mac.length);
+        if (plan.prefix != null) {
+            //填充方式3：开头的长度分组
+            System.arraycopy(plan.prefix, 0, buf, 0, buf.length);
+            bufOff = buf.length;
+        } else {
+            Arrays.fill(buf, (byte) 0);
+            bufOff = 0;
+        }
+    }
 
     static void xor(byte[] a, byte[] b) {
         for (int i = 0; i < a.length; i++)
@@ -317,7 +361,7 @@ public class YCMac implements Mac {
     /**
      * 循环左移。
      */
-    private static int shiftLeft(byte[] input, byte[] output) {
+    static int shiftLeft(byte[] input, byte[] output) {
         int i = input.length;
         int bit = 0;
         while (--i >= 0) {
@@ -331,7 +375,7 @@ public class YCMac implements Mac {
     /**
      * 循环右移。
      */
-    private static int shiftRight(byte[] input, byte[] output) {
+    static int shiftRight(byte[] input, byte[] output) {
         int i = 0;
         int bit = 0;
         while (i < input.length) {
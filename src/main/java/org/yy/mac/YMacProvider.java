@@ -0,0 +1,127 @@
+package org.yy.mac;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.MacSpi;
+
+/**
+ * 《GBT 15852.1》MAC算法的JCA Provider。
+ * <p>
+ * 算法名称格式：
+ * <ul>
+ * <li>2020版本：GBT15852-ALG{1~8}-PAD{1~4}-{AES|DES|DESede|SM4}，例如 GBT15852-ALG3-PAD1-SM4</li>
+ * <li>2008版本的算法5~6：GBT15852-2008-ALG{5|6}-PAD{1~3}-{AES|DES|DESede|SM4}</li>
+ * </ul>
+ * 算法1/2/3/4/6使用填充1~3，算法5/7/8使用填充4。key2、IV、填充3的数据长度以及Mac长度通过
+ * {@link GBT15852ParameterSpec} 设置；2020版本的填充3可以不设置长度，此时暂存数据直到 doFinal。
+ * <p>
+ * 所有服务在构造时一次性注册，{@link #getMac(String)} 通过不可变的映射表直接创建实例，不经过JCA的服务查找和锁。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public final class YMacProvider extends Provider {
+    private static final long serialVersionUID = 1L;
+
+    public static final String PROVIDER_NAME = "YMAC";
+
+    private static final AlgSymm[] CIPHERS = {AlgSymm.AES128, AlgSymm.DES, AlgSymm.DESede, AlgSymm.SM4};
+
+    private final Map<String, MacService> services;
+
+    private YMacProvider() {
+        super(PROVIDER_NAME, 1.0, "GBT 15852.1 MAC algorithms");
+
+        Map<String, MacService> map = new LinkedHashMap<>();
+        for (AlgSymm algSymm : CIPHERS) {
+            for (int typeAlg = 1; typeAlg <= 8; typeAlg++) {
+                for (int typePad : paddings(typeAlg)) {
+                    String name = "GBT15852-ALG" + typeAlg + "-PAD" + typePad + "-" + algSymm.getName();
+                    map.put(name, new MacService(this, name, algSymm, typeAlg, typePad, false));
+                }
+            }
+            for (int typeAlg = 5; typeAlg <= 6; typeAlg++) {
+                for (int typePad = 1; typePad <= 3; typePad++) {
+                    String name = "GBT15852-2008-ALG" + typeAlg + "-PAD" + typePad + "-" + algSymm.getName();
+                    map.put(name, new MacService(this, name, algSymm, typeAlg, typePad, true));
+                }
+            }
+        }
+
+        for (MacService service : map.values())
+            putService(service);
+        services = Collections.unmodifiableMap(map);
+    }
+
+    private static int[] paddings(int typeAlg) {
+        if (typeAlg == 5 || typeAlg == 7 || typeAlg == 8)
+            return new int[]{4};
+        else
+            return new int[]{1, 2, 3};
+    }
+
+    /**
+     * 获取Provider实例。
+     *
+     * @return Provider
+     */
+    public static YMacProvider getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * 创建Mac对象。
+     * <p>
+     * 等价于 Mac.getInstance(algorithm, YMacProvider.getInstance())，但不经过JCA的服务查找。
+     *
+     * @param algorithm 算法名称
+     * @return 未初始化的Mac对象
+     * @throws NoSuchAlgorithmException 不支持的算法
+     */
+    public static Mac getMac(String algorithm) throws NoSuchAlgorithmException {
+        YMacProvider provider = getInstance();
+        MacService service = provider.services.get(algorithm);
+        if (service == null)
+            throw new NoSuchAlgorithmException("Not support MAC algorithm " + algorithm);
+        return new ProviderMac(service.newSpi(), provider, algorithm);
+    }
+
+    private static final class Holder {
+        static final YMacProvider INSTANCE = new YMacProvider();
+    }
+
+    private static final class MacService extends Service {
+        private final AlgSymm algSymm;
+        private final int typeAlg;
+        private final int typePad;
+        private final boolean gbt2008;
+
+        MacService(Provider provider, String name, AlgSymm algSymm, int typeAlg, int typePad, boolean gbt2008) {
+            super(provider, "Mac", name, YMacSpi.class.getName(), null, null);
+            this.algSymm = algSymm;
+            this.typeAlg = typeAlg;
+            this.typePad = typePad;
+            this.gbt2008 = gbt2008;
+        }
+
+        MacSpi newSpi() {
+            return new YMacSpi(algSymm, typeAlg, typePad, gbt2008);
+        }
+
+        @Override
+        public Object newInstance(Object constructorParameter) {
+            return newSpi();
+        }
+    }
+
+    private static final class ProviderMac extends Mac {
+        ProviderMac(MacSpi spi, Provider provider, String algorithm) {
+            super(spi, provider, algorithm);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.Mac;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.MacSpi;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * 《GBT 15852.1》MAC算法的 MacSpi 实现。
+ * <p>
+ * 2020版本的算法1~8由 {@link YCMac} 实现，2008版本的算法5~6由 {@link CMac56} 实现。
+ * 支持 clone，可以先 init 一个原型，然后 clone 出多个实例分别计算。
+ * <p>
+ * 2020版本的填充方式3未在 {@link GBT15852ParameterSpec} 中给出消息长度时，由 {@link SpillingMac} 暂存数据，
+ * 在 doFinal 时以实际长度计算。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+final class YMacSpi extends MacSpi implements Cloneable {
+    private final AlgSymm algSymm; //用于创建底层分组密码
+    private final int typeAlg;
+    private final int typePad;
+    private final boolean gbt2008; //是否为2008版本的算法5~6
+
+    private Mac mac;
+
+    YMacSpi(AlgSymm algSymm, int typeAlg, int typePad, boolean gbt2008) {
+        this.algSymm = algSymm;
+        this.typeAlg = typeAlg;
+        this.typePad = typePad;
+        this.gbt2008 = gbt2008;
+    }
+
+    @Override
+    protected int engineGetMacLength() {
+        if (mac != null)
+            return mac.getMacSize();
+        return SymmUtils.getSymmBlockLength(algSymm);
+    }
+
+    @Override
+    protected void engineInit(Key key, AlgorithmParameterSpec params) throws InvalidKeyException, InvalidAlgorithmParameterException {
+        if (key == null || key.getEncoded() == null)
+            throw new InvalidKeyException("Key must be a raw secret key");
+
+        GBT15852ParameterSpec spec;
+        if (params == null)
+            spec = new GBT15852ParameterSpec(null);
+        else if (params instanceof GBT15852ParameterSpec)
+            spec = (GBT15852ParameterSpec) params;
+        else if (params instanceof IvParameterSpec)
+            spec = new GBT15852ParameterSpec(null, ((IvParameterSpec) params).getIV());
+        else
+            throw new InvalidAlgorithmParameterException("Unsupported parameter spec: " + params.getClass().getName());
+
+        boolean spilling = typePad == 3 && spec.getLength() <= 0; //长度未知，暂存数据
+        if (spilling && gbt2008)
+            throw new InvalidAlgorithmParameterException("Padding 3 of GBT 15852.1-2008 requires the message length in GBT15852ParameterSpec");
+        if (gbt2008 && typeAlg == 6 && spec.getKey2() == null)
+            throw new InvalidKeyException("Algorithm 6 of GBT 15852.1-2008 requires key2");
+
+        Mac mac;
+        try {
+            mac = createMac(spec.getMacSizeInBits(), spilling);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidAlgorithmParameterException(e.getMessage(), e);
+        }
+
+        ParametersWithPadding parameters = new ParametersWithPadding(
+                key.getEncoded().clone(), spec.getKey2(), spec.getIV(), typeAlg, typePad, spec.getLength());
+        parameters.setKeyInduce(spec.getKeyInduce());
+        try {
+            mac.init(parameters);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeyException(e.getMessage(), e);
+        }
+        this.mac = mac;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        mac.update(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        mac.update(input, offset, len);
+    }
+
+    @Override
+    protected byte[] engineDoFinal() {
+        byte[] output = new byte[mac.getMacSize()];
+        mac.doFinal(output, 0); //YCMac和CMac56在doFinal之后已恢复到init之后的状态
+        return output;
+    }
+
+    /**
+     * 恢复到 init 之后的状态。执行计划在 init 时已编译，这里不需要重新进行密钥诱导。
+     */
+    @Override
+    protected void engineReset() {
+        if (mac != null)
+            mac.reset();
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        YMacSpi that = (YMacSpi) super.clone();
+        if (mac != null) {
+            that.mac = createMac(mac.getMacSize() * 8, mac instanceof SpillingMac);
+            if (mac instanceof SpillingMac)
+                ((SpillingMac) mac).copyState((SpillingMac) that.mac);
+            else if (gbt2008)
+                ((CMac56) mac).copyState((CMac56) that.mac);
+            else
+                ((YCMac) mac).copyState((YCMac) that.mac);
+        }
+        return that;
+    }
+
+    private Mac createMac(int macSizeInBits, boolean spilling) {
+        if (macSizeInBits == 0)
+            macSizeInBits = SymmUtils.getSymmBlockLength(algSymm) * 8;
+
+        if (spilling)
+            return new SpillingMac(CMacTool.getBlockCipher(algSymm), macSizeInBits, SpillingMac.DEFAULT_MEMORY_LIMIT, null);
+        else if (gbt2008)
+            return new CMac56(CMacTool.getBlockCipher(algSymm), CMacTool.getBlockCipher(algSymm), macSizeInBits);
+        else
+            return new YCMac(CMacTool.getBlockCipher(algSymm), macSizeInBits);
+    }
+}
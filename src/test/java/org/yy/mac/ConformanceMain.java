@@ -0,0 +1,40 @@
+package org.yy.mac;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ConformanceRunner} 的命令行入口。
+ * <p>
+ * 使用 {@link ConformanceRunner#defaultEngines()} 执行向量文件，输出报告；全部通过时退出码为0，否则为1。
+ * <pre>
+ * java -cp ... org.yy.mac.ConformanceMain [-threads N] vector-file...
+ * </pre>
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class ConformanceMain {
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-threads".equals(args[i]) && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else
+                files.add(Paths.get(args[i]));
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: ConformanceMain [-threads N] vector-file...");
+            System.exit(2);
+        }
+
+        ConformanceRunner.Report report = new ConformanceRunner(ConformanceRunner.defaultEngines(), threads)
+                .run(files.toArray(new Path[0]));
+        System.out.print(report);
+        System.exit(report.isPassed() ? 0 : 1);
+    }
+}
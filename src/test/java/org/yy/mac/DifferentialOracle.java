@@ -0,0 +1,708 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.engines.SM4Engine;
+import org.bouncycastle.crypto.macs.CMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 快速实现的差分测试。
+ * <p>
+ * 按种子生成随机的测试用例：对称算法、2008或2020版本的MAC算法和填充方式、key2、IV、Mac长度、分组边界附近的消息长度，
+ * 以及 update 的分段位置和输入方式。每个用例先用参考实现计算：BC的分组密码引擎上的 YCMac（2008版本为 CMac56），
+ * 每次只输入一个分组，不经过批量迭代和引擎注册表；再用每个适用的 {@link Variant} 计算并比较。
+ * <p>
+ * 不一致或抛出异常的用例逐步缩小（截短消息、去掉分段、去掉IV和key2、使用完整的Mac长度），
+ * 直到不能再缩小仍然失败，输出最小的复现用例。用例 i 的种子由总种子和 i 决定，可以单独重现。
+ * <pre>
+ * java -cp ... org.yy.mac.DifferentialOracle -cases 5000000 -threads 16 -seed 15852
+ * </pre>
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class DifferentialOracle {
+    private static final AlgSymm[] ALG_SYMMS = AlgSymm.values();
+    private static final int MAX_FAILURES = 10;
+    private static final int MAX_SHRINK_STEPS = 10000;
+
+    /**
+     * 被测的实现。
+     */
+    interface Variant {
+        String name();
+
+        boolean applies(Case c);
+
+        byte[] mac(Case c) throws Exception;
+    }
+
+    /**
+     * 内置的快速实现。
+     */
+    enum Target implements Variant {
+        /**
+         * 引擎注册表为短消息选择的分组密码，按用例的方式分段输入，包括 ByteBuffer
+         */
+        YCMAC {
+            @Override
+            public boolean applies(Case c) {
+                return !c.gbt2008;
+            }
+
+            @Override
+            public byte[] mac(Case c) {
+                YCMac mac = new YCMac(CMacTool.getBlockCipher(c.algSymm), c.macSizeInBits);
+                mac.init(c.parameters(c.message.length));
+                feed(mac, c, 0, c.bounds());
+                return doFinal(mac);
+            }
+        },
+        /**
+         * JCA的AES（注册表为长消息选择的实现），连续的分组由 {@link BulkCbc} 批量迭代
+         */
+        YCMAC_BULK {
+            @Override
+            public boolean applies(Case c) {
+                return !c.gbt2008 && "AES".equals(c.algSymm.getName());
+            }
+
+            @Override
+            public byte[] mac(Case c) {
+                YCMac mac = new YCMac(new JcaBlockCipher("AES", 16), c.macSizeInBits);
+                mac.init(c.parameters(c.message.length));
+                feed(mac, c, 0, c.bounds());
+                return doFinal(mac);
+            }
+        },
+        /**
+         * 共享的执行计划，在第一个分段之后复制状态继续计算
+         */
+        PLAN_COPY {
+            @Override
+            public boolean applies(Case c) {
+                return !c.gbt2008;
+            }
+
+            @Override
+            public byte[] mac(Case c) {
+                MacPlan plan = MacPlan.compile(c.parameters(c.message.length), CMacTool.getBlockCipher(c.algSymm));
+                YCMac mac = new YCMac(CMacTool.getBlockCipher(c.algSymm), c.macSizeInBits);
+                mac.init(plan);
+                int[] bounds = c.bounds();
+                mac.update(c.message, 0, bounds[1]);
+                YCMac copy = new YCMac(CMacTool.getBlockCipher(c.algSymm), c.macSizeInBits);
+                mac.copyState(copy);
+                feed(copy, c, 1, bounds);
+                return doFinal(copy);
+            }
+        },
+        /**
+         * JCA Provider，2020版本的填充3可能不声明长度
+         */
+        JCA {
+            @Override
+            public boolean applies(Case c) {
+                //长度为0表示未声明长度，2008版本的填充3不能计算空消息
+                return !(c.gbt2008 && c.typePad == 3 && c.message.length == 0);
+            }
+
+            @Override
+            public byte[] mac(Case c) throws Exception {
+                String name = "GBT15852-" + (c.gbt2008 ? "2008-" : "") + "ALG" + c.typeAlg + "-PAD" + c.typePad + "-" + c.algSymm.getName();
+                long length = c.typePad == 3 && (c.gbt2008 || c.knownLength) ? c.message.length : 0;
+                GBT15852ParameterSpec spec = new GBT15852ParameterSpec(c.key2, c.iv, length, c.macSizeInBits);
+                spec.setKeyInduce(c.keyInduce);
+                javax.crypto.Mac mac = YMacProvider.getMac(name);
+                mac.init(new SecretKeySpec(c.key1, "RAW"), spec);
+                int[] bounds = c.bounds();
+                for (int i = 1; i < bounds.length; i++)
+                    mac.update(c.message, bounds[i - 1], bounds[i] - bounds[i - 1]);
+                return mac.doFinal();
+            }
+        },
+        /**
+         * 多算法MAC，与算法5的通道共享迭代
+         */
+        MULTI_ALG {
+            @Override
+            public boolean applies(Case c) {
+                return !c.gbt2008;
+            }
+
+            @Override
+            public byte[] mac(Case c) {
+                int fullSize = SymmUtils.getSymmBlockLength(c.algSymm) * 8;
+                MultiAlgMac mac = new MultiAlgMac(c.algSymm, new int[]{c.macSizeInBits, fullSize},
+                        c.parameters(c.message.length), new ParametersWithPadding(c.key1, null, c.iv, 5, 4));
+                int[] bounds = c.bounds();
+                for (int i = 1; i < bounds.length; i++)
+                    mac.update(c.message, bounds[i - 1], bounds[i] - bounds[i - 1]);
+                return mac.doFinal()[0];
+            }
+        },
+        MULTI_KEY {
+            @Override
+            public boolean applies(Case c) {
+                return !c.gbt2008;
+            }
+
+            @Override
+            public byte[] mac(Case c) {
+                MultiKeyMac mac = new MultiKeyMac(c.algSymm, c.macSizeInBits, c.parameters(c.message.length));
+                int[] bounds = c.bounds();
+                for (int i = 1; i < bounds.length; i++)
+                    mac.update(c.message, bounds[i - 1], bounds[i] - bounds[i - 1]);
+                return mac.doFinal()[0];
+            }
+        },
+        /**
+         * 分段会话，填充3以外在各段之间取中间结果
+         */
+        SESSION {
+            @Override
+            public boolean applies(Case c) {
+                return !c.gbt2008 && c.macSizeInBits == SymmUtils.getSymmBlockLength(c.algSymm) * 8;
+            }
+
+            @Override
+            public byte[] mac(Case c) {
+                MacSession session = new MacSession(c.algSymm, c.parameters(c.message.length));
+                int[] bounds = c.bounds();
+                for (int i = 1; i < bounds.length; i++) {
+                    session.update(c.message, bounds[i - 1], bounds[i] - bounds[i - 1]);
+                    if (c.typePad != 3)
+                        session.getChainValue();
+                }
+                return session.doFinal();
+            }
+        },
+        /**
+         * 长度未知的填充3，内存缓冲区只有两个分组
+         */
+        SPILLING {
+            @Override
+            public boolean applies(Case c) {
+                return !c.gbt2008 && c.typePad == 3;
+            }
+
+            @Override
+            public byte[] mac(Case c) {
+                BlockCipher cipher = CMacTool.getBlockCipher(c.algSymm);
+                try (SpillingMac mac = new SpillingMac(cipher, c.macSizeInBits, cipher.getBlockSize() * 2, null)) {
+                    mac.init(c.parameters(0));
+                    int[] bounds = c.bounds();
+                    for (int i = 1; i < bounds.length; i++)
+                        mac.update(c.message, bounds[i - 1], bounds[i] - bounds[i - 1]);
+                    byte[] out = new byte[mac.getMacSize()];
+                    mac.doFinal(out, 0);
+                    return out;
+                }
+            }
+        },
+        /**
+         * 堆外终端密钥表中预先展开的密钥
+         */
+        TERMINAL_KEY {
+            private final ThreadLocal<TerminalKeyTable> tables = ThreadLocal.withInitial(() -> new TerminalKeyTable(16));
+
+            @Override
+            public boolean applies(Case c) {
+                return !c.gbt2008 && c.iv == null && c.macSizeInBits == 128
+                        && (c.algSymm == AlgSymm.SM4 || c.algSymm.getName().equals("AES"))
+                        && (c.typeAlg == 1 && c.typePad != 3 || c.typeAlg == 5);
+            }
+
+            @Override
+            public byte[] mac(Case c) {
+                TerminalKeyTable table = tables.get();
+                table.put(1, c.algSymm, c.key1);
+                byte[] out = new byte[16];
+                table.newEngine().mac(1, c.typeAlg, c.typePad, c.message, 0, c.message.length, out, 0);
+                return out;
+            }
+        },
+        /**
+         * BC的CMac，即不带IV的算法5
+         */
+        BC_CMAC {
+            @Override
+            public boolean applies(Case c) {
+                return !c.gbt2008 && c.typeAlg == 5 && c.iv == null;
+            }
+
+            @Override
+            public byte[] mac(Case c) {
+                CMac mac = new CMac(referenceCipher(c.algSymm), c.macSizeInBits);
+                mac.init(new KeyParameter(c.key1));
+                mac.update(c.message, 0, c.message.length);
+                byte[] out = new byte[mac.getMacSize()];
+                mac.doFinal(out, 0);
+                return out;
+            }
+        },
+        /**
+         * 引擎注册表选择的分组密码上的 CMac56，多个 ByteBuffer 输入
+         */
+        CMAC56 {
+            @Override
+            public boolean applies(Case c) {
+                return c.gbt2008;
+            }
+
+            @Override
+            public byte[] mac(Case c) {
+                CMac56 mac = new CMac56(CMacTool.getBlockCipher(c.algSymm), CMacTool.getBlockCipher(c.algSymm), c.macSizeInBits);
+                mac.init(c.parameters(c.message.length));
+                int[] bounds = c.bounds();
+                ByteBuffer[] ins = new ByteBuffer[bounds.length - 1];
+                for (int i = 1; i < bounds.length; i++)
+                    ins[i - 1] = ByteBuffer.wrap(c.message, bounds[i - 1], bounds[i] - bounds[i - 1]);
+                mac.update(ins);
+                byte[] out = new byte[mac.getMacSize()];
+                mac.doFinal(out, 0);
+                return out;
+            }
+        }
+    }
+
+    /**
+     * 测试用例。
+     */
+    static final class Case {
+        final long seed;
+        AlgSymm algSymm;
+        boolean gbt2008;
+        int typeAlg;
+        int typePad;
+        byte[] key1;
+        byte[] key2;
+        int keyInduce = 1;
+        byte[] iv;
+        int macSizeInBits;
+        boolean knownLength; //2020版本的填充3在JCA中是否声明长度
+        byte[] message;
+        int[] splits; //update 的分段位置，升序
+        int feedMode; //YCMac的输入方式
+
+        private Case(long seed) {
+            this.seed = seed;
+        }
+
+        static Case generate(long seed) {
+            Random random = new Random(seed);
+            Case c = new Case(seed);
+            c.algSymm = ALG_SYMMS[random.nextInt(ALG_SYMMS.length)];
+            int keyLength = SymmUtils.getSymmKeyLength(c.algSymm);
+            int blockSize = SymmUtils.getSymmBlockLength(c.algSymm);
+
+            c.gbt2008 = random.nextInt(8) == 0;
+            if (c.gbt2008) {
+                c.typeAlg = 5 + random.nextInt(2);
+                c.typePad = 1 + random.nextInt(3);
+            } else {
+                c.typeAlg = 1 + random.nextInt(8);
+                c.typePad = c.typeAlg == 5 || c.typeAlg == 7 || c.typeAlg == 8 ? 4 : 1 + random.nextInt(3);
+            }
+            c.key1 = bytes(random, keyLength);
+            if (c.requiresKey2() || random.nextBoolean())
+                c.key2 = bytes(random, keyLength);
+            if (!c.gbt2008 && c.typeAlg == 2 && c.key2 == null)
+                c.keyInduce = random.nextInt(2);
+            if (random.nextBoolean())
+                c.iv = bytes(random, blockSize);
+            c.macSizeInBits = random.nextBoolean() ? blockSize * 8 : (1 + random.nextInt(blockSize)) * 8;
+            c.knownLength = random.nextBoolean();
+
+            //分组边界附近的长度；四分之一的用例较长，用到批量迭代
+            int blocks = random.nextInt(4) == 0 ? random.nextInt(400) : random.nextInt(6);
+            int delta = random.nextBoolean() ? random.nextInt(3) - 1 : random.nextInt(blockSize);
+            c.message = bytes(random, Math.max(0, blocks * blockSize + delta));
+            c.splits = new int[random.nextInt(5)];
+            for (int i = 0; i < c.splits.length; i++)
+                c.splits[i] = random.nextInt(c.message.length + 1);
+            Arrays.sort(c.splits);
+            c.feedMode = random.nextInt(5);
+            return c;
+        }
+
+        boolean requiresKey2() {
+            if (gbt2008)
+                return typeAlg == 6;
+            //密钥诱导1只取最后一个分组作为密钥，3DES的密钥长度不够，参考实现也不支持
+            boolean desede = algSymm == AlgSymm.DESede || algSymm == AlgSymm.DESede3;
+            return typeAlg == 3 || desede && (typeAlg == 2 || typeAlg == 4 || typeAlg == 6);
+        }
+
+        ParametersWithPadding parameters(long length) {
+            ParametersWithPadding parameters = new ParametersWithPadding(key1, key2, iv, typeAlg, typePad, length);
+            parameters.setKeyInduce(keyInduce);
+            return parameters;
+        }
+
+        /**
+         * @return 0、分段位置、消息长度
+         */
+        int[] bounds() {
+            int[] bounds = new int[splits.length + 2];
+            System.arraycopy(splits, 0, bounds, 1, splits.length);
+            bounds[bounds.length - 1] = message.length;
+            return bounds;
+        }
+
+        private Case copy() {
+            Case c = new Case(seed);
+            c.algSymm = algSymm;
+            c.gbt2008 = gbt2008;
+            c.typeAlg = typeAlg;
+            c.typePad = typePad;
+            c.key1 = key1;
+            c.key2 = key2;
+            c.keyInduce = keyInduce;
+            c.iv = iv;
+            c.macSizeInBits = macSizeInBits;
+            c.knownLength = knownLength;
+            c.message = message;
+            c.splits = splits;
+            c.feedMode = feedMode;
+            return c;
+        }
+
+        private Case withLength(int length) {
+            Case c = copy();
+            c.message = Arrays.copyOf(message, length);
+            c.splits = Arrays.stream(splits).map(s -> Math.min(s, length)).toArray();
+            return c;
+        }
+
+        /**
+         * @return 比当前用例更小的候选用例，按缩小的幅度排列
+         */
+        List<Case> shrink() {
+            List<Case> candidates = new ArrayList<>();
+            int blockSize = SymmUtils.getSymmBlockLength(algSymm);
+            int length = message.length;
+            if (length > 0) {
+                candidates.add(withLength(length / 2));
+                if (length > blockSize)
+                    candidates.add(withLength(length - blockSize));
+                candidates.add(withLength(length - 1));
+            }
+            for (int i = 0; i < splits.length; i++) {
+                Case c = copy();
+                c.splits = new int[splits.length - 1];
+                System.arraycopy(splits, 0, c.splits, 0, i);
+                System.arraycopy(splits, i + 1, c.splits, i, splits.length - i - 1);
+                candidates.add(c);
+            }
+            if (iv != null) {
+                Case c = copy();
+                c.iv = null;
+                candidates.add(c);
+            }
+            if (key2 != null && !requiresKey2()) {
+                Case c = copy();
+                c.key2 = null;
+                candidates.add(c);
+            }
+            if (macSizeInBits != blockSize * 8) {
+                Case c = copy();
+                c.macSizeInBits = blockSize * 8;
+                candidates.add(c);
+            }
+            if (feedMode != 0) {
+                Case c = copy();
+                c.feedMode = 0;
+                candidates.add(c);
+            }
+            return candidates;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("seed=%d %s %s ALG%d-PAD%d key1=%s key2=%s keyInduce=%d iv=%s macSize=%d knownLength=%s"
+                            + " splits=%s feedMode=%d length=%d message=%s",
+                    seed, algSymm.name(), gbt2008 ? "2008" : "2020", typeAlg, typePad, hex(key1), hex(key2), keyInduce,
+                    hex(iv), macSizeInBits, knownLength, Arrays.toString(splits), feedMode, message.length, hex(message));
+        }
+    }
+
+    /**
+     * 缩小后的失败用例。
+     */
+    static final class Failure {
+        final String variant;
+        final Case original;
+        final Case shrunk;
+        final String expected;
+        final String actual;
+
+        Failure(String variant, Case original, Case shrunk, String expected, String actual) {
+            this.variant = variant;
+            this.original = original;
+            this.shrunk = shrunk;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        @Override
+        public String toString() {
+            return variant + " failed on seed " + original.seed + " (length " + original.message.length + ")"
+                    + System.lineSeparator() + "  minimal: " + shrunk
+                    + System.lineSeparator() + "  expected: " + expected
+                    + System.lineSeparator() + "  actual: " + actual;
+        }
+    }
+
+    /**
+     * 测试结果。
+     */
+    static final class Report {
+        final long cases;
+        final long checks;
+        final List<Failure> failures;
+
+        Report(long cases, long checks, List<Failure> failures) {
+            this.cases = cases;
+            this.checks = checks;
+            this.failures = failures;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("cases: %d, checks: %d, failures: %d%n", cases, checks, failures.size()));
+            for (Failure failure : failures)
+                sb.append(failure).append(System.lineSeparator());
+            return sb.toString();
+        }
+    }
+
+    private final List<Variant> variants;
+
+    DifferentialOracle() {
+        this(Arrays.asList(Target.values()));
+    }
+
+    DifferentialOracle(List<? extends Variant> variants) {
+        this.variants = new ArrayList<>(variants);
+    }
+
+    /**
+     * 并行执行用例 0 ~ cases-1，失败达到 {@value #MAX_FAILURES} 个时提前结束。
+     *
+     * @param seed    总种子
+     * @param cases   用例数
+     * @param threads 线程数
+     * @return 测试结果
+     */
+    Report run(long seed, long cases, int threads) throws Exception {
+        AtomicLong done = new AtomicLong();
+        AtomicLong checks = new AtomicLong();
+        AtomicInteger failureCount = new AtomicInteger();
+        List<Failure> failures = new ArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int first = t;
+                futures.add(executor.submit(() -> {
+                    long localChecks = 0;
+                    long localCases = 0;
+                    for (long i = first; i < cases && failureCount.get() < MAX_FAILURES; i += threads) {
+                        Case c = Case.generate(caseSeed(seed, i));
+                        byte[] expected = reference(c);
+                        localCases++;
+                        for (Variant variant : variants) {
+                            if (!variant.applies(c))
+                                continue;
+                            localChecks++;
+                            if (check(variant, c, expected) == null)
+                                continue;
+                            Failure failure = shrink(variant, c);
+                            synchronized (failures) {
+                                failures.add(failure);
+                            }
+                            failureCount.incrementAndGet();
+                        }
+                    }
+                    done.addAndGet(localCases);
+                    checks.addAndGet(localChecks);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+        return new Report(done.get(), checks.get(), failures);
+    }
+
+    /**
+     * 参考实现：BC引擎上的 YCMac 或 CMac56，每次输入一个分组。
+     */
+    static byte[] reference(Case c) {
+        BlockCipher cipher = referenceCipher(c.algSymm);
+        org.bouncycastle.crypto.Mac mac = c.gbt2008
+                ? new CMac56(cipher, referenceCipher(c.algSymm), c.macSizeInBits)
+                : new YCMac(cipher, c.macSizeInBits);
+        mac.init(c.parameters(c.message.length));
+        int blockSize = cipher.getBlockSize();
+        for (int off = 0; off < c.message.length; off += blockSize)
+            mac.update(c.message, off, Math.min(blockSize, c.message.length - off));
+        byte[] out = new byte[mac.getMacSize()];
+        mac.doFinal(out, 0);
+        return out;
+    }
+
+    static BlockCipher referenceCipher(AlgSymm algSymm) {
+        switch (algSymm) {
+            case DES:
+                return new DESEngine();
+            case DESede:
+            case DESede3:
+                return new DESedeEngine();
+            case SM4:
+                return new SM4Engine();
+            default:
+                return new AESEngine();
+        }
+    }
+
+    /**
+     * @return 一致时返回null，否则返回实际结果或异常
+     */
+    private static String check(Variant variant, Case c, byte[] expected) {
+        try {
+            byte[] actual = variant.mac(c);
+            return Arrays.equals(expected, actual) ? null : Hex.toHexString(actual);
+        } catch (Exception e) {
+            return e.toString();
+        }
+    }
+
+    private static Failure shrink(Variant variant, Case original) {
+        Case current = original;
+        String actual = check(variant, current, reference(current));
+        for (int step = 0; step < MAX_SHRINK_STEPS; step++) {
+            Case smaller = null;
+            for (Case candidate : current.shrink()) {
+                byte[] expected;
+                try {
+                    expected = reference(candidate);
+                } catch (RuntimeException e) {
+                    continue; //缩小后不是有效的用例
+                }
+                String result = check(variant, candidate, expected);
+                if (result != null) {
+                    smaller = candidate;
+                    actual = result;
+                    break;
+                }
+            }
+            if (smaller == null)
+                break;
+            current = smaller;
+        }
+        return new Failure(variant.name(), original, current, Hex.toHexString(reference(current)), actual);
+    }
+
+    private static void feed(YCMac mac, Case c, int from, int[] bounds) {
+        for (int i = from + 1; i < bounds.length; i++) {
+            int off = bounds[i - 1];
+            int len = bounds[i] - off;
+            switch (c.feedMode) {
+                case 1:
+                    mac.update(ByteBuffer.wrap(c.message, off, len));
+                    break;
+                case 2: {
+                    ByteBuffer direct = ByteBuffer.allocateDirect(len);
+                    direct.put(c.message, off, len);
+                    direct.flip();
+                    mac.update(direct);
+                    break;
+                }
+                case 3:
+                    mac.update(new ByteBuffer[]{ByteBuffer.wrap(c.message, off, len / 2),
+                            ByteBuffer.wrap(c.message, off + len / 2, len - len / 2)});
+                    break;
+                case 4:
+                    if (len < 8) {
+                        for (int j = 0; j < len; j++)
+                            mac.update(c.message[off + j]);
+                    } else
+                        mac.update(c.message, off, len);
+                    break;
+                default:
+                    mac.update(c.message, off, len);
+                    break;
+            }
+        }
+    }
+
+    private static byte[] doFinal(YCMac mac) {
+        byte[] out = new byte[mac.getMacSize()];
+        mac.doFinal(out, 0);
+        return out;
+    }
+
+    private static long caseSeed(long seed, long index) {
+        return seed * 0x9E3779B97F4A7C15L + index;
+    }
+
+    private static byte[] bytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String hex(byte[] bytes) {
+        return bytes == null ? "null" : Hex.toHexString(bytes);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long cases = 1000000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = System.nanoTime();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-cases":
+                    cases = Long.parseLong(args[i + 1]);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        System.out.println("seed: " + seed);
+        Report report = new DifferentialOracle().run(seed, cases, threads);
+        System.out.println(report);
+        if (!report.failures.isEmpty())
+            System.exit(1);
+    }
+}
@@ -0,0 +1,122 @@
+package org.yy.mac;
+
+import java.util.Arrays;
+
+/**
+ * 对数分桶的延迟直方图。
+ * <p>
+ * 与 HdrHistogram 的思路相同：值按2的幂分桶，每个桶再线性分为 {@link #SUB_BUCKETS} 个子桶，
+ * 所以记录的值的相对误差不超过 1/SUB_BUCKETS，并且记录只需要一次数组自增。
+ * 不是线程安全的，每个线程记录自己的直方图，最后用 {@link #add(LatencyHistogram)} 合并。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * 记录一个值，负数按0记录。
+     *
+     * @param value 值，一般为纳秒
+     */
+    void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * 百分位数。返回所在子桶的上界，但不超过记录的最大值。
+     *
+     * @param percentile 0~100
+     * @return 值
+     */
+    long getValueAtPercentile(double percentile) {
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestEquivalentValue(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * 百分位数表，单位为微秒。
+     *
+     * @return 表格
+     */
+    String toPercentileTable() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-10s %12s%n", "percentile", "latency(us)"));
+        for (double p : new double[]{50, 90, 99, 99.9, 99.99})
+            sb.append(String.format("%-10s %12.1f%n", p, getValueAtPercentile(p) / 1000.0));
+        sb.append(String.format("%-10s %12.1f%n", "max", getMax() / 1000.0));
+        sb.append(String.format("%-10s %12.1f%n", "mean", getMean() / 1000.0));
+        sb.append(String.format("%-10s %12d%n", "count", getCount()));
+        return sb.toString();
+    }
+
+    /**
+     * 桶 b = max(0, 最高位 - SUB_BUCKET_BITS)，子桶为 value&gt;&gt;&gt;b；桶0有 2*SUB_BUCKETS 个子桶，其余桶只用到高一半。
+     */
+    static int index(long value) {
+        int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return bucket * SUB_BUCKETS + (int) (value >>> bucket);
+    }
+
+    static long highestEquivalentValue(int index) {
+        int bucket = Math.max(0, index / SUB_BUCKETS - 1);
+        long sub = index - (long) bucket * SUB_BUCKETS;
+        return ((sub + 1) << bucket) - 1;
+    }
+}
@@ -0,0 +1,329 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.Mac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MAC计算的负载测试。
+ * <p>
+ * 多个线程按 {@link MessageSizes} 的报文长度分布，使用 keys 个密钥中随机的一个计算MAC，
+ * 记录每次计算的延迟，输出百分位数表和每个时间间隔的吞吐量。
+ * <ul>
+ * <li>闭环：每个线程计算完一个报文后立即计算下一个，延迟为计算时间；</li>
+ * <li>开环：按固定的总速率 rate 安排每个报文的计划开始时间，延迟从计划开始时间算起，
+ * 包括因前面的报文变慢而排队的时间，避免 coordinated omission。</li>
+ * </ul>
+ * 每个线程缓存已初始化的Mac对象（{@link MacCache}），密钥数超过缓存容量时会包含 init 的开销。
+ * <pre>
+ * java -cp ... org.yy.mac.LoadHarness -target YCMAC -threads 64 -keys 1000 -seconds 30 -rate 200000
+ * </pre>
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class LoadHarness {
+    /**
+     * 被测的MAC实现。
+     */
+    enum Target {
+        YCMAC, CMAC56, CMAC, OMAC
+    }
+
+    private final Target target;
+    private final AlgSymm algSymm;
+    private final int threads;
+    private final byte[][] keys;
+    private final MessageSizes sizes;
+    private final byte[] corpus; //报文从中随机截取
+    private final MacCache<Mac> macs;
+
+    private long warmupMillis = 1000;
+    private long durationMillis = 10000;
+    private long intervalMillis = 1000;
+    private double rate; //开环的总速率，每秒报文数；0表示闭环
+
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+
+    LoadHarness(Target target, AlgSymm algSymm, int threads, int keyCount, MessageSizes sizes) {
+        this.target = target;
+        this.algSymm = algSymm;
+        this.threads = threads;
+        this.sizes = sizes;
+
+        Random random = new Random(15852);
+        keys = new byte[keyCount][SymmUtils.getSymmKeyLength(algSymm)];
+        for (byte[] key : keys)
+            random.nextBytes(key);
+        corpus = new byte[sizes.getMaxSize() * 2];
+        random.nextBytes(corpus);
+        macs = new MacCache<>(256);
+    }
+
+    LoadHarness setDuration(long warmupMillis, long durationMillis, long intervalMillis) {
+        this.warmupMillis = warmupMillis;
+        this.durationMillis = durationMillis;
+        this.intervalMillis = intervalMillis;
+        return this;
+    }
+
+    /**
+     * @param rate 开环的总速率，每秒报文数；0表示闭环
+     */
+    LoadHarness setRate(double rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    Result run() throws InterruptedException {
+        measuring = false;
+        stopped = false;
+        LongAdder ops = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        LatencyHistogram[] histograms = new LatencyHistogram[threads];
+        Thread[] workers = new Thread[threads];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            histograms[i] = new LatencyHistogram();
+            int index = i;
+            workers[i] = new Thread(() -> work(index, start, histograms[index], ops, bytes), "load-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        Thread.sleep(warmupMillis);
+        ops.reset();
+        bytes.reset();
+        measuring = true;
+
+        long measureStart = System.nanoTime();
+        List<long[]> intervals = new ArrayList<>(); //{ops, bytes}
+        long end = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long lastOps = 0;
+        long lastBytes = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(intervalMillis, Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            long nowOps = ops.sum();
+            long nowBytes = bytes.sum();
+            intervals.add(new long[]{nowOps - lastOps, nowBytes - lastBytes});
+            lastOps = nowOps;
+            lastBytes = nowBytes;
+        }
+        stopped = true;
+        long elapsed = System.nanoTime() - measureStart;
+        for (Thread worker : workers)
+            worker.join();
+
+        LatencyHistogram total = new LatencyHistogram();
+        for (LatencyHistogram histogram : histograms)
+            total.add(histogram);
+        return new Result(this, total, ops.sum(), bytes.sum(), elapsed, intervals);
+    }
+
+    private void work(int index, long start, LatencyHistogram histogram, LongAdder ops, LongAdder bytes) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double interval = rate > 0 ? threads * 1e9 / rate : 0; //本线程的计划间隔
+        double intended = start + index * interval / threads;
+        byte[] out = new byte[SymmUtils.getSymmBlockLength(algSymm)];
+
+        while (!stopped) {
+            long begin;
+            if (rate > 0) {
+                intended += interval;
+                long wait = (long) intended - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+                begin = (long) intended;
+            } else
+                begin = System.nanoTime();
+
+            int len = sizes.next(random);
+            int off = random.nextInt(corpus.length - len + 1);
+            mac(keys[random.nextInt(keys.length)], off, len, out);
+
+            if (measuring) {
+                histogram.record(System.nanoTime() - begin);
+                ops.increment();
+                bytes.add(len);
+            }
+        }
+    }
+
+    private void mac(byte[] key, int off, int len, byte[] out) {
+        switch (target) {
+            case YCMAC:
+            case CMAC56:
+                Mac mac = macs.get(target.name(), key);
+                if (mac == null) {
+                    mac = target == Target.YCMAC
+                            ? new YCMac(CMacTool.getBlockCipher(algSymm))
+                            : new CMac56(CMacTool.getBlockCipher(algSymm), CMacTool.getBlockCipher(algSymm));
+                    mac.init(new ParametersWithPadding(key, null, 5, target == Target.YCMAC ? 4 : 1));
+                    macs.put(target.name(), key, mac);
+                }
+                mac.update(corpus, off, len);
+                mac.doFinal(out, 0);
+                break;
+            case CMAC:
+                CMacTool.cmac(algSymm, key, null, Arrays.copyOfRange(corpus, off, off + len));
+                break;
+            case OMAC:
+                try {
+                    CMacTool.omac(algSymm, key, Arrays.copyOfRange(corpus, off, off + len));
+                } catch (YCryptoException e) {
+                    throw new IllegalStateException(e);
+                }
+                break;
+        }
+    }
+
+    /**
+     * 报文长度分布。默认为ISO 8583报文的长度：大部分在64~512字节，少量较长，并有一个很长的尾部。
+     */
+    static class MessageSizes {
+        private final int[] mins;
+        private final int[] maxs;
+        private final double[] cumulative;
+        private final boolean[] logUniform;
+
+        /**
+         * @param weights    各区间的权重
+         * @param mins       各区间的最小长度
+         * @param maxs       各区间的最大长度
+         * @param logUniform 各区间是否按对数均匀分布，否则为均匀分布
+         */
+        MessageSizes(double[] weights, int[] mins, int[] maxs, boolean[] logUniform) {
+            this.mins = mins;
+            this.maxs = maxs;
+            this.logUniform = logUniform;
+            cumulative = new double[weights.length];
+            double sum = 0;
+            for (int i = 0; i < weights.length; i++)
+                cumulative[i] = sum += weights[i];
+            for (int i = 0; i < weights.length; i++)
+                cumulative[i] /= sum;
+        }
+
+        static MessageSizes iso8583() {
+            return new MessageSizes(
+                    new double[]{0.80, 0.15, 0.05},
+                    new int[]{64, 512, 2048},
+                    new int[]{512, 2048, 64 * 1024},
+                    new boolean[]{false, false, true});
+        }
+
+        static MessageSizes fixed(int size) {
+            return new MessageSizes(new double[]{1}, new int[]{size}, new int[]{size}, new boolean[]{false});
+        }
+
+        int getMaxSize() {
+            int max = 0;
+            for (int m : maxs)
+                max = Math.max(max, m);
+            return max;
+        }
+
+        int next(Random random) {
+            double r = random.nextDouble();
+            int i = 0;
+            while (i < cumulative.length - 1 && r > cumulative[i])
+                i++;
+            if (mins[i] == maxs[i])
+                return mins[i];
+            if (logUniform[i])
+                return (int) Math.exp(Math.log(mins[i]) + random.nextDouble() * (Math.log(maxs[i]) - Math.log(mins[i])));
+            return mins[i] + random.nextInt(maxs[i] - mins[i] + 1);
+        }
+    }
+
+    /**
+     * 测试结果。
+     */
+    static class Result {
+        final LatencyHistogram histogram;
+        final long ops;
+        final long bytes;
+        final long elapsedNanos;
+        final List<long[]> intervals;
+        private final String title;
+        private final long intervalMillis;
+
+        Result(LoadHarness harness, LatencyHistogram histogram, long ops, long bytes, long elapsedNanos, List<long[]> intervals) {
+            this.histogram = histogram;
+            this.ops = ops;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.intervals = intervals;
+            this.intervalMillis = harness.intervalMillis;
+            this.title = String.format("%s %s threads=%d keys=%d %s", harness.target, harness.algSymm.name(), harness.threads,
+                    harness.keys.length, harness.rate > 0 ? "open-loop rate=" + (long) harness.rate + "/s" : "closed-loop");
+        }
+
+        double getThroughput() {
+            return ops * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(title).append(System.lineSeparator());
+            sb.append(String.format("%-10s %12s %12s%n", "time(s)", "ops/s", "MB/s"));
+            for (int i = 0; i < intervals.size(); i++) {
+                long[] interval = intervals.get(i);
+                double seconds = intervalMillis / 1000.0;
+                sb.append(String.format("%-10.1f %12.0f %12.2f%n", (i + 1) * seconds,
+                        interval[0] / seconds, interval[1] / seconds / 1e6));
+            }
+            sb.append(String.format("total: %d ops, %.0f ops/s, %.2f MB/s%n", ops, getThroughput(), bytes * 1e9 / elapsedNanos / 1e6));
+            sb.append(histogram.toPercentileTable());
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Target target = Target.YCMAC;
+        AlgSymm algSymm = AlgSymm.SM4;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int keys = 100;
+        long seconds = 10;
+        double rate = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-target":
+                    target = Target.valueOf(args[i + 1]);
+                    break;
+                case "-alg":
+                    algSymm = AlgSymm.valueOf(args[i + 1]);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-keys":
+                    keys = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-seconds":
+                    seconds = Long.parseLong(args[i + 1]);
+                    break;
+                case "-rate":
+                    rate = Double.parseDouble(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        LoadHarness harness = new LoadHarness(target, algSymm, threads, keys, MessageSizes.iso8583())
+                .setDuration(2000, seconds * 1000, 1000)
+                .setRate(rate);
+        System.out.println(harness.run());
+    }
+}
@@ -0,0 +1,137 @@
+package org.yy.mac;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 第一次计算MAC的启动时间测试。
+ * <p>
+ * 每次测试都启动一个新的JVM，分别比较：
+ * <ul>
+ * <li>light：{@link CMacTool#omac(AlgSymm, byte[], byte[])}，轻量级CMac，不加载 BouncyCastleProvider；</li>
+ * <li>jca：{@link CMacTool#omacJca(AlgSymm, byte[], byte[])}，通过JCA，需要构造 BouncyCastleProvider。</li>
+ * </ul>
+ * 输出从 main 开始到得到第一个MAC的时间，以及整个进程的时间，取中位数。
+ * <pre>
+ * java -cp ... org.yy.mac.StartupBenchmark 10
+ * </pre>
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class StartupBenchmark {
+    static final String LIGHT = "light";
+    static final String JCA = "jca";
+
+    /**
+     * 多次测试的结果。
+     */
+    static class Result {
+        final String mode;
+        final String mac;
+        final long[] firstMacNanos;
+        final long[] processNanos;
+
+        Result(String mode, String mac, long[] firstMacNanos, long[] processNanos) {
+            this.mode = mode;
+            this.mac = mac;
+            this.firstMacNanos = firstMacNanos;
+            this.processNanos = processNanos;
+        }
+
+        long medianFirstMac() {
+            return median(firstMacNanos);
+        }
+
+        long medianProcess() {
+            return median(processNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-6s first MAC %8.2f ms, process %8.2f ms (median of %d)",
+                    mode, medianFirstMac() / 1e6, medianProcess() / 1e6, firstMacNanos.length);
+        }
+
+        private static long median(long[] values) {
+            long[] sorted = values.clone();
+            Arrays.sort(sorted);
+            return sorted[sorted.length / 2];
+        }
+    }
+
+    /**
+     * 在 runs 个新的JVM中测试。
+     *
+     * @param mode {@link #LIGHT} 或 {@link #JCA}
+     * @param runs 次数
+     * @return 结果
+     */
+    static Result measure(String mode, int runs) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String classPath = System.getProperty("java.class.path");
+        String mac = null;
+        long[] firstMac = new long[runs];
+        long[] process = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            Process child = new ProcessBuilder(java, "-cp", classPath, Probe.class.getName(), mode)
+                    .redirectErrorStream(true)
+                    .start();
+            String line;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+                line = reader.readLine();
+            }
+            if (child.waitFor() != 0 || line == null)
+                throw new IllegalStateException("Probe failed: " + line);
+            process[i] = System.nanoTime() - start;
+
+            String[] fields = line.split(" ");
+            mac = fields[0];
+            firstMac[i] = Long.parseLong(fields[1]);
+        }
+        return new Result(mode, mac, firstMac, process);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        Result light = measure(LIGHT, runs);
+        Result jca = measure(JCA, runs);
+        System.out.println(light);
+        System.out.println(jca);
+        if (!light.mac.equals(jca.mac))
+            throw new IllegalStateException("MAC mismatch: " + light.mac + " != " + jca.mac);
+    }
+
+    /**
+     * 测试计算的MAC。
+     *
+     * @param mode {@link #LIGHT} 或 {@link #JCA}
+     * @return MAC
+     */
+    static byte[] firstMac(String mode) throws YCryptoException {
+        byte[] key = Hex.decode("0123456789abcdeffedcba9876543210");
+        byte[] data = new byte[256];
+        return LIGHT.equals(mode)
+                ? CMacTool.omac(AlgSymm.SM4, key, data)
+                : CMacTool.omacJca(AlgSymm.SM4, key, data);
+    }
+
+    /**
+     * 在新的JVM中计算一次MAC，输出 "MAC 纳秒数"。
+     */
+    public static class Probe {
+        public static void main(String[] args) throws Exception {
+            long start = System.nanoTime();
+            byte[] mac = firstMac(args[0]);
+            long elapsed = System.nanoTime() - start;
+            System.out.println(Hex.toHexString(mac) + " " + elapsed);
+        }
+    }
+}
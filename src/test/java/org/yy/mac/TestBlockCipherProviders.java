@@ -0,0 +1,58 @@
+package org.yy.mac;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.SM4Engine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 通过 ServiceLoader 登记的测试用分组密码实现。
+ *
+ * @author YaoYuan
+ * @since 2022/11/2
+ */
+public class TestBlockCipherProviders {
+    /**
+     * 正确的SM4实现。
+     */
+    public static class Sm4 implements BlockCipherProvider {
+        static final AtomicInteger CREATED = new AtomicInteger(); //创建的分组密码数，包括测试向量检验
+
+        @Override
+        public String getName() {
+            return "Test-SM4";
+        }
+
+        @Override
+        public boolean supports(AlgSymm algSymm) {
+            return algSymm == AlgSymm.SM4;
+        }
+
+        @Override
+        public BlockCipher create(AlgSymm algSymm) {
+            CREATED.incrementAndGet();
+            return new SM4Engine();
+        }
+    }
+
+    /**
+     * 声称支持SM4，实际是AES，不能通过测试向量检验。
+     */
+    public static class BrokenSm4 implements BlockCipherProvider {
+        @Override
+        public String getName() {
+            return "Test-BrokenSM4";
+        }
+
+        @Override
+        public boolean supports(AlgSymm algSymm) {
+            return algSymm == AlgSymm.SM4;
+        }
+
+        @Override
+        public BlockCipher create(AlgSymm algSymm) {
+            return new AESEngine();
+        }
+    }
+}
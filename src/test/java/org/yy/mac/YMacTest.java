@@ -1,11 +1,47 @@
 package org.yy.mac;
 
+import org.bouncycastle.crypto.BlockCipher;
 import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.paddings.PKCS7Padding;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidAlgorithmParameterException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.crypto.spec.SecretKeySpec;
+import javax.management.Attribute;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * @author YaoYuan
@@ -79,6 +115,35 @@ public class YMacTest {
         }
     }
 
+    /**
+     * OMAC 缓存测试。
+     * <p>
+     * 多个线程交替使用不同的密钥，缓存的Mac对象不能串用。
+     */
+    @Test
+    public void test_omac_cache() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int round = 0; round < 3; round++) {
+                        for (TestData2 testData : TestData2.testData2) {
+                            Assert.assertArrayEquals(testData.mac, CMacTool.omac(testData.algSymm, testData.key, testData.msg));
+                            Assert.assertArrayEquals(testData.mac, CMacTool.omacJca(testData.algSymm, testData.key, testData.msg));
+                        }
+                    }
+                    CMacTool.clearCache();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     /**
      * CMAC/OMAC 测试。
      * <p>
@@ -205,6 +270,151 @@ public class YMacTest {
         }
     }
 
+    /**
+     * JCA Provider 测试。
+     * <p>
+     * 使用《GBT 15852.1-2008》和《GBT 15852.1-2020》的附录测试数据，并验证 clone 之后两个实例互不影响。
+     */
+    @Test
+    public void test_provider() throws Exception {
+        for (TestData1 testData : TestData1.testData1) {
+            String name = "GBT15852-" + (testData.typeAlg == 5 || testData.typeAlg == 6 ? "2008-" : "")
+                    + "ALG" + testData.typeAlg + "-PAD" + testData.typePad + "-" + testData.algSymm.getName();
+            GBT15852ParameterSpec spec = new GBT15852ParameterSpec(testData.key2, null, testData.msg.length, testData.mac.length * 8);
+            if (testData.typeAlg == 2)
+                spec.setKeyInduce(0);
+            checkProviderMac(name, testData.key1, spec, testData.msg, testData.mac);
+        }
+
+        for (TestData4 testData : TestData4.testData4) {
+            String name = "GBT15852-ALG" + testData.typeAlg + "-PAD" + testData.typePad + "-" + testData.algSymm.getName();
+            GBT15852ParameterSpec spec = new GBT15852ParameterSpec(testData.key2, null, testData.msg.length, testData.mac.length * 8);
+            checkProviderMac(name, testData.key1, spec, testData.msg, testData.mac);
+        }
+    }
+
+    private void checkProviderMac(String name, byte[] key, GBT15852ParameterSpec spec, byte[] msg, byte[] expected) throws Exception {
+        showMsg(name + ": " + Hex.toHexString(expected));
+        javax.crypto.Mac mac = javax.crypto.Mac.getInstance(name, YMacProvider.getInstance());
+        mac.init(new SecretKeySpec(key, "RAW"), spec);
+        Assert.assertArrayEquals(expected, mac.doFinal(msg));
+        //doFinal 之后可以直接复用
+        Assert.assertArrayEquals(expected, mac.doFinal(msg));
+
+        javax.crypto.Mac prototype = YMacProvider.getMac(name);
+        prototype.init(new SecretKeySpec(key, "RAW"), spec);
+        int half = msg.length / 2;
+        prototype.update(msg, 0, half);
+        javax.crypto.Mac copy = (javax.crypto.Mac) prototype.clone();
+        copy.update(msg, half, msg.length - half);
+        Assert.assertArrayEquals(expected, copy.doFinal());
+        prototype.update(msg, half, msg.length - half);
+        Assert.assertArrayEquals(expected, prototype.doFinal());
+    }
+
+    /**
+     * 向量文件一致性测试。
+     * <p>
+     * 向量文件中包含《GBT 15852.1-2008》和《GBT 15852.1-2020》附录的测试数据。
+     */
+    @Test
+    public void test_conformance_runner() throws Exception {
+        ConformanceRunner runner = new ConformanceRunner(ConformanceRunner.defaultEngines(), 4);
+        try (MacVectorReader reader = new MacVectorReader(new InputStreamReader(
+                getClass().getResourceAsStream("/gbt15852_vectors.txt"), StandardCharsets.US_ASCII), "gbt15852_vectors.txt")) {
+            ConformanceRunner.Report report = runner.run(reader);
+            showMsg(report.toString());
+            Assert.assertEquals(76, report.getVectorCount());
+            Assert.assertTrue(report.isPassed());
+            Assert.assertEquals(76, report.getExecutedCount("YMacProvider"));
+            Assert.assertEquals(4, report.getExecutedCount("CMacTool.omac"));
+            Assert.assertEquals(4, report.getExecutedCount("CMacTool.omacJca"));
+        }
+
+        String bad = "CIPHER = SM4\nALG = 1\nPAD = 1\nKEY1 = 0123456789ABCDEFFEDCBA9876543210\nMSG = 00\nMAC = 0000000000000000\n";
+        ConformanceRunner.Report report = runner.run(new MacVectorReader(new StringReader(bad), "bad"));
+        Assert.assertEquals(1, report.getFailedCount());
+        Assert.assertFalse(report.isPassed());
+    }
+
+    /**
+     * 执行计划测试。
+     * <p>
+     * 编译后的执行计划在多个线程中共享，每个线程只创建自己的YCMac；编译不修改ParametersWithPadding。
+     */
+    @Test
+    public void test_plan_shared() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (TestData4 testData : TestData4.testData4) {
+                ParametersWithPadding parameters = new ParametersWithPadding(
+                        testData.key1, testData.key2, testData.typeAlg, testData.typePad, testData.msg.length);
+                MacPlan plan = MacPlan.compile(parameters, CMacTool.getBlockCipher(testData.algSymm));
+                Assert.assertSame(testData.key1, parameters.key1);
+                Assert.assertSame(testData.key2, parameters.key2);
+
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    futures.add(executor.submit(() -> {
+                        YCMac mac = new YCMac(CMacTool.getBlockCipher(testData.algSymm), testData.mac.length * 8);
+                        mac.init(plan);
+                        byte[] macValue = new byte[testData.mac.length];
+                        for (int round = 0; round < 10; round++) {
+                            for (int i = 0; i < testData.msg.length; i++)
+                                mac.update(testData.msg[i]);
+                            mac.doFinal(macValue, 0);
+                            Assert.assertArrayEquals(testData.mac, macValue);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures)
+                    future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 只有一个分组的消息，算法6和8的最终迭代从IV开始。
+     * <p>
+     * 之前的实现在这种情况下从0开始，忽略了IV。分组D完整时：
+     * 算法6为 E(K2, IV^D)；算法8为 E(key1, ROTR(IV^D)^IV)。
+     */
+    @Test
+    public void test_one_block_iv() {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        for (AlgSymm algSymm : new AlgSymm[]{AlgSymm.SM4, AlgSymm.AES128}) {
+            byte[] key1 = randomGenerator.nextBytes(16);
+            byte[] key2 = randomGenerator.nextBytes(16);
+            byte[] iv = randomGenerator.nextBytes(16);
+            byte[] data = randomGenerator.nextBytes(16);
+            byte[] masked = data.clone();
+            YCMac.xor(masked, iv);
+
+            BlockCipher cipher = CMacTool.getBlockCipher(algSymm);
+            byte[] expected6 = new byte[16];
+            cipher.init(true, new KeyParameter(key2));
+            cipher.processBlock(masked, 0, expected6, 0);
+
+            byte[] expected8 = new byte[16];
+            YCMac.shiftRight(masked, expected8);
+            YCMac.xor(expected8, iv);
+            cipher.init(true, new KeyParameter(key1));
+            cipher.processBlock(expected8, 0, expected8, 0);
+
+            for (int typeAlg : new int[]{6, 8}) {
+                YCMac mac = new YCMac(CMacTool.getBlockCipher(algSymm));
+                mac.init(new ParametersWithPadding(key1, key2, iv, typeAlg, typeAlg == 8 ? 4 : 1));
+                mac.update(data, 0, data.length);
+                byte[] result = new byte[16];
+                mac.doFinal(result, 0);
+                Assert.assertArrayEquals(algSymm + " " + typeAlg, typeAlg == 6 ? expected6 : expected8, result);
+            }
+        }
+    }
+
     /**
      * CMAC-update 测试。
      * <p>
@@ -251,6 +461,1287 @@ public class YMacTest {
         }
     }
 
+    /**
+     * 分散数据的 update 测试。
+     * <p>
+     * 将数据随机切分为多个片段（包括direct ByteBuffer），结果应与一次输入完整数据相同。
+     */
+    @Test
+    public void test_gather_update() {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        Random random = new Random(15852);
+        byte[] data = randomGenerator.nextBytes(171);
+
+        for (TestData4 testData : TestData4.testData4) {
+            byte[] expected = new byte[testData.mac.length];
+            YCMac mac = new YCMac(CMacTool.getBlockCipher(testData.algSymm), expected.length * 8);
+            mac.init(new ParametersWithPadding(testData.key1, testData.key2, testData.typeAlg, testData.typePad, data.length));
+            mac.update(data, 0, data.length);
+            mac.doFinal(expected, 0);
+
+            int count = 1 + random.nextInt(8);
+            int[] offs = new int[count];
+            int[] lens = new int[count];
+            ByteBuffer[] buffers = new ByteBuffer[count];
+            byte[][] slices = new byte[count][];
+            int off = 0;
+            for (int i = 0; i < count; i++) {
+                int len = i == count - 1 ? data.length - off : random.nextInt(data.length - off + 1);
+                slices[i] = data;
+                offs[i] = off;
+                lens[i] = len;
+                buffers[i] = ByteBuffer.allocateDirect(len);
+                buffers[i].put(data, off, len).flip();
+                off += len;
+            }
+
+            byte[] macValue = new byte[expected.length];
+            mac.init(new ParametersWithPadding(testData.key1, testData.key2, testData.typeAlg, testData.typePad, data.length));
+            mac.update(slices, offs, lens);
+            mac.doFinal(macValue, 0);
+            Assert.assertArrayEquals(expected, macValue);
+
+            mac.init(new ParametersWithPadding(testData.key1, testData.key2, testData.typeAlg, testData.typePad, data.length));
+            mac.update(buffers);
+            mac.doFinal(macValue, 0);
+            Assert.assertArrayEquals(expected, macValue);
+        }
+    }
+
+    /**
+     * PMAC1 测试：AES-128 参考数据；流式计算与并行计算（ByteBuffer和文件）结果相同。
+     */
+    @Test
+    public void test_pmac() throws Exception {
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f");
+        int[] lens = {0, 3, 16, 20, 32, 34};
+        String[] macs = {
+                "4399572cd6ea5341b8d35876a7098af7", "256ba5193c1b991b4df0c51f388a9e27",
+                "ebbd822fa458daf6dfdad7c27da76338", "0412ca150bbf79058d8c75a58c993f55",
+                "e97ac04e9e5e3399ce5355cd7407bc75", "5cba7d5eb24f7c86ccc54604e53d5512"};
+        PMac pmac = new PMac(CMacTool.getBlockCipher(AlgSymm.AES128));
+        pmac.init(new KeyParameter(key));
+        for (int i = 0; i < lens.length; i++) {
+            byte[] msg = new byte[lens[i]];
+            for (int j = 0; j < msg.length; j++)
+                msg[j] = (byte) j;
+            byte[] macValue = new byte[pmac.getMacSize()];
+            pmac.update(msg, 0, msg.length);
+            pmac.doFinal(macValue, 0);
+            Assert.assertArrayEquals(Hex.decode(macs[i]), macValue);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            byte[] data = new RandomGenerator().nextBytes(16 * 20000 + 5);
+            for (AlgSymm algSymm : new AlgSymm[]{AlgSymm.SM4, AlgSymm.DES}) {
+                byte[] expected = new byte[SymmUtils.getSymmBlockLength(algSymm)];
+                pmac = new PMac(CMacTool.getBlockCipher(algSymm));
+                pmac.init(new KeyParameter(key, 0, expected.length == 8 ? 8 : 16));
+                for (int off = 0; off < data.length; off += 1000)
+                    pmac.update(data, off, Math.min(1000, data.length - off));
+                pmac.doFinal(expected, 0);
+
+                byte[] pkey = Arrays.copyOf(key, expected.length == 8 ? 8 : 16);
+                byte[] macValue = PMac.computeParallel(() -> CMacTool.getBlockCipher(algSymm), pkey,
+                        ByteBuffer.wrap(data), expected.length * 8, pool);
+                Assert.assertArrayEquals(expected, macValue);
+
+                File file = File.createTempFile("pmac", ".bin");
+                try {
+                    Files.write(file.toPath(), data);
+                    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        macValue = PMac.computeParallel(() -> CMacTool.getBlockCipher(algSymm), pkey,
+                                channel, expected.length * 8, pool);
+                    }
+                    Assert.assertArrayEquals(expected, macValue);
+                } finally {
+                    file.delete();
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 分块标签：并行计算、sidecar编解码，以及只验证部分范围。
+     */
+    @Test
+    public void test_chunked_tag() throws Exception {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        byte[] key = randomGenerator.nextBytes(16);
+        byte[] data = randomGenerator.nextBytes(4096 * 12 + 100);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        File file = File.createTempFile("chunked", ".bin");
+        try {
+            ChunkedTag tag = ChunkedTag.compute(AlgSymm.SM4, key, ByteBuffer.wrap(data), 4096, pool);
+            Assert.assertEquals(13, tag.getChunkCount());
+
+            //块标签 = CMAC(0x01 || 000000 || chunkSize || index || 块数据)
+            byte[] header = Hex.decode("01000000" + "00001000" + "0000000000000003");
+            byte[] expected = new byte[16];
+            YCMac mac = new YCMac(CMacTool.getBlockCipher(AlgSymm.SM4));
+            mac.init(new ParametersWithPadding(key, null, 5, 4));
+            mac.update(header, 0, header.length);
+            mac.update(data, 3 * 4096, 4096);
+            mac.doFinal(expected, 0);
+            Assert.assertArrayEquals(expected, tag.getChunkTag(3));
+
+            Files.write(file.toPath(), data);
+            Path sidecar = new File(file.getPath() + ".tag").toPath();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ChunkedTag fileTag = ChunkedTag.compute(AlgSymm.SM4, key, channel, 4096, pool);
+                Assert.assertArrayEquals(tag.getEncoded(), fileTag.getEncoded());
+                fileTag.write(sidecar);
+            }
+
+            tag = ChunkedTag.read(sidecar);
+            Files.delete(sidecar);
+            Assert.assertTrue(tag.verifyRange(key, ByteBuffer.wrap(data), 0, data.length));
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                Assert.assertTrue(tag.verifyRange(key, channel, 5000, 10000));
+            }
+
+            data[4096 * 7 + 1] ^= 1;
+            Assert.assertTrue(tag.verifyRange(key, ByteBuffer.wrap(data), 0, 4096 * 7));
+            Assert.assertFalse(tag.verifyRange(key, ByteBuffer.wrap(data), 4096 * 7, 1));
+            Assert.assertFalse(tag.verifyRange(key, ByteBuffer.wrap(data, 0, data.length - 1), 0, 1));
+            data[4096 * 7 + 1] ^= 1;
+
+            byte[] encoded = tag.getEncoded();
+            encoded[30] ^= 1; //修改了块0的标签，顶层标签不再匹配
+            Assert.assertFalse(ChunkedTag.getInstance(encoded).verifyRange(key, ByteBuffer.wrap(data), 4096 * 8, 1));
+        } finally {
+            file.delete();
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 多密钥MAC：每个通道的结果与单独计算的结果相同。
+     */
+    @Test
+    public void test_multi_key() {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        byte[] data = randomGenerator.nextBytes(MultiKeyMac.TILE_SIZE * 2 + 13);
+
+        List<ParametersWithPadding> parameters = new ArrayList<>();
+        List<byte[]> expected = new ArrayList<>();
+        for (TestData4 testData : TestData4.testData4) {
+            if (testData.algSymm != AlgSymm.SM4)
+                continue;
+            ParametersWithPadding p = new ParametersWithPadding(testData.key1, testData.key2, testData.typeAlg, testData.typePad, data.length);
+            YCMac mac = new YCMac(CMacTool.getBlockCipher(AlgSymm.SM4));
+            mac.init(p);
+            mac.update(data, 0, data.length);
+            byte[] macValue = new byte[16];
+            mac.doFinal(macValue, 0);
+            parameters.add(p);
+            expected.add(macValue);
+        }
+        Assert.assertTrue(parameters.size() > 2);
+
+        MultiKeyMac multiKeyMac = new MultiKeyMac(AlgSymm.SM4, parameters.toArray(new ParametersWithPadding[0]));
+        multiKeyMac.update(data, 0, data.length);
+        byte[][] macs = multiKeyMac.doFinal();
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        multiKeyMac.update(direct);
+        byte[][] directMacs = multiKeyMac.doFinal();
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertArrayEquals(expected.get(i), macs[i]);
+            Assert.assertArrayEquals(expected.get(i), directMacs[i]);
+        }
+
+        byte[][] keys = {randomGenerator.nextBytes(16), randomGenerator.nextBytes(16), randomGenerator.nextBytes(16)};
+        byte[] iv = randomGenerator.nextBytes(16);
+        macs = CMacTool.cmac(AlgSymm.SM4, keys, iv, data);
+        for (int i = 0; i < keys.length; i++)
+            Assert.assertArrayEquals(CMacTool.cmac(AlgSymm.SM4, keys[i], iv.clone(), data), macs[i]);
+    }
+
+    /**
+     * 流式填充：header + 消息 + tail 与 CMacTool.padding1~4 相同，且用算法1计算的MAC与YCMac内部填充的结果相同。
+     */
+    @Test
+    public void test_padding_writer() throws Exception {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        for (AlgSymm algSymm : new AlgSymm[]{AlgSymm.SM4, AlgSymm.DES}) {
+            int blockSize = SymmUtils.getSymmBlockLength(algSymm);
+            byte[] key = randomGenerator.nextBytes(SymmUtils.getSymmKeyLength(algSymm));
+            YCMac mac = new YCMac(CMacTool.getBlockCipher(algSymm));
+            for (int typePad = 1; typePad <= 4; typePad++) {
+                for (int len = 1; len <= 3 * blockSize; len++) {
+                    byte[] data = randomGenerator.nextBytes(len);
+
+                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                    PaddingWriter.writeHeader(typePad, len, blockSize, stream);
+                    stream.write(data);
+                    PaddingWriter.writeTail(typePad, len, blockSize, stream);
+                    byte[] padded = stream.toByteArray();
+                    Assert.assertEquals(0, padded.length % blockSize);
+
+                    ByteBuffer buffer = ByteBuffer.allocate(padded.length);
+                    PaddingWriter.writeHeader(typePad, len, blockSize, buffer);
+                    buffer.put(data);
+                    PaddingWriter.writeTail(typePad, len, blockSize, buffer);
+                    Assert.assertArrayEquals(padded, buffer.array());
+
+                    byte[] expected = typePad == 1 ? CMacTool.padding1(data, blockSize)
+                            : typePad == 2 ? CMacTool.padding2(data, blockSize)
+                            : typePad == 3 ? CMacTool.padding3(data, blockSize)
+                            : CMacTool.padding4(data, blockSize);
+                    Assert.assertArrayEquals(expected, padded);
+
+                    byte[] macValue = new byte[blockSize];
+                    mac.init(new ParametersWithPadding(key, null, 1, typePad, len));
+                    mac.update(data, 0, len);
+                    mac.doFinal(macValue, 0);
+                    Assert.assertArrayEquals(macValue, CMacTool.cmac(algSymm, key, null, padded));
+                }
+            }
+        }
+    }
+
+    /**
+     * DRBG模式的随机数：多线程生成、分批输出和重新播种。
+     */
+    @Test
+    public void test_random_drbg() throws Exception {
+        RandomGenerator randomGenerator = RandomGenerator.drbg(AlgSymm.AES128, 1024, 4096);
+        byte[] out = new byte[100];
+        randomGenerator.nextBytes(out, 10, 80);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(0, out[i]);
+            Assert.assertEquals(0, out[90 + i]);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+                futures.add(executor.submit(() -> randomGenerator.nextBytes(10000)));
+            List<String> samples = new ArrayList<>();
+            for (Future<byte[]> future : futures) {
+                byte[] data = future.get();
+                Assert.assertEquals(10000, data.length);
+                for (int off = 0; off < data.length; off += 1000)
+                    samples.add(Hex.toHexString(data, off, 16));
+            }
+            Assert.assertEquals(samples.size(), samples.stream().distinct().count());
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            RandomGenerator.drbg(AlgSymm.SM4);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            showMsg(e.getMessage());
+        }
+    }
+
+    /**
+     * 延迟直方图的精度，以及负载测试的闭环和开环模式。
+     */
+    @Test
+    public void test_load_harness() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++)
+            histogram.record(v);
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            double expected = p * 1000;
+            Assert.assertEquals(expected, histogram.getValueAtPercentile(p), expected / LatencyHistogram.SUB_BUCKETS);
+        }
+        Assert.assertEquals(100000, histogram.getValueAtPercentile(100));
+
+        for (LoadHarness.Target target : LoadHarness.Target.values()) {
+            LoadHarness.Result result = new LoadHarness(target, AlgSymm.SM4, 2, 20, LoadHarness.MessageSizes.iso8583())
+                    .setDuration(100, 300, 100)
+                    .run();
+            showMsg(result.toString());
+            Assert.assertTrue(result.ops > 0);
+            Assert.assertEquals(result.ops, result.histogram.getCount());
+        }
+
+        LoadHarness.Result result = new LoadHarness(LoadHarness.Target.YCMAC, AlgSymm.SM4, 2, 20, LoadHarness.MessageSizes.fixed(256))
+                .setDuration(100, 500, 100)
+                .setRate(2000)
+                .run();
+        showMsg(result.toString());
+        //吞吐量取决于机器的负载，只检查计数的一致性
+        Assert.assertTrue(result.ops > 0);
+        Assert.assertEquals(result.ops, result.histogram.getCount());
+        Assert.assertEquals(result.ops * 256, result.bytes);
+        Assert.assertTrue(result.histogram.getValueAtPercentile(50) <= result.histogram.getValueAtPercentile(100));
+    }
+
+    /**
+     * 启动时间测试计算的MAC：轻量级CMac和JCA的结果相同。启动时间由 {@link StartupBenchmark#main} 单独测试。
+     */
+    @Test
+    public void test_startup() throws Exception {
+        Assert.assertArrayEquals(StartupBenchmark.firstMac(StartupBenchmark.JCA), StartupBenchmark.firstMac(StartupBenchmark.LIGHT));
+    }
+
+    /**
+     * 分组密码注册表：ServiceLoader 发现的实现经过测试向量检验，所有候选实现的MAC相同，系统属性可以覆盖选择。
+     */
+    @Test
+    public void test_engine_registry() {
+        //独立的注册表：全局的选择可能已由其他测试确定，系统属性的覆盖也不应影响之后的测试
+        EngineRegistry registry = new EngineRegistry();
+        Assert.assertTrue(registry.getProviderNames().contains("Test-SM4"));
+        Assert.assertTrue(registry.getProviderNames().contains("Test-BrokenSM4"));
+
+        //不校准时只检验到第一个通过的实现，排在后面的实现不会被创建
+        TestBlockCipherProviders.Sm4.CREATED.set(0);
+        Assert.assertEquals("BC-SM4Engine", registry.select(AlgSymm.SM4, EngineRegistry.SizeClass.SMALL).getName());
+        Assert.assertEquals(0, TestBlockCipherProviders.Sm4.CREATED.get());
+
+        List<String> sm4 = new ArrayList<>();
+        for (BlockCipherProvider provider : registry.candidates(AlgSymm.SM4))
+            sm4.add(provider.getName());
+        Assert.assertEquals(Arrays.asList("BC-SM4Engine", "Test-SM4"), sm4);
+        Assert.assertTrue(TestBlockCipherProviders.Sm4.CREATED.get() > 0);
+
+        //覆盖为未通过检验的实现
+        System.setProperty(EngineRegistry.PROPERTY_PREFIX + "SM4.large", "Test-BrokenSM4");
+        try {
+            registry.select(AlgSymm.SM4, EngineRegistry.SizeClass.LARGE);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            showMsg(e.getMessage());
+        } finally {
+            System.clearProperty(EngineRegistry.PROPERTY_PREFIX + "SM4.large");
+        }
+
+        byte[] key = Hex.decode("000102030405060708090a0b0c0d0e0f");
+        byte[] data = new RandomGenerator().nextBytes(100);
+        byte[] expected = null;
+        for (BlockCipherProvider provider : registry.candidates(AlgSymm.AES128)) {
+            YCMac mac = new YCMac(provider.create(AlgSymm.AES128));
+            mac.init(new ParametersWithPadding(key, null, 5, 4));
+            mac.update(data, 0, data.length);
+            byte[] macValue = new byte[mac.getMacSize()];
+            mac.doFinal(macValue, 0);
+            if (expected == null)
+                expected = macValue;
+            Assert.assertArrayEquals(provider.getName(), expected, macValue);
+        }
+        Assert.assertEquals(3, registry.benchmark(AlgSymm.AES128, EngineRegistry.SizeClass.LARGE).size());
+
+        System.setProperty(EngineRegistry.PROPERTY_PREFIX + "AES256.large", "BC-AESLightEngine");
+        try {
+            Assert.assertEquals("BC-AESLightEngine", registry.select(AlgSymm.AES256, EngineRegistry.SizeClass.LARGE).getName());
+            Assert.assertEquals("BC-AESLightEngine", registry.getSelections().get("AES256.large"));
+        } finally {
+            System.clearProperty(EngineRegistry.PROPERTY_PREFIX + "AES256.large");
+        }
+    }
+
+    /**
+     * 记录文件MAC流水线：每条记录的MAC按顺序写入 sidecar，与单独计算的结果相同；包括跨窗口和比窗口大的记录。
+     */
+    @Test
+    public void test_record_pipeline() throws Exception {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        Random random = new Random(8583);
+        byte[] key = randomGenerator.nextBytes(16);
+        ParametersWithPadding parameters = new ParametersWithPadding(key, null, 1, 2);
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            byte[] record = randomGenerator.nextBytes(i == 1234 ? 10000 : random.nextInt(600));
+            file.write(record.length >>> 8);
+            file.write(record.length);
+            file.write(record);
+            records.add(record);
+        }
+
+        File input = File.createTempFile("records", ".bin");
+        File sidecar = File.createTempFile("records", ".tag");
+        try {
+            Files.write(input.toPath(), file.toByteArray());
+            RecordMacPipeline pipeline = new RecordMacPipeline(AlgSymm.SM4, parameters, RecordFraming.lengthPrefixed(2), 4, 4096);
+            Assert.assertEquals(records.size(), pipeline.run(input.toPath(), sidecar.toPath()));
+
+            byte[] tags = Files.readAllBytes(sidecar.toPath());
+            Assert.assertEquals(records.size() * 16, tags.length);
+            YCMac mac = new YCMac(CMacTool.getBlockCipher(AlgSymm.SM4));
+            mac.init(parameters);
+            byte[] expected = new byte[16];
+            for (int i = 0; i < records.size(); i++) {
+                mac.update(records.get(i), 0, records.get(i).length);
+                mac.doFinal(expected, 0);
+                Assert.assertArrayEquals(expected, Arrays.copyOfRange(tags, i * 16, i * 16 + 16));
+            }
+
+            //ASCII长度前缀
+            Files.write(input.toPath(), "0003abc0000".getBytes(StandardCharsets.US_ASCII));
+            pipeline = new RecordMacPipeline(AlgSymm.SM4, parameters, RecordFraming.asciiLength(4), 2);
+            Assert.assertEquals(2, pipeline.run(input.toPath(), sidecar.toPath()));
+            mac.update("abc".getBytes(StandardCharsets.US_ASCII), 0, 3);
+            mac.doFinal(expected, 0);
+            Assert.assertArrayEquals(expected, Arrays.copyOf(Files.readAllBytes(sidecar.toPath()), 16));
+
+            //最后一条记录不完整
+            Files.write(input.toPath(), "0003abc0005ab".getBytes(StandardCharsets.US_ASCII));
+            try {
+                pipeline.run(input.toPath(), sidecar.toPath());
+                Assert.fail();
+            } catch (IOException e) {
+                showMsg(e.getMessage());
+            }
+
+            //记录长度为0的分帧方式不会使流水线停止前进
+            RecordFraming empty = (data, pos, frame) -> {
+                frame.set(0, 0, 0);
+                return true;
+            };
+            try {
+                new RecordMacPipeline(AlgSymm.SM4, parameters, empty, 2).run(input.toPath(), sidecar.toPath());
+                Assert.fail();
+            } catch (IOException e) {
+                showMsg(e.getMessage());
+            }
+        } finally {
+            input.delete();
+            sidecar.delete();
+        }
+    }
+
+    @Test
+    public void test_terminal_key_table() throws Exception {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        AlgSymm[] algs = {AlgSymm.SM4, AlgSymm.AES128, AlgSymm.AES192, AlgSymm.AES256};
+        int[][] types = {{1, 1}, {1, 2}, {5, 4}};
+
+        TerminalKeyTable table = new TerminalKeyTable(1000);
+        TerminalKeyTable.Engine engine = table.newEngine();
+        byte[] data = randomGenerator.nextBytes(100);
+        byte[] tag = new byte[16];
+        byte[] expected = new byte[16];
+        for (int t = 0; t < algs.length; t++) {
+            AlgSymm algSymm = algs[t];
+            byte[] key = randomGenerator.nextBytes(algSymm == AlgSymm.AES192 ? 24 : algSymm == AlgSymm.AES256 ? 32 : 16);
+            table.put(86000000L + t, algSymm, key);
+            Assert.assertEquals(algSymm, table.getAlgSymm(86000000L + t));
+            for (int[] type : types) {
+                YCMac mac = new YCMac(CMacTool.getBlockCipher(algSymm));
+                mac.init(new ParametersWithPadding(key, null, type[0], type[1]));
+                for (int len = 0; len <= 50; len++) {
+                    mac.update(data, 3, len);
+                    mac.doFinal(expected, 0);
+                    Assert.assertEquals(16, engine.mac(86000000L + t, type[0], type[1], data, 3, len, tag, 0));
+                    Assert.assertArrayEquals(algSymm + " " + type[0] + "/" + type[1] + " " + len, expected, tag);
+                }
+            }
+        }
+        Assert.assertEquals(4, table.size());
+        Assert.assertFalse(table.contains(1L));
+
+        //密钥文件
+        File keyFile = File.createTempFile("terminal", ".keys");
+        try {
+            StringBuilder sb = new StringBuilder("# terminal algorithm key\n\n");
+            List<byte[]> keys = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                byte[] key = randomGenerator.nextBytes(i % 2 == 0 ? 16 : 32);
+                keys.add(key);
+                sb.append(i).append(i % 3 == 0 ? "\t" : " ").append(i % 2 == 0 ? "SM4" : "AES256")
+                        .append(' ').append(Hex.toHexString(key)).append(i % 5 == 0 ? "\r\n" : "\n");
+            }
+            Files.write(keyFile.toPath(), sb.toString().getBytes(StandardCharsets.US_ASCII));
+            Assert.assertEquals(500, table.load(keyFile.toPath(), 4));
+            Assert.assertEquals(504, table.size());
+            for (int i = 0; i < 500; i += 7) {
+                AlgSymm algSymm = i % 2 == 0 ? AlgSymm.SM4 : AlgSymm.AES256;
+                Assert.assertArrayEquals(CMacTool.yomac(algSymm, keys.get(i), null, data),
+                        Arrays.copyOf(tag, engine.mac(i, 5, 4, data, 0, data.length, tag, 0)));
+            }
+
+            //重复的终端
+            Files.write(keyFile.toPath(), ("1 SM4 " + Hex.toHexString(keys.get(0)) + "\n1 SM4 "
+                    + Hex.toHexString(keys.get(0)) + "\n").getBytes(StandardCharsets.US_ASCII));
+            try {
+                table.load(keyFile.toPath(), 2);
+                Assert.fail();
+            } catch (IOException e) {
+                showMsg(e.getMessage());
+            }
+            Assert.assertEquals(504, table.size());
+
+            //格式错误
+            Files.write(keyFile.toPath(), "600 SM4 0011\n".getBytes(StandardCharsets.US_ASCII));
+            try {
+                table.load(keyFile.toPath(), 1);
+                Assert.fail();
+            } catch (IOException e) {
+                showMsg(e.getMessage());
+            }
+            Assert.assertFalse(table.contains(600));
+
+            //定期重新加载密钥文件轮换密钥：原来的槽位被重新使用，表不会被占满
+            TerminalKeyTable rotating = new TerminalKeyTable(11);
+            TerminalKeyTable.Engine rotatingEngine = rotating.newEngine();
+            byte[][] rotated = new byte[5][];
+            for (int round = 0; round < 20; round++) {
+                sb = new StringBuilder();
+                for (int i = 0; i < 5; i++) {
+                    rotated[i] = randomGenerator.nextBytes(16);
+                    sb.append(i).append(" SM4 ").append(Hex.toHexString(rotated[i])).append('\n');
+                }
+                //出错时原来的密钥不变，取出的空闲槽位放回
+                if (round % 5 == 4)
+                    sb.append("0 SM4 ").append(Hex.toHexString(rotated[0])).append('\n');
+                Files.write(keyFile.toPath(), sb.toString().getBytes(StandardCharsets.US_ASCII));
+                try {
+                    Assert.assertEquals(5, rotating.load(keyFile.toPath(), 2));
+                    Assert.assertNotEquals(4, round % 5);
+                } catch (IOException e) {
+                    Assert.assertEquals(4, round % 5);
+                    continue;
+                }
+                Assert.assertEquals(5, rotating.size());
+                for (int i = 0; i < 5; i++) {
+                    Assert.assertArrayEquals(CMacTool.yomac(AlgSymm.SM4, rotated[i], null, data),
+                            Arrays.copyOf(tag, rotatingEngine.mac(i, 5, 4, data, 0, data.length, tag, 0)));
+                }
+            }
+        } finally {
+            keyFile.delete();
+        }
+
+        try {
+            table.put(1, AlgSymm.DES, new byte[8]);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            showMsg(e.getMessage());
+        }
+
+        //只保存128位密钥的紧凑槽位
+        TerminalKeyTable compact = new TerminalKeyTable(10, 16);
+        Assert.assertEquals(240, compact.getSlotSize());
+        byte[] key = randomGenerator.nextBytes(16);
+        compact.put(7, AlgSymm.AES128, key);
+        Assert.assertArrayEquals(CMacTool.yomac(AlgSymm.AES128, key, null, data),
+                Arrays.copyOf(tag, compact.newEngine().mac(7, 5, 4, data, 0, data.length, tag, 0)));
+        try {
+            compact.put(8, AlgSymm.AES256, new byte[32]);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            showMsg(e.getMessage());
+        }
+    }
+
+    @Test
+    public void test_padding3_large() throws Exception {
+        //超过256MB时比特长度超出int
+        long length = (1L << 28) + 5;
+        byte[] header = new byte[16];
+        PaddingWriter.writeHeader(3, length, 16, header, 0);
+        Assert.assertArrayEquals(Hex.decode("0000000080000028"), Arrays.copyOfRange(header, 8, 16));
+        Assert.assertArrayEquals(new byte[8], Arrays.copyOf(header, 8));
+        PaddingWriter.writeHeader(3, 0x123456789L, 8, header, 0);
+        Assert.assertArrayEquals(Hex.decode("000000091a2b3c48"), Arrays.copyOf(header, 8));
+        ParametersWithPadding parameters = new ParametersWithPadding(new byte[16], null, 1, 3, length);
+        Assert.assertEquals(length, parameters.getLength());
+
+        //映射文件和输入流；超过256MB的文件见 test_padding3_large_file
+        byte[] key = new RandomGenerator().nextBytes(16);
+        checkPadding3File(key, (1L << 20) + 5);
+
+        //声明的长度与输入的数据不一致
+        byte[] tail = "large batch file".getBytes(StandardCharsets.US_ASCII);
+        YCMac mac = new YCMac(CMacTool.getBlockCipher(AlgSymm.SM4));
+        mac.init(new ParametersWithPadding(key, null, 1, 3, 5));
+        mac.update(tail, 0, 4);
+        try {
+            mac.doFinal(new byte[16], 0);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            showMsg(e.getMessage());
+        }
+        mac.update(tail, 0, 5);
+        byte[] result = new byte[16];
+        mac.doFinal(result, 0);
+        Assert.assertArrayEquals(CMacTool.cmac(AlgSymm.SM4, key, null, CMacTool.padding3(Arrays.copyOf(tail, 5), 16)), result);
+    }
+
+    /**
+     * 超过256MB（比特长度超出int）的文件，耗时数秒，不在单元测试中运行：
+     * <pre>
+     * mvn test -Dtest=YMacTest#test_padding3_large_file -Dorg.yy.mac.test.large=true
+     * </pre>
+     */
+    @Test
+    public void test_padding3_large_file() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("org.yy.mac.test.large"));
+        checkPadding3File(new RandomGenerator().nextBytes(16), (1L << 28) + 5);
+    }
+
+    /**
+     * 填充3：映射文件和输入流的结果与先输入长度分组再使用填充1的结果相同。
+     * 使用稀疏文件，末尾之外都是0。
+     */
+    private static void checkPadding3File(byte[] key, long length) throws Exception {
+        byte[] tail = "large batch file".getBytes(StandardCharsets.US_ASCII);
+        File file = File.createTempFile("large", ".bin");
+        try {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(tail), length - tail.length);
+            }
+            Assert.assertEquals(length, file.length());
+
+            //填充3等价于长度分组之后使用填充1
+            YCMac mac = new YCMac(CMacTool.getBlockCipher(AlgSymm.AES128, (int) Math.min(length, Integer.MAX_VALUE)));
+            mac.init(new ParametersWithPadding(key, null, 1, 1));
+            byte[] header = new byte[16];
+            PaddingWriter.writeHeader(3, length, 16, header, 0);
+            mac.update(header, 0, 16);
+            byte[] zeros = new byte[1 << 20];
+            for (long remaining = length - tail.length; remaining > 0; remaining -= zeros.length)
+                mac.update(zeros, 0, (int) Math.min(zeros.length, remaining));
+            mac.update(tail, 0, tail.length);
+            byte[] expected = new byte[16];
+            mac.doFinal(expected, 0);
+
+            mac.init(new ParametersWithPadding(key, null, 1, 3, length));
+            byte[] result = new byte[16];
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                Assert.assertEquals(length, mac.update(channel));
+                Assert.assertEquals(length, channel.position());
+            }
+            mac.doFinal(result, 0);
+            Assert.assertArrayEquals(expected, result);
+
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                Assert.assertEquals(length, mac.update(in));
+            }
+            mac.doFinal(result, 0);
+            Assert.assertArrayEquals(expected, result);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void test_mac_session() throws Exception {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        byte[] data = randomGenerator.nextBytes(171);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (AlgSymm algSymm : AlgSymm.values()) {
+                byte[] key = randomGenerator.nextBytes(SymmUtils.getSymmKeyLength(algSymm));
+                byte[] iv = randomGenerator.nextBytes(SymmUtils.getSymmBlockLength(algSymm));
+                int blockSize = SymmUtils.getSymmBlockLength(algSymm);
+
+                //逐段写回iv的方式与会话的中间结果一致；每段由不同的线程处理
+                MacSession session = new MacSession(algSymm, key, iv);
+                byte[] iv0 = iv.clone();
+                for (int off = 0; off < data.length; off += blockSize) {
+                    byte[] chunk = Arrays.copyOfRange(data, off, Math.min(off + blockSize, data.length));
+                    byte[] expected = CMacTool.cmac(algSymm, key, iv0, chunk);
+                    Future<byte[]> future = executor.submit(() -> {
+                        session.update(chunk, 0, chunk.length);
+                        return session.getChainValue();
+                    });
+                    Assert.assertArrayEquals(algSymm.name(), expected, future.get());
+                }
+                Assert.assertEquals(data.length, session.getLength());
+                Assert.assertArrayEquals(CMacTool.cmac(algSymm, key, iv.clone(), data), session.doFinal());
+
+                //结束后可以计算下一个消息
+                session.update(ByteBuffer.wrap(data));
+                Assert.assertArrayEquals(CMacTool.cmac(algSymm, key, iv.clone(), data), session.doFinal());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        //其他算法
+        byte[] key = randomGenerator.nextBytes(16);
+        MacSession session = new MacSession(AlgSymm.SM4, new ParametersWithPadding(key, null, 5, 4));
+        session.update(data, 0, 100);
+        Assert.assertArrayEquals(CMacTool.yomac(AlgSymm.SM4, key, null, Arrays.copyOf(data, 100)), session.getChainValue());
+        session.update(data, 100, 71);
+        Assert.assertArrayEquals(CMacTool.yomac(AlgSymm.SM4, key, null, data), session.doFinal());
+
+        //分段计算与一次计算的开销
+        byte[] large = randomGenerator.nextBytes(16 * 4096);
+        long start = System.nanoTime();
+        byte[] oneShot = CMacTool.cmac(AlgSymm.SM4, key, null, large);
+        long oneShotTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        session = new MacSession(AlgSymm.SM4, key, null);
+        for (int off = 0; off < large.length; off += 16) {
+            session.update(large, off, 16);
+            session.getChainValue();
+        }
+        long sessionTime = System.nanoTime() - start;
+        Assert.assertArrayEquals(oneShot, session.doFinal());
+        start = System.nanoTime();
+        byte[] iv0 = new byte[16];
+        for (int off = 0; off < large.length; off += 16)
+            CMacTool.cmac(AlgSymm.SM4, key, iv0, Arrays.copyOfRange(large, off, off + 16));
+        long writeBackTime = System.nanoTime() - start;
+        Assert.assertArrayEquals(oneShot, iv0);
+        showMsg("one-shot: " + oneShotTime / 1000 + " us, session: " + sessionTime / 1000
+                + " us, iv write-back: " + writeBackTime / 1000 + " us (chain value per block)");
+    }
+
+    @Test
+    public void test_bulk_cbc() {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        byte[] data = randomGenerator.nextBytes(5000);
+        int[] lens = {0, 15, 143, 144, 145, 160, 161, 1000, 5000};
+        for (AlgSymm algSymm : new AlgSymm[]{AlgSymm.AES128, AlgSymm.AES192, AlgSymm.AES256, AlgSymm.SM4}) {
+            byte[] key1 = randomGenerator.nextBytes(SymmUtils.getSymmKeyLength(algSymm));
+            byte[] key2 = randomGenerator.nextBytes(SymmUtils.getSymmKeyLength(algSymm));
+            for (int typeAlg = 1; typeAlg <= 8; typeAlg++) {
+                for (int typePad = 1; typePad <= 4; typePad++) {
+                    for (int len : lens) {
+                        //逐个分组输入时不使用批量迭代，作为对照
+                        YCMac mac = new YCMac(CMacTool.getBlockCipher(algSymm));
+                        mac.init(new ParametersWithPadding(key1, key2, typeAlg, typePad, len));
+                        for (int off = 0; off < len; off += 16)
+                            mac.update(data, off, Math.min(16, len - off));
+                        byte[] expected = new byte[16];
+                        mac.doFinal(expected, 0);
+
+                        //JCA的AES批量迭代
+                        if (algSymm != AlgSymm.SM4) {
+                            mac = new YCMac(new JcaBlockCipher("AES", 16));
+                            mac.init(new ParametersWithPadding(key1, key2, typeAlg, typePad, len));
+                        }
+                        mac.update(data, 0, len);
+                        byte[] result = new byte[16];
+                        mac.doFinal(result, 0);
+                        Assert.assertArrayEquals(algSymm + " " + typeAlg + "/" + typePad + " " + len, expected, result);
+                    }
+                }
+            }
+        }
+
+        //长消息的AES默认使用JCA的实现，短消息和其他算法使用BC的引擎
+        Assert.assertTrue(CMacTool.getBlockCipher(AlgSymm.AES128, 1 << 20) instanceof JcaBlockCipher);
+        Assert.assertTrue(CMacTool.getBlockCipher(AlgSymm.AES128, 100) instanceof AESEngine);
+        Assert.assertFalse(CMacTool.getBlockCipher(AlgSymm.SM4, 1 << 20) instanceof JcaBlockCipher);
+
+        //与BC的CMac一致
+        byte[] key = randomGenerator.nextBytes(32);
+        Assert.assertArrayEquals(CMacTool.omac(AlgSymm.AES256, key, null, data), CMacTool.yomac(AlgSymm.AES256, key, null, data));
+
+        //调用者传入的其他实现不被替换
+        int[] blocks = new int[1];
+        BlockCipher counting = new AESEngine() {
+            @Override
+            public int processBlock(byte[] in, int inOff, byte[] out, int outOff) {
+                blocks[0]++;
+                return super.processBlock(in, inOff, out, outOff);
+            }
+        };
+        YCMac bc = new YCMac(counting);
+        bc.init(new ParametersWithPadding(Arrays.copyOf(key, 16), null, 1, 2));
+        blocks[0] = 0;
+        bc.update(data, 0, 1000);
+        bc.doFinal(new byte[16], 0);
+        Assert.assertEquals(63, blocks[0]);
+
+        byte[] large = randomGenerator.nextBytes(4 << 20);
+        YCMac mac = new YCMac(new JcaBlockCipher("AES", 16));
+        mac.init(new ParametersWithPadding(Arrays.copyOf(key, 16), null, 5, 4));
+        byte[] result = new byte[16];
+        long start = System.nanoTime();
+        for (int off = 0; off < large.length; off += 16)
+            mac.update(large, off, 16);
+        mac.doFinal(result, 0);
+        long blockTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        mac.update(large, 0, large.length);
+        byte[] bulk = new byte[16];
+        mac.doFinal(bulk, 0);
+        long bulkTime = System.nanoTime() - start;
+        Assert.assertArrayEquals(result, bulk);
+        showMsg("AES-128 4MB per block: " + blockTime / 1000000 + " ms, bulk: " + bulkTime / 1000000 + " ms");
+    }
+
+    /**
+     * 多算法MAC：共享迭代的通道与单独计算的结果相同。
+     */
+    @Test
+    public void test_multi_alg() {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        byte[] data = randomGenerator.nextBytes(1000);
+        byte[] key1 = randomGenerator.nextBytes(16);
+        byte[] key2 = randomGenerator.nextBytes(16);
+        ParametersWithPadding[] parameters = {
+                new ParametersWithPadding(key1, null, 1, 1),
+                new ParametersWithPadding(key1, null, 1, 2),
+                new ParametersWithPadding(key1, key2, 2, 1),
+                new ParametersWithPadding(key1, key2, 3, 2),
+                new ParametersWithPadding(key1, null, 5, 4),
+                new ParametersWithPadding(key1, key2, 7, 1),
+                new ParametersWithPadding(key1, null, 2, 1), //诱导密钥，单独迭代
+                new ParametersWithPadding(key1, key2, 4, 1), //单独迭代
+        };
+        int[] macSizes = {128, 128, 128, 64, 128, 96, 128, 128};
+
+        MultiAlgMac multiAlgMac = new MultiAlgMac(AlgSymm.SM4, macSizes, parameters);
+        Assert.assertEquals(parameters.length, multiAlgMac.getLaneCount());
+        Assert.assertEquals(3, multiAlgMac.getChainCount());
+        for (int len : new int[]{0, 1, 15, 16, 17, 32, 999, 1000}) {
+            multiAlgMac.update(data, 0, len);
+            byte[][] macs = multiAlgMac.doFinal();
+            for (int i = 0; i < parameters.length; i++) {
+                YCMac mac = new YCMac(CMacTool.getBlockCipher(AlgSymm.SM4), macSizes[i]);
+                mac.init(parameters[i]);
+                mac.update(data, 0, len);
+                byte[] expected = new byte[mac.getMacSize()];
+                mac.doFinal(expected, 0);
+                Assert.assertArrayEquals("lane " + i + " " + len, expected, macs[i]);
+            }
+        }
+
+        //AES使用批量迭代时同样共享
+        byte[] aesKey = randomGenerator.nextBytes(16);
+        MultiAlgMac aes = new MultiAlgMac(AlgSymm.AES128,
+                new ParametersWithPadding(aesKey, null, 1, 2), new ParametersWithPadding(aesKey, null, 5, 4));
+        Assert.assertEquals(1, aes.getChainCount());
+        aes.update(ByteBuffer.wrap(data));
+        byte[][] macs = aes.doFinal();
+        Assert.assertArrayEquals(CMacTool.yomac(AlgSymm.AES128, aesKey, null, data), macs[1]);
+    }
+
+    /**
+     * 长度未知的填充3：超过内存缓冲区后写入临时文件，结果与已知长度时相同。
+     */
+    @Test
+    public void test_spilling_mac() throws Exception {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        byte[] data = randomGenerator.nextBytes(10000);
+        byte[] key1 = randomGenerator.nextBytes(16);
+        byte[] key2 = randomGenerator.nextBytes(16);
+        for (int typeAlg : new int[]{1, 2, 3, 4, 6}) {
+            SpillingMac spillingMac = new SpillingMac(CMacTool.getBlockCipher(AlgSymm.SM4), 128, 1024, null);
+            spillingMac.init(new ParametersWithPadding(key1, key2, typeAlg, 3));
+            for (int len : new int[]{0, 5, 16, 1023, 1024, 1025, 3000, 10000}) {
+                YCMac mac = new YCMac(CMacTool.getBlockCipher(AlgSymm.SM4));
+                mac.init(new ParametersWithPadding(key1, key2, typeAlg, 3, len));
+                mac.update(data, 0, len);
+                byte[] expected = new byte[16];
+                mac.doFinal(expected, 0);
+
+                for (int off = 0; off < len; off += 700)
+                    spillingMac.update(data, off, Math.min(700, len - off));
+                Assert.assertEquals(len, spillingMac.getLength());
+                Assert.assertEquals(len > 1024, spillingMac.isSpilled());
+                byte[] result = new byte[16];
+                spillingMac.doFinal(result, 0);
+                Assert.assertFalse(spillingMac.isSpilled());
+                Assert.assertArrayEquals(typeAlg + " " + len, expected, result);
+            }
+            spillingMac.close();
+        }
+
+        //JCA：填充3不设置长度，clone 时复制已溢出的数据
+        YCMac mac = new YCMac(CMacTool.getBlockCipher(AlgSymm.SM4));
+        mac.init(new ParametersWithPadding(key1, null, 1, 3, data.length));
+        mac.update(data, 0, data.length);
+        byte[] expected = new byte[16];
+        mac.doFinal(expected, 0);
+
+        javax.crypto.Mac prototype = YMacProvider.getMac("GBT15852-ALG1-PAD3-SM4");
+        prototype.init(new SecretKeySpec(key1, "RAW"));
+        Assert.assertArrayEquals(expected, prototype.doFinal(data));
+        byte[] large = randomGenerator.nextBytes(SpillingMac.DEFAULT_MEMORY_LIMIT + 100);
+        prototype.update(large, 0, SpillingMac.DEFAULT_MEMORY_LIMIT + 50);
+        javax.crypto.Mac copy = (javax.crypto.Mac) prototype.clone();
+        prototype.update(large, SpillingMac.DEFAULT_MEMORY_LIMIT + 50, 50);
+        copy.update(large, SpillingMac.DEFAULT_MEMORY_LIMIT + 50, 50);
+        mac.init(new ParametersWithPadding(key1, null, 1, 3, large.length));
+        mac.update(large, 0, large.length);
+        mac.doFinal(expected, 0);
+        Assert.assertArrayEquals(expected, prototype.doFinal());
+        Assert.assertArrayEquals(expected, copy.doFinal());
+
+        try {
+            YMacProvider.getMac("GBT15852-2008-ALG5-PAD3-SM4").init(new SecretKeySpec(key1, "RAW"), new GBT15852ParameterSpec(key2));
+            Assert.fail();
+        } catch (InvalidAlgorithmParameterException e) {
+            //2008版本仍需要长度
+        }
+    }
+
+    /**
+     * 加密与MAC的单遍流水线：密文与BC的CBC/PKCS7相同，MAC与单独计算的相同；篡改后解密失败且不输出明文。
+     */
+    @Test
+    public void test_encrypt_then_mac() throws Exception {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        byte[] data = randomGenerator.nextBytes(3 * EncryptThenMac.TILE_SIZE + 5);
+        for (AlgSymm algSymm : new AlgSymm[]{AlgSymm.SM4, AlgSymm.AES256}) {
+            byte[] encKey = randomGenerator.nextBytes(SymmUtils.getSymmKeyLength(algSymm));
+            byte[] macKey = randomGenerator.nextBytes(SymmUtils.getSymmKeyLength(algSymm));
+            byte[] iv = randomGenerator.nextBytes(16);
+            for (int typePad : new int[]{1, 3}) {
+                ParametersWithPadding macParams = new ParametersWithPadding(macKey, null, 1, typePad);
+                EncryptThenMac etm = new EncryptThenMac(algSymm, encKey, macParams);
+                for (int len : new int[]{0, 1, 15, 16, 17, 31, EncryptThenMac.TILE_SIZE - 1, EncryptThenMac.TILE_SIZE, data.length}) {
+                    PaddedBufferedBlockCipher reference = new PaddedBufferedBlockCipher(
+                            new CBCBlockCipher(CMacTool.getBlockCipher(algSymm)), new PKCS7Padding());
+                    reference.init(true, new ParametersWithIV(new KeyParameter(encKey), iv));
+                    byte[] expected = new byte[reference.getOutputSize(len)];
+                    int n = reference.processBytes(data, 0, len, expected, 0);
+                    reference.doFinal(expected, n);
+                    YCMac mac = new YCMac(CMacTool.getBlockCipher(algSymm));
+                    mac.init(new ParametersWithPadding(macKey, null, 1, typePad, expected.length));
+                    mac.update(expected, 0, expected.length);
+                    byte[] expectedTag = new byte[16];
+                    mac.doFinal(expectedTag, 0);
+
+                    ByteBuffer cipherText = ByteBuffer.allocateDirect((int) etm.getCipherLength(len));
+                    byte[] tag = etm.encrypt(iv, ByteBuffer.wrap(data, 0, len), cipherText);
+                    Assert.assertFalse(cipherText.hasRemaining());
+                    cipherText.flip();
+                    byte[] result = new byte[cipherText.remaining()];
+                    cipherText.get(result);
+                    Assert.assertArrayEquals(algSymm + " " + len, expected, result);
+                    Assert.assertArrayEquals(algSymm + " " + len, expectedTag, tag);
+
+                    ByteBuffer plain = ByteBuffer.allocate(len);
+                    Assert.assertEquals(len, etm.decrypt(iv, ByteBuffer.wrap(result), plain, tag));
+                    Assert.assertArrayEquals(Arrays.copyOf(data, len), plain.array());
+
+                    //输出空间只够密文长度减一个分组：最后一个分组不足以写入时失败，不输出明文
+                    if (len % 16 != 0 && len > 16) {
+                        plain = ByteBuffer.allocate(result.length - 16);
+                        try {
+                            etm.decrypt(iv, ByteBuffer.wrap(result), plain, tag);
+                            Assert.fail();
+                        } catch (IllegalArgumentException e) {
+                            Assert.assertEquals(0, plain.position());
+                            Assert.assertArrayEquals(new byte[plain.capacity()], plain.array());
+                        }
+                    }
+
+                    if (typePad == 1) {
+                        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                        Assert.assertArrayEquals(expectedTag, etm.encrypt(iv, new java.io.ByteArrayInputStream(data, 0, len), stream));
+                        Assert.assertArrayEquals(expected, stream.toByteArray());
+                    }
+
+                    //篡改密文：验证失败，输出缓冲区清零且 position 不变
+                    result[result.length / 2] ^= 1;
+                    plain = ByteBuffer.allocate(len);
+                    try {
+                        etm.decrypt(iv, ByteBuffer.wrap(result), plain, tag);
+                        Assert.fail();
+                    } catch (YCryptoException e) {
+                        Assert.assertEquals(0, plain.position());
+                        Assert.assertArrayEquals(new byte[len], plain.array());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 差分测试：所有快速实现与参考实现一致；注入的错误被缩小到最小的复现用例。
+     */
+    @Test
+    public void test_differential_oracle() throws Exception {
+        //大量的随机测试由 DifferentialOracle.main 运行
+        DifferentialOracle.Report report = new DifferentialOracle().run(15852, 500, 2);
+        showMsg(report.toString());
+        Assert.assertEquals(500, report.cases);
+        Assert.assertTrue(report.failures.toString(), report.failures.isEmpty());
+
+        //JCA的AES批量迭代单独检查，保证有足够的长消息用例
+        report = new DifferentialOracle(Collections.singletonList(DifferentialOracle.Target.YCMAC_BULK)).run(1, 300, 2);
+        Assert.assertTrue(report.checks > 0);
+        Assert.assertTrue(report.failures.toString(), report.failures.isEmpty());
+
+        //消息长度超过40字节且有分段时结果错误
+        DifferentialOracle.Variant broken = new DifferentialOracle.Variant() {
+            @Override
+            public String name() {
+                return "BROKEN";
+            }
+
+            @Override
+            public boolean applies(DifferentialOracle.Case c) {
+                return !c.gbt2008;
+            }
+
+            @Override
+            public byte[] mac(DifferentialOracle.Case c) {
+                byte[] mac = DifferentialOracle.reference(c);
+                if (c.message.length > 40 && c.splits.length > 0)
+                    mac[0] ^= 1;
+                return mac;
+            }
+        };
+        report = new DifferentialOracle(Collections.singletonList(broken)).run(1, 1000, 2);
+        showMsg(report.toString());
+        Assert.assertFalse(report.failures.isEmpty());
+        for (DifferentialOracle.Failure failure : report.failures) {
+            Assert.assertEquals(41, failure.shrunk.message.length);
+            Assert.assertEquals(1, failure.shrunk.splits.length);
+            Assert.assertNull(failure.shrunk.iv);
+        }
+    }
+
+    @Test
+    public void test_jmx() throws Exception {
+        MacManagement.registerAll();
+        MacManagement.registerAll();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        //缓存：命中率、调整大小和清空
+        ObjectName cacheName = new ObjectName("org.yy.mac:type=MacCache,name=CMac");
+        MacCacheMXBean cache = JMX.newMXBeanProxy(server, cacheName, MacCacheMXBean.class);
+        CMacTool.clearCache();
+        TestData2 testData = TestData2.testData2[0];
+        long hits = cache.getHitCount();
+        for (int i = 0; i < 3; i++)
+            Assert.assertArrayEquals(testData.mac, CMacTool.omac(testData.algSymm, testData.key, testData.msg));
+        Assert.assertEquals(hits + 2, cache.getHitCount());
+        Assert.assertEquals(16, server.getAttribute(cacheName, "MaxEntries"));
+        server.setAttribute(cacheName, new Attribute("MaxEntries", 1));
+        for (TestData2 data : TestData2.testData2)
+            Assert.assertArrayEquals(data.mac, CMacTool.omac(data.algSymm, data.key, data.msg));
+        Assert.assertTrue(cache.getEvictionCount() > 0);
+        server.invoke(cacheName, "flush", null, null);
+        long misses = cache.getMissCount();
+        Assert.assertArrayEquals(testData.mac, CMacTool.omac(testData.algSymm, testData.key, testData.msg));
+        Assert.assertEquals(misses + 1, cache.getMissCount());
+        cache.setMaxEntries(16);
+
+        //选择的实现
+        EngineRegistryMXBean registry = JMX.newMXBeanProxy(server, new ObjectName("org.yy.mac:type=EngineRegistry"), EngineRegistryMXBean.class);
+        Assert.assertFalse(registry.getProviderNames().isEmpty());
+        Assert.assertTrue(registry.getSelections().containsKey(testData.algSymm.name() + ".small"));
+
+        //统计：打开后按算法记录
+        MacMetricsMXBean metrics = JMX.newMXBeanProxy(server, new ObjectName("org.yy.mac:type=MacMetrics"), MacMetricsMXBean.class);
+        try {
+            metrics.setEnabled(true);
+            metrics.reset();
+            YCMac mac = new YCMac(CMacTool.getBlockCipher(AlgSymm.SM4));
+            mac.init(new ParametersWithPadding(new byte[16], null, 1, 2));
+            byte[] out = new byte[16];
+            for (int i = 0; i < 3; i++) {
+                mac.update(new byte[100], 0, 100);
+                mac.doFinal(out, 0);
+            }
+            Assert.assertEquals(Long.valueOf(3), metrics.getOperationCounts().get("SM4"));
+            Assert.assertEquals(Long.valueOf(300), metrics.getByteCounts().get("SM4"));
+            Assert.assertTrue(metrics.getThroughput().get("SM4") > 0);
+
+            //多通道对象的一个消息只计一次，中间结果不计入
+            MultiKeyMac multiKey = new MultiKeyMac(AlgSymm.SM4, new ParametersWithPadding(new byte[16], null, 1, 2),
+                    new ParametersWithPadding(new byte[16], null, 5, 4));
+            multiKey.update(new byte[100], 0, 100);
+            multiKey.doFinal();
+            MultiAlgMac multiAlg = new MultiAlgMac(AlgSymm.SM4, new ParametersWithPadding(new byte[16], null, 1, 2),
+                    new ParametersWithPadding(new byte[16], null, 5, 4));
+            multiAlg.update(new byte[100], 0, 100);
+            multiAlg.doFinal();
+            MacSession session = new MacSession(AlgSymm.SM4, new ParametersWithPadding(new byte[16], null, 1, 2));
+            session.update(new byte[100], 0, 100);
+            session.getChainValue();
+            Assert.assertEquals(Long.valueOf(5), metrics.getOperationCounts().get("SM4"));
+            Assert.assertEquals(Long.valueOf(500), metrics.getByteCounts().get("SM4"));
+            metrics.setEnabled(false);
+            mac.update(new byte[100], 0, 100);
+            mac.doFinal(out, 0);
+            Assert.assertEquals(Long.valueOf(5), metrics.getOperationCounts().get("SM4"));
+        } finally {
+            metrics.setEnabled(false);
+        }
+
+        //终端密钥表：删除终端，释放的槽位被重新使用
+        RandomGenerator randomGenerator = new RandomGenerator();
+        TerminalKeyTable table = new TerminalKeyTable(500, 16);
+        byte[][] keys = new byte[500][];
+        for (int i = 0; i < 500; i++) {
+            keys[i] = randomGenerator.nextBytes(16);
+            table.put(i * 7L, AlgSymm.SM4, keys[i]);
+        }
+        ObjectName tableName = MacManagement.register(table, "test table");
+        try {
+            TerminalKeyTableMXBean proxy = JMX.newMXBeanProxy(server, tableName, TerminalKeyTableMXBean.class);
+            for (int i = 0; i < 500; i += 2)
+                Assert.assertTrue(table.remove(i * 7L));
+            Assert.assertFalse(table.remove(0L));
+            Assert.assertEquals(250, proxy.getSize());
+            Assert.assertEquals(500, server.getAttribute(tableName, "Capacity"));
+
+            TerminalKeyTable.Engine engine = table.newEngine();
+            byte[] data = randomGenerator.nextBytes(40);
+            byte[] tag = new byte[16];
+            for (int i = 0; i < 500; i++) {
+                if (i % 2 == 0) {
+                    Assert.assertFalse(table.contains(i * 7L));
+                    try {
+                        engine.mac(i * 7L, 5, 4, data, 0, data.length, tag, 0);
+                        Assert.fail();
+                    } catch (IllegalArgumentException e) {
+                        //终端已删除
+                    }
+                    keys[i] = randomGenerator.nextBytes(16);
+                    table.put(i * 7L, AlgSymm.SM4, keys[i]);
+                }
+            }
+            Assert.assertEquals(500, table.size());
+            for (int i = 0; i < 500; i++) {
+                engine.mac(i * 7L, 5, 4, data, 0, data.length, tag, 0);
+                Assert.assertArrayEquals(CMacTool.omac(AlgSymm.SM4, keys[i], data), tag);
+            }
+
+            //轮换单个终端：所有线程缓存的该终端的对象被删除，其他密钥的对象保留
+            ExecutorService other = Executors.newSingleThreadExecutor();
+            try {
+                other.submit(() -> CMacTool.omac(AlgSymm.SM4, keys[499], data)).get();
+                long otherMisses = cache.getMissCount();
+                other.submit(() -> CMacTool.omac(AlgSymm.SM4, keys[499], data)).get();
+                Assert.assertEquals(otherMisses, cache.getMissCount());
+
+                Assert.assertTrue(proxy.evictCachedKey(499 * 7L));
+                Assert.assertFalse(proxy.evictCachedKey(1L));
+                misses = cache.getMissCount();
+                hits = cache.getHitCount();
+                Assert.assertArrayEquals(CMacTool.omac(AlgSymm.SM4, keys[499], data), other.submit(() -> CMacTool.omac(AlgSymm.SM4, keys[499], data)).get());
+                Assert.assertEquals(misses + 2, cache.getMissCount());
+                CMacTool.omac(AlgSymm.SM4, keys[498], data);
+                Assert.assertEquals(hits + 1, cache.getHitCount());
+            } finally {
+                other.shutdown();
+            }
+        } finally {
+            MacManagement.unregister(tableName);
+        }
+        Assert.assertFalse(server.isRegistered(tableName));
+    }
+
+    @Test
+    public void test_mac_session_arena() throws Exception {
+        RandomGenerator randomGenerator = new RandomGenerator();
+        Random random = new Random(15852);
+        AlgSymm[] algs = {AlgSymm.SM4, AlgSymm.AES128, AlgSymm.AES256};
+        int[][] types = {{1, 1}, {1, 2}, {5, 4}};
+
+        TerminalKeyTable table = new TerminalKeyTable(10);
+        byte[][] keys = new byte[algs.length][];
+        for (int t = 0; t < algs.length; t++) {
+            keys[t] = randomGenerator.nextBytes(algs[t] == AlgSymm.AES256 ? 32 : 16);
+            table.put(t, algs[t], keys[t]);
+        }
+        MacSessionArena arena = new MacSessionArena(table, 9);
+        Assert.assertEquals(9 * 64, arena.getMemorySize());
+        MacSessionArena.Engine engine = arena.newEngine();
+
+        //每个会话交替输入随机长度的分段，结果与 YCMac 相同
+        long[] sessions = new long[9];
+        YCMac[] macs = new YCMac[9];
+        for (int i = 0; i < 9; i++) {
+            int t = i / 3;
+            int[] type = types[i % 3];
+            sessions[i] = arena.open(t, type[0], type[1]);
+            macs[i] = new YCMac(CMacTool.getBlockCipher(algs[t]));
+            macs[i].init(new ParametersWithPadding(keys[t], null, type[0], type[1]));
+        }
+        Assert.assertEquals(9, arena.size());
+        byte[] data = randomGenerator.nextBytes(200);
+        byte[] tag = new byte[16];
+        byte[] expected = new byte[16];
+        for (int round = 0; round < 300; round++) {
+            int i = random.nextInt(9);
+            if (random.nextInt(4) == 0) {
+                macs[i].doFinal(expected, 0);
+                Assert.assertEquals(16, engine.doFinal(sessions[i], tag, 0));
+                Assert.assertArrayEquals("session " + i + " round " + round, expected, tag);
+                Assert.assertEquals(0, arena.getLength(sessions[i]));
+            } else {
+                int off = random.nextInt(100);
+                int len = random.nextInt(3) == 0 ? random.nextInt(17) : random.nextInt(100);
+                macs[i].update(data, off, len);
+                if (random.nextBoolean())
+                    engine.update(sessions[i], data, off, len);
+                else {
+                    ByteBuffer direct = ByteBuffer.allocateDirect(len);
+                    direct.put(data, off, len);
+                    direct.flip();
+                    engine.update(sessions[i], direct);
+                }
+            }
+        }
+        for (int i = 0; i < 9; i++) {
+            macs[i].doFinal(expected, 0);
+            engine.doFinal(sessions[i], tag, 0);
+            Assert.assertArrayEquals(expected, tag);
+        }
+
+        //已满；关闭后重新使用槽位，旧的句柄无效
+        try {
+            arena.open(0, 5, 4);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //已满
+        }
+        arena.close(sessions[4]);
+        long reopened = arena.open(0, 5, 4);
+        Assert.assertEquals((int) sessions[4], (int) reopened);
+        try {
+            engine.update(sessions[4], data, 0, 16);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //已关闭
+        }
+        engine.update(reopened, data, 0, 50);
+        arena.reset(reopened);
+        engine.update(reopened, data, 0, 20);
+        engine.doFinal(reopened, tag, 0);
+        Assert.assertArrayEquals(CMacTool.omac(AlgSymm.SM4, keys[0], Arrays.copyOf(data, 20)), tag);
+
+        //重新加载密钥文件替换密钥，会话之后的消息使用新的密钥
+        arena.close(sessions[0]);
+        long session = arena.open(2, 5, 4);
+        engine.update(session, data, 0, 30);
+        engine.doFinal(session, tag, 0);
+        Assert.assertArrayEquals(CMacTool.omac(AlgSymm.AES256, keys[2], Arrays.copyOf(data, 30)), tag);
+        byte[] newKey = randomGenerator.nextBytes(32);
+        File keyFile = File.createTempFile("terminal", ".keys");
+        try {
+            Files.write(keyFile.toPath(), ("2 AES256 " + Hex.toHexString(newKey) + "\n").getBytes(StandardCharsets.US_ASCII));
+            Assert.assertEquals(1, table.load(keyFile.toPath(), 1));
+        } finally {
+            keyFile.delete();
+        }
+        engine.update(session, data, 0, 30);
+        engine.doFinal(session, tag, 0);
+        Assert.assertArrayEquals(CMacTool.omac(AlgSymm.AES256, newKey, Arrays.copyOf(data, 30)), tag);
+
+        //终端被删除后计算失败
+        table.remove(1);
+        try {
+            engine.doFinal(sessions[3], tag, 0);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //密钥已删除
+        }
+        try {
+            arena.open(1, 1, 1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //终端不存在
+        }
+    }
+
     /**
      * XX中心提供的测试数据，CMAC，SM4，IV
      * <p>